@@ -37,6 +37,10 @@ public class Status extends HttpApiServlet {
         for (String service : fullStatus.keySet()) {
 			resLines.add(service + "=" + fullStatus.get(service).name());
 		}
+        Map<String, String> statistics = statusService.statistics();
+        for (String name : statistics.keySet()) {
+        	resLines.add(name + "=" + statistics.get(name));
+        }
         String res = StringUtils.join(resLines.iterator(), "\r\n"); 
         
         response.setStatus(HttpServletResponse.SC_OK);        
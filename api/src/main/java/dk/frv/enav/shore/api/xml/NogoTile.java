@@ -0,0 +1,71 @@
+package dk.frv.enav.shore.api.xml;
+
+import java.io.IOException;
+
+import javax.ejb.EJB;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import dk.frv.enav.common.xml.nogo.response.NogoResponse;
+import dk.frv.enav.common.xml.nogo.types.NogoGeometry;
+import dk.frv.enav.shore.core.domain.ServiceLog;
+import dk.frv.enav.shore.core.services.Errorcodes;
+import dk.frv.enav.shore.core.services.ServiceException;
+import dk.frv.enav.shore.core.services.log.LogService;
+import dk.frv.enav.shore.core.services.nogo.NogoService;
+
+/**
+ * NoGo area of a web mercator tile, addressed by the parameters z, x, y,
+ * draught, hour and optionally geometry
+ */
+public class NogoTile extends XmlApiServlet {
+	
+	private static final long serialVersionUID = 1L;
+	
+	@EJB
+	LogService logService;
+
+	@EJB
+	NogoService nogoService;
+	
+	@Override
+	protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		NogoResponse resXml = new NogoResponse();
+		resXml.setErrorCode(Errorcodes.OK);
+		
+		ServiceLog logEntry = logService.createLog("NOGO_TILE_XML", request);
+		
+		try {
+			int z;
+			int x;
+			int y;
+			double draught;
+			int hour;
+			NogoGeometry geometry = null;
+			try {
+				z = Integer.parseInt(request.getParameter("z"));
+				x = Integer.parseInt(request.getParameter("x"));
+				y = Integer.parseInt(request.getParameter("y"));
+				draught = Double.parseDouble(request.getParameter("draught"));
+				hour = Integer.parseInt(request.getParameter("hour"));
+				if (request.getParameter("geometry") != null) {
+					geometry = NogoGeometry.valueOf(request.getParameter("geometry").toUpperCase());
+				}
+			} catch (RuntimeException e) {
+				throw new ServiceException(Errorcodes.NOGO_INVALID_TILE, "Invalid tile parameters: " + e.getMessage());
+			}
+			resXml = nogoService.nogoTile(z, x, y, draught, hour, geometry);
+			logEntry.markCompleted();
+		} catch (ServiceException e) {
+			resXml.setErrorCode(e.getErrorCode());
+			resXml.setErrorMessage(e.getExtErrorMsg());
+			logEntry.markFailed(e);
+		}
+		
+		sendResponse(response, "dk.frv.enav.common.xml.nogo.response", resXml);
+		
+		logService.endLog(logEntry);
+	}
+		
+}
@@ -1,6 +1,7 @@
 package dk.frv.enav.common.xml.nogo.request;
 
 import java.util.Date;
+import java.util.List;
 
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
@@ -8,6 +9,8 @@ import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlType;
 
 import dk.frv.enav.common.xml.ShoreServiceRequest;
+import dk.frv.enav.common.xml.Waypoint;
+import dk.frv.enav.common.xml.nogo.types.NogoGeometry;
 
 @XmlRootElement
 @XmlAccessorType(XmlAccessType.FIELD)
@@ -25,6 +28,31 @@ public class NogoRequest extends ShoreServiceRequest {
 	private double southEastPointLon;
 	private Date startDate;
 	private Date endDate;
+	/**
+	 * Optional geometry of the response, rectangles if not given
+	 */
+	private NogoGeometry geometry;
+	/**
+	 * Optional route, if given only the corridor along the route legs is
+	 * calculated and the box is ignored
+	 */
+	private List<Waypoint> waypoints;
+	/**
+	 * Width of the route corridor in nautical miles, centered on the legs
+	 */
+	private Double corridorWidth;
+	/**
+	 * Optional list of draughts, if given the no go area of each is returned
+	 * in the draught areas of the response and draught is ignored
+	 */
+	private List<Double> draughts;
+	/**
+	 * Optional, if true the no go area is given hour by hour from start to
+	 * end date, the first hour in full and the changes of each later hour in
+	 * the time steps of the response. The steps are given as rectangles only,
+	 * other geometries are rejected
+	 */
+	private Boolean timeSeries;
 
 	public NogoRequest() {
 	}
@@ -85,4 +113,44 @@ public class NogoRequest extends ShoreServiceRequest {
 		this.endDate = endDate;
 	}
 
+	public NogoGeometry getGeometry() {
+		return geometry;
+	}
+
+	public void setGeometry(NogoGeometry geometry) {
+		this.geometry = geometry;
+	}
+
+	public List<Waypoint> getWaypoints() {
+		return waypoints;
+	}
+
+	public void setWaypoints(List<Waypoint> waypoints) {
+		this.waypoints = waypoints;
+	}
+
+	public Double getCorridorWidth() {
+		return corridorWidth;
+	}
+
+	public void setCorridorWidth(Double corridorWidth) {
+		this.corridorWidth = corridorWidth;
+	}
+
+	public List<Double> getDraughts() {
+		return draughts;
+	}
+
+	public void setDraughts(List<Double> draughts) {
+		this.draughts = draughts;
+	}
+
+	public Boolean getTimeSeries() {
+		return timeSeries;
+	}
+
+	public void setTimeSeries(Boolean timeSeries) {
+		this.timeSeries = timeSeries;
+	}
+
 }
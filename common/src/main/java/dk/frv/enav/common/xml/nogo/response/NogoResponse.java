@@ -26,9 +26,19 @@ public class NogoResponse extends ShoreServiceResponse {
 	private Date validTo;
 	private int noGoErrorCode;
 	private String noGoMessage;
+	/**
+	 * Polygons of each draught of a request for several draughts
+	 */
+	private List<NogoDraughtArea> draughtAreas;
+	/**
+	 * Changes of each hour after the first of a time series request
+	 */
+	private List<NogoTimeStep> timeSteps;
 	
 	public NogoResponse() {
 		polygons = new ArrayList<NogoPolygon>();
+		draughtAreas = new ArrayList<NogoDraughtArea>();
+		timeSteps = new ArrayList<NogoTimeStep>();
 	}
 
 	public int getNoGoErrorCode() {
@@ -79,5 +89,21 @@ public class NogoResponse extends ShoreServiceResponse {
 		return validTo;
 	}	
 	
+	public void addDraughtArea(NogoDraughtArea draughtArea) {
+		draughtAreas.add(draughtArea);
+	}
+
+	public List<NogoDraughtArea> getDraughtAreas() {
+		return draughtAreas;
+	}
+
+	public void addTimeStep(NogoTimeStep timeStep) {
+		timeSteps.add(timeStep);
+	}
+
+	public List<NogoTimeStep> getTimeSteps() {
+		return timeSteps;
+	}
+	
 	
 }
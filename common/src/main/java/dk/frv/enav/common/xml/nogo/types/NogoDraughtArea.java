@@ -0,0 +1,33 @@
+package dk.frv.enav.common.xml.nogo.types;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * No go polygons for one of the draughts of a request
+ */
+public class NogoDraughtArea {
+	private double draught;
+	private List<NogoPolygon> polygons = new ArrayList<NogoPolygon>();
+
+	public NogoDraughtArea() {
+
+	}
+
+	public double getDraught() {
+		return draught;
+	}
+
+	public void setDraught(double draught) {
+		this.draught = draught;
+	}
+
+	public List<NogoPolygon> getPolygons() {
+		return polygons;
+	}
+
+	public void setPolygons(List<NogoPolygon> polygons) {
+		this.polygons = polygons;
+	}
+
+}
@@ -0,0 +1,21 @@
+package dk.frv.enav.common.xml.nogo.types;
+
+/**
+ * How the no go area is returned
+ */
+public enum NogoGeometry {
+	/**
+	 * A rectangle for each run of no go cells in a row, with triangles
+	 * connecting the rows
+	 */
+	RECTANGLES,
+	/**
+	 * Closed contour polygons, with holes, around the no go areas
+	 */
+	CONTOURS,
+	/**
+	 * The rows of no go cells merged into outlines along the cell edges, with
+	 * holes, simplified to within about a cell
+	 */
+	OUTLINES
+}
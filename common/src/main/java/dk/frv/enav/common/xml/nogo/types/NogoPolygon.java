@@ -5,6 +5,10 @@ import java.util.List;
 
 public class NogoPolygon {
 	private List<NogoPoint> polygon = new ArrayList<NogoPoint>();
+	/**
+	 * Areas inside the polygon that are not part of it, only used by contours
+	 */
+	private List<NogoPolygon> holes = new ArrayList<NogoPolygon>();
 	
 	public List<NogoPoint> getPolygon() {
 		return polygon;
@@ -12,6 +16,12 @@ public class NogoPolygon {
 	public void setPolygon(List<NogoPoint> polygon) {
 		this.polygon = polygon;
 	}
+	public List<NogoPolygon> getHoles() {
+		return holes;
+	}
+	public void setHoles(List<NogoPolygon> holes) {
+		this.holes = holes;
+	}
 	
 	public NogoPolygon(){
 
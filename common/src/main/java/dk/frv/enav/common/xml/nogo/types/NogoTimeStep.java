@@ -0,0 +1,44 @@
+package dk.frv.enav.common.xml.nogo.types;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Change of the no go area from the previous hour of a time series, the
+ * cells turning no go in added and the cells turning clear in removed
+ */
+public class NogoTimeStep {
+	private Date time;
+	private List<NogoPolygon> added = new ArrayList<NogoPolygon>();
+	private List<NogoPolygon> removed = new ArrayList<NogoPolygon>();
+
+	public NogoTimeStep() {
+
+	}
+
+	public Date getTime() {
+		return time;
+	}
+
+	public void setTime(Date time) {
+		this.time = time;
+	}
+
+	public List<NogoPolygon> getAdded() {
+		return added;
+	}
+
+	public void setAdded(List<NogoPolygon> added) {
+		this.added = added;
+	}
+
+	public List<NogoPolygon> getRemoved() {
+		return removed;
+	}
+
+	public void setRemoved(List<NogoPolygon> removed) {
+		this.removed = removed;
+	}
+
+}
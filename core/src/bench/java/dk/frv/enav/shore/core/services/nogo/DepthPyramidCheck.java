@@ -0,0 +1,70 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import dk.frv.enav.common.xml.nogo.types.BoundingBoxPoint;
+
+/**
+ * Checks that classifying through {@link DepthPyramid} gives the runs of the
+ * exhaustive classification of every cell of the depth field, on random boxes
+ * of a synthetic grid with and without tide, for one draught and for several
+ * in one pass. Prints the boxes that differ and exits with 1 if any do.
+ * 
+ * Usage: DepthPyramidCheck [boxes]
+ */
+public class DepthPyramidCheck {
+
+	private static final int WIDTH = 1200;
+	private static final int HEIGHT = 1000;
+
+	public static void main(String[] args) {
+		int boxes = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+		ArrayDepthGrid grid = SyntheticGrid.create(WIDTH, HEIGHT, 7);
+		DepthPyramid pyramid = new DepthPyramid(grid);
+		TideWindow tide = SyntheticGrid.tide(WIDTH, HEIGHT, 4, 11);
+		Random random = new Random(42);
+
+		int failed = 0;
+		for (int i = 0; i < boxes; i++) {
+			int n1 = random.nextInt(WIDTH);
+			int n2 = n1 + random.nextInt(WIDTH - n1);
+			int m1 = random.nextInt(HEIGHT);
+			int m2 = m1 + random.nextInt(HEIGHT - m1);
+			double[] draughts = { -random.nextDouble() * 15, -random.nextDouble() * 5, -0.5 };
+			Arrays.sort(draughts);
+
+			boolean agree = true;
+			for (TideWindow window : new TideWindow[] { null, tide }) {
+				DepthField field = DepthField.create(grid, new BoundingBoxPoint(n1, m1), new BoundingBoxPoint(n2, m2),
+						window);
+				TideLevels levels = window == null ? null : new TideLevels(grid, n1, n2, m1, m2, window);
+
+				NogoMask[] masks = new NogoMask[draughts.length];
+				for (int t = 0; t < draughts.length; t++) {
+					masks[t] = new NogoMask(n1, n2, m1, m2);
+				}
+				pyramid.classify(masks, n1, n2, m1, m2, levels, draughts);
+
+				for (int t = 0; t < draughts.length; t++) {
+					int[] exhaustive = NogoMask.create(field, draughts[t]).findRuns();
+					int[] single = pyramid.classify(n1, n2, m1, m2, levels, draughts[t]).findRuns();
+					if (!Arrays.equals(exhaustive, single) || !Arrays.equals(exhaustive, masks[t].findRuns())) {
+						System.out.println("Runs differ for " + n1 + "-" + n2 + " x " + m1 + "-" + m2 + " at "
+								+ draughts[t] + (window == null ? " without" : " with") + " tide");
+						agree = false;
+					}
+				}
+			}
+			if (!agree) {
+				failed++;
+			}
+		}
+
+		System.out.println(boxes - failed + " of " + boxes + " boxes agree");
+		if (failed > 0) {
+			System.exit(1);
+		}
+	}
+
+}
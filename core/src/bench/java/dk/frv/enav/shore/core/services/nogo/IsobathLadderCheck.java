@@ -0,0 +1,75 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import dk.frv.enav.common.xml.nogo.types.BoundingBoxPoint;
+
+/**
+ * Checks that the runs cut out of an {@link IsobathLadder} are the runs of a
+ * scan of the depth field without tide on the draughts of the ladder, and
+ * leave out no no go cell of the scan between them, on random boxes of a
+ * synthetic grid. Prints the boxes that fail and exits with 1 if any do.
+ * 
+ * Usage: IsobathLadderCheck [boxes]
+ */
+public class IsobathLadderCheck {
+
+	private static final int WIDTH = 1200;
+	private static final int HEIGHT = 1000;
+	private static final double STEP = 0.25;
+	private static final int COUNT = 80;
+
+	public static void main(String[] args) {
+		int boxes = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		ArrayDepthGrid grid = SyntheticGrid.create(WIDTH, HEIGHT, 7);
+		IsobathLadder ladder = new IsobathLadder(new DepthPyramid(grid), STEP, COUNT);
+		Random random = new Random(42);
+
+		int failed = 0;
+		for (int i = 0; i < boxes; i++) {
+			int n1 = random.nextInt(WIDTH);
+			int n2 = n1 + random.nextInt(WIDTH - n1);
+			int m1 = random.nextInt(HEIGHT);
+			int m2 = m1 + random.nextInt(HEIGHT - m1);
+			DepthField field = DepthField.create(grid, new BoundingBoxPoint(n1, m1), new BoundingBoxPoint(n2, m2),
+					null);
+
+			double onLadder = -random.nextInt(COUNT) * STEP;
+			double between = -random.nextDouble() * (COUNT - 1) * STEP;
+			int[] scan = NogoMask.create(field, onLadder).findRuns();
+			boolean exact = Arrays.equals(ladder.clip(onLadder, n1, n2, m1, m2), scan);
+			boolean covers = covers(ladder.clip(between, n1, n2, m1, m2), NogoMask.create(field, between)
+					.findRuns(), n1, n2, m1, m2);
+			if (!exact || !covers) {
+				System.out.println("Box " + n1 + "-" + n2 + " x " + m1 + "-" + m2 + (exact ? "" : " differs at "
+						+ onLadder) + (covers ? "" : " leaves out cells at " + between));
+				failed++;
+			}
+		}
+
+		System.out.println(boxes - failed + " of " + boxes + " boxes agree");
+		if (failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Are all cells of the scanned runs in the clipped runs
+	 */
+	private static boolean covers(int[] clipped, int[] scanned, int n1, int n2, int m1, int m2) {
+		NogoMask mask = new NogoMask(n1, n2, m1, m2);
+		for (int r = 0; r < clipped.length; r += 3) {
+			mask.setRange(clipped[r + 1], clipped[r + 2], clipped[r]);
+		}
+		for (int r = 0; r < scanned.length; r += 3) {
+			for (int n = scanned[r + 1]; n <= scanned[r + 2]; n++) {
+				if (!mask.isSet(n, scanned[r])) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,88 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import dk.frv.enav.common.xml.nogo.types.BoundingBoxPoint;
+import dk.frv.enav.common.xml.nogo.types.NogoGeometry;
+import dk.frv.enav.common.xml.nogo.types.NogoPolygon;
+
+/**
+ * Checks that the contours of {@link NogoEngine} hold the whole square of
+ * every no go cell, as the rectangles do, testing the middle and the corners
+ * of each cell against the polygons by the even-odd rule. Random boxes of a
+ * smooth and a rough synthetic grid are tested with and without tide. Prints
+ * the boxes that leave cells out and exits with 1 if any do.
+ *
+ * Usage: NogoContourCheck [boxes]
+ */
+public class NogoContourCheck {
+
+	private static final int WIDTH = 1200;
+	private static final int HEIGHT = 1000;
+	private static final double DRAUGHT = -6;
+
+	/**
+	 * Corners of a cell, just inside it, and its middle
+	 */
+	private static final double[][] PROBES = { { 0, 0 }, { -0.49, -0.49 }, { 0.49, -0.49 }, { -0.49, 0.49 },
+			{ 0.49, 0.49 } };
+
+	public static void main(String[] args) {
+		int boxes = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		NogoRegion region = NogoRegionRegistry.createDefault(null).getRegion("sydkattegat");
+		NogoEngine engine = new NogoEngine(1.0);
+		NogoContext context = new NogoContext(null, region, null, null, DRAUGHT, new Date(), new Date(),
+				Long.MAX_VALUE, NogoGeometry.CONTOURS);
+		TideWindow tide = SyntheticGrid.tide(WIDTH, HEIGHT, 1, 11);
+
+		int tested = 0;
+		int failed = 0;
+		for (double noise : new double[] { 0, 0.8 }) {
+			ArrayDepthGrid grid = SyntheticGrid.create(WIDTH, HEIGHT, noise, 7);
+			GridDescriptor descriptor = grid.getDescriptor();
+			Random random = new Random(42);
+
+			for (int i = 0; i < boxes; i++) {
+				int n1 = random.nextInt(WIDTH - 150);
+				int m1 = random.nextInt(HEIGHT - 200);
+				BoundingBoxPoint first = new BoundingBoxPoint(n1, m1);
+				BoundingBoxPoint second = new BoundingBoxPoint(n1 + 149, m1 + 199);
+
+				for (TideWindow window : new TideWindow[] { tide, null }) {
+					List<NogoPolygon> polygons = engine.contourGrid(grid, first, second, window, context);
+					DepthField field = DepthField.create(grid, first, second, window);
+
+					int missed = 0;
+					for (int m = field.getMinM(); m <= field.getMaxM(); m++) {
+						for (int n = field.getMinN(); n <= field.getMaxN(); n++) {
+							if (!field.isNogo(n, m, DRAUGHT)) {
+								continue;
+							}
+							for (double[] probe : PROBES) {
+								if (!NogoOutlineCheck.covers(polygons, descriptor.toLat(m + probe[1]),
+										descriptor.toLon(n + probe[0]))) {
+									missed++;
+									break;
+								}
+							}
+						}
+					}
+					if (missed > 0) {
+						System.out.println(missed + " cells left out of " + n1 + "-" + (n1 + 149) + " x " + m1 + "-"
+								+ (m1 + 199) + " with noise " + noise + (window == null ? "" : " and tide"));
+						failed++;
+					}
+					tested++;
+				}
+			}
+		}
+
+		System.out.println(tested - failed + " of " + tested + " boxes hold all no go cells");
+		if (failed > 0) {
+			System.exit(1);
+		}
+	}
+
+}
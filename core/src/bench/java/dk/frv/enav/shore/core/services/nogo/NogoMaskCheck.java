@@ -0,0 +1,72 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import dk.frv.enav.common.xml.nogo.types.BoundingBoxPoint;
+
+/**
+ * Checks that the runs {@link NogoMask} finds a word at a time are the runs
+ * of a walk over the depth field cell by cell, on random boxes and draughts
+ * of a synthetic grid. Prints the boxes that differ and exits with 1 if any
+ * do.
+ * 
+ * Usage: NogoMaskCheck [boxes]
+ */
+public class NogoMaskCheck {
+
+	public static void main(String[] args) {
+		int boxes = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		ArrayDepthGrid grid = SyntheticGrid.create(1200, 1000, 7);
+		Random random = new Random(42);
+
+		int failed = 0;
+		for (int i = 0; i < boxes; i++) {
+			int n1 = random.nextInt(1200);
+			int n2 = n1 + random.nextInt(1200 - n1);
+			int m1 = random.nextInt(1000);
+			int m2 = m1 + random.nextInt(1000 - m1);
+			double draught = -random.nextDouble() * 15;
+
+			DepthField field = DepthField.create(grid, new BoundingBoxPoint(n1, m1), new BoundingBoxPoint(n2, m2),
+					null);
+			int[] runs = NogoMask.create(field, draught).findRuns();
+			if (!Arrays.equals(runs, scanRuns(field, draught))) {
+				System.out.println("Runs differ for " + n1 + "-" + n2 + " x " + m1 + "-" + m2 + " at " + draught);
+				failed++;
+			}
+		}
+
+		System.out.println(boxes - failed + " of " + boxes + " boxes agree");
+		if (failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * The runs of a field found cell by cell
+	 */
+	private static int[] scanRuns(DepthField field, double draught) {
+		int[] runs = new int[12];
+		int count = 0;
+		for (int m = field.getMinM(); m <= field.getMaxM(); m++) {
+			int first = -1;
+			for (int n = field.getMinN(); n <= field.getMaxN() + 1; n++) {
+				boolean nogo = n <= field.getMaxN() && field.isNogo(n, m, draught);
+				if (nogo && first < 0) {
+					first = n;
+				} else if (!nogo && first >= 0) {
+					if (count + 3 > runs.length) {
+						runs = Arrays.copyOf(runs, runs.length * 2);
+					}
+					runs[count++] = m;
+					runs[count++] = first;
+					runs[count++] = n - 1;
+					first = -1;
+				}
+			}
+		}
+		return Arrays.copyOf(runs, count);
+	}
+
+}
@@ -0,0 +1,137 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import dk.frv.enav.common.xml.nogo.types.BoundingBoxPoint;
+import dk.frv.enav.common.xml.nogo.types.NogoGeometry;
+import dk.frv.enav.common.xml.nogo.types.NogoPoint;
+import dk.frv.enav.common.xml.nogo.types.NogoPolygon;
+import dk.frv.enav.shore.core.services.ServiceException;
+
+/**
+ * Checks that the simplified outlines of {@link NogoEngine} leave out no part
+ * of a no go cell, testing the middle and the corners of each cell against
+ * the polygons by the even-odd rule, on random coastal boxes of a smooth and
+ * a rough synthetic grid. Prints the points of the outlines against those of
+ * the rectangles, and the boxes that leave cells out, and exits with 1 if any
+ * do.
+ *
+ * Usage: NogoOutlineCheck [boxes]
+ */
+public class NogoOutlineCheck {
+
+	private static final int WIDTH = 1200;
+	private static final int HEIGHT = 1000;
+	private static final double DRAUGHT = -6;
+
+	/**
+	 * Corners of a cell, just inside it, and its middle
+	 */
+	private static final double[][] PROBES = { { 0, 0 }, { -0.45, -0.45 }, { 0.45, -0.45 }, { -0.45, 0.45 },
+			{ 0.45, 0.45 } };
+
+	public static void main(String[] args) throws ServiceException {
+		int boxes = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+		NogoRegion region = NogoRegionRegistry.createDefault(null).getRegion("sydkattegat");
+		NogoEngine engine = new NogoEngine(1.0);
+		NogoContext rectangles = new NogoContext(null, region, null, null, DRAUGHT, new Date(), new Date(),
+				Long.MAX_VALUE, NogoGeometry.RECTANGLES);
+		NogoContext outlines = new NogoContext(null, region, null, null, DRAUGHT, new Date(), new Date(),
+				Long.MAX_VALUE, NogoGeometry.OUTLINES);
+
+		int failed = 0;
+		for (double noise : new double[] { 0, 0.8 }) {
+			ArrayDepthGrid grid = SyntheticGrid.create(WIDTH, HEIGHT, noise, 7);
+			DepthPyramid pyramid = new DepthPyramid(grid);
+			GridDescriptor descriptor = grid.getDescriptor();
+			Random random = new Random(42);
+
+			long rectanglePoints = 0;
+			long outlinePoints = 0;
+			for (int i = 0; i < boxes; i++) {
+				int n1 = random.nextInt(WIDTH - 150);
+				int m1 = random.nextInt(HEIGHT - 200);
+				BoundingBoxPoint first = new BoundingBoxPoint(n1, m1);
+				BoundingBoxPoint second = new BoundingBoxPoint(n1 + 149, m1 + 199);
+
+				List<NogoPolygon> polygons = engine.parseGrid(pyramid, first, second, null, outlines);
+				rectanglePoints += points(engine.parseGrid(pyramid, first, second, null, rectangles));
+				outlinePoints += points(polygons);
+
+				int missed = 0;
+				int[] runs = engine.findRuns(pyramid, first, second, null, outlines, new double[] { DRAUGHT })[0];
+				for (int r = 0; r < runs.length; r += 3) {
+					for (int n = runs[r + 1]; n <= runs[r + 2]; n++) {
+						for (double[] probe : PROBES) {
+							if (!covers(polygons, descriptor.toLat(runs[r] + probe[1]), descriptor.toLon(n
+									+ probe[0]))) {
+								missed++;
+								break;
+							}
+						}
+					}
+				}
+				if (missed > 0) {
+					System.out.println(missed + " cells left out of " + n1 + "-" + (n1 + 149) + " x " + m1 + "-"
+							+ (m1 + 199) + " with noise " + noise);
+					failed++;
+				}
+			}
+			System.out.println("Noise " + noise + ": " + rectanglePoints + " points as rectangles, " + outlinePoints
+					+ " as outlines, " + Math.round(rectanglePoints * 10.0 / Math.max(1, outlinePoints)) / 10.0
+					+ "x fewer");
+		}
+
+		System.out.println(boxes * 2 - failed + " of " + boxes * 2 + " boxes cover all no go cells");
+		if (failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static int points(List<NogoPolygon> polygons) {
+		int count = 0;
+		for (NogoPolygon polygon : polygons) {
+			count += polygon.getPolygon().size();
+			if (polygon.getHoles() != null) {
+				count += points(polygon.getHoles());
+			}
+		}
+		return count;
+	}
+
+	static boolean covers(List<NogoPolygon> polygons, double lat, double lon) {
+		for (NogoPolygon polygon : polygons) {
+			if (inside(polygon.getPolygon(), lat, lon)) {
+				boolean inHole = false;
+				if (polygon.getHoles() != null) {
+					for (NogoPolygon hole : polygon.getHoles()) {
+						inHole |= inside(hole.getPolygon(), lat, lon);
+					}
+				}
+				if (!inHole) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Even-odd test of a point against a ring
+	 */
+	private static boolean inside(List<NogoPoint> ring, double lat, double lon) {
+		boolean inside = false;
+		for (int i = 0, j = ring.size() - 1; i < ring.size(); j = i++) {
+			NogoPoint a = ring.get(i);
+			NogoPoint b = ring.get(j);
+			if ((a.getLat() > lat) != (b.getLat() > lat)
+					&& lon < (b.getLon() - a.getLon()) * (lat - a.getLat()) / (b.getLat() - a.getLat()) + a.getLon()) {
+				inside = !inside;
+			}
+		}
+		return inside;
+	}
+
+}
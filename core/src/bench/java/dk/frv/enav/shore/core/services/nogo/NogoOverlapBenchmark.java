@@ -0,0 +1,117 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import dk.frv.enav.common.xml.nogo.types.NogoPoint;
+import dk.frv.enav.common.xml.nogo.types.NogoPolygon;
+
+/**
+ * Compares the pairwise and the indexed triangle overlap elimination of
+ * {@link connectNeighbourLines} on random connector triangles laid out like
+ * those of a 100 m depth grid. Prints the time of both for growing numbers of
+ * triangles and checks that they agree.
+ * 
+ * Usage: NogoOverlapBenchmark [max triangles]
+ */
+public class NogoOverlapBenchmark {
+
+	private static final double STEP = 0.00055504;
+
+	public static void main(String[] args) {
+		int max = args.length > 0 ? Integer.parseInt(args[0]) : 40000;
+		Random random = new Random(42);
+
+		System.out.println("triangles\tpairwise ms\tindexed ms\tkept");
+		for (int count = 10; count <= max; count *= 2) {
+			List<NogoPolygon> triangles = createTriangles(count, random);
+
+			// Warm up
+			connectNeighbourLines.triangleOverlap(triangles);
+			triangleOverlapPairwise(triangles);
+
+			long start = System.nanoTime();
+			List<NogoPolygon> pairwise = triangleOverlapPairwise(triangles);
+			long pairwiseTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			List<NogoPolygon> indexed = connectNeighbourLines.triangleOverlap(triangles);
+			long indexedTime = System.nanoTime() - start;
+
+			if (!pairwise.equals(indexed)) {
+				System.out.println("Results differ for " + count + " triangles");
+			}
+
+			System.out.println(count + "\t" + pairwiseTime / 1000000.0 + "\t" + indexedTime / 1000000.0 + "\t"
+					+ indexed.size());
+		}
+	}
+
+	/**
+	 * The original triangle overlap check of every triangle against all the
+	 * others
+	 */
+	static List<NogoPolygon> triangleOverlapPairwise(List<NogoPolygon> triangles) {
+		List<NogoPolygon> result = new ArrayList<NogoPolygon>();
+		if (triangles.size() > 1) {
+			for (int i = 0; i < triangles.size(); i++) {
+				NogoPolygon currentTriangle = triangles.get(i);
+				if (!overlap(currentTriangle, triangles)) {
+					result.add(currentTriangle);
+				}
+			}
+		} else {
+			result.addAll(triangles);
+		}
+		return result;
+	}
+
+	private static boolean overlap(NogoPolygon triangle, List<NogoPolygon> triangles) {
+		double leftLon = connectNeighbourLines.getLeft(triangle);
+		double rightLon = connectNeighbourLines.getRight(triangle);
+		double latBot = Math.floor(connectNeighbourLines.getLatMax(triangle) * 1000);
+
+		for (int i = 0; i < triangles.size(); i++) {
+			NogoPolygon currentTriangle = triangles.get(i);
+			double leftLonCurrent = connectNeighbourLines.getLeft(currentTriangle);
+			double rightLonCurrent = connectNeighbourLines.getRight(currentTriangle);
+			double latBotCurrent = Math.floor(connectNeighbourLines.getLatMax(currentTriangle) * 1000);
+
+			if (currentTriangle != triangle && latBot == latBotCurrent) {
+				if (leftLon < leftLonCurrent && leftLonCurrent < rightLon
+						|| leftLonCurrent > leftLon && rightLon > rightLonCurrent
+						|| leftLon > leftLonCurrent && leftLon < rightLonCurrent
+						|| leftLon == leftLonCurrent && rightLon == rightLonCurrent
+						|| leftLon == leftLonCurrent && rightLon < rightLonCurrent
+						|| leftLon == leftLonCurrent && rightLon > rightLonCurrent
+						|| leftLon == leftLonCurrent && rightLonCurrent > rightLon) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Triangles spread over rows of about 20 triangles each, with a width of
+	 * one to three cells
+	 */
+	private static List<NogoPolygon> createTriangles(int count, Random random) {
+		int rows = Math.max(1, count / 20);
+		List<NogoPolygon> triangles = new ArrayList<NogoPolygon>(count);
+		for (int i = 0; i < count; i++) {
+			double lat = 55.0 + random.nextInt(rows) * STEP * 2;
+			double left = 11.0 + random.nextInt(400) * STEP;
+			double right = left + (1 + random.nextInt(3)) * STEP;
+
+			NogoPolygon triangle = new NogoPolygon();
+			triangle.getPolygon().add(new NogoPoint(lat + STEP, left));
+			triangle.getPolygon().add(new NogoPoint(lat, left));
+			triangle.getPolygon().add(new NogoPoint(lat, right));
+			triangles.add(triangle);
+		}
+		return triangles;
+	}
+
+}
@@ -0,0 +1,179 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import dk.frv.enav.common.xml.nogo.types.BoundingBoxPoint;
+import dk.frv.enav.common.xml.nogo.types.NogoGeometry;
+import dk.frv.enav.common.xml.nogo.types.NogoPoint;
+import dk.frv.enav.common.xml.nogo.types.NogoPolygon;
+import dk.frv.enav.common.xml.nogo.types.NogoTimeStep;
+import dk.frv.enav.shore.core.services.Errorcodes;
+import dk.frv.enav.shore.core.services.ServiceException;
+
+/**
+ * Checks that {@link NogoEngine} gives the same polygons calculated in
+ * parallel strips as in a single strip, on random boxes of a synthetic grid
+ * with tide, as rectangles and as outlines, for several draughts and as a
+ * time series. Prints the boxes that differ and exits with 1 if any do.
+ * 
+ * Usage: NogoStripsCheck [boxes]
+ */
+public class NogoStripsCheck {
+
+	private static final int WIDTH = 1200;
+	private static final int HEIGHT = 1000;
+	private static final int HOURS = 4;
+
+	/**
+	 * Fewest rows of a box, enough for four strips
+	 */
+	private static final int MIN_ROWS = 256;
+
+	public static void main(String[] args) throws ServiceException {
+		int boxes = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		ArrayDepthGrid grid = SyntheticGrid.create(WIDTH, HEIGHT, 7);
+		DepthPyramid pyramid = new DepthPyramid(grid);
+		TideWindow tide = SyntheticGrid.tide(WIDTH, HEIGHT, 1, 11);
+		TideWindow[] hours = new TideWindow[HOURS];
+		for (int h = 0; h < HOURS; h++) {
+			hours[h] = SyntheticGrid.tide(WIDTH, HEIGHT, 1, 11 + h);
+		}
+		NogoRegion region = NogoRegionRegistry.createDefault(null).getRegion("sydkattegat");
+		Random random = new Random(42);
+
+		PoolExecutor executor = new PoolExecutor(8);
+		NogoEngine single = new NogoEngine(1.0);
+		NogoEngine strips = new NogoEngine(1.0, executor, 8);
+
+		int failed = 0;
+		try {
+			for (int i = 0; i < boxes; i++) {
+				int n1 = random.nextInt(WIDTH / 2);
+				int n2 = n1 + random.nextInt(WIDTH - n1);
+				int m1 = random.nextInt(HEIGHT / 2);
+				int m2 = m1 + MIN_ROWS + random.nextInt(HEIGHT - m1 - MIN_ROWS);
+				BoundingBoxPoint first = new BoundingBoxPoint(n1, m1);
+				BoundingBoxPoint second = new BoundingBoxPoint(n2, m2);
+				double[] draughts = { -8, -5, -2 };
+
+				boolean agree = true;
+				for (NogoGeometry geometry : new NogoGeometry[] { NogoGeometry.RECTANGLES, NogoGeometry.OUTLINES }) {
+					NogoContext context = new NogoContext(null, region, null, null, -5, new Date(), new Date(),
+							Long.MAX_VALUE, geometry);
+					agree &= describe(single.parseGrid(pyramid, first, second, tide, context, draughts)).equals(
+							describe(strips.parseGrid(pyramid, first, second, tide, context, draughts)));
+					agree &= describeSteps(single.parseSeries(pyramid, first, second, hours, context)).equals(
+							describeSteps(strips.parseSeries(pyramid, first, second, hours, context)));
+				}
+				if (!agree) {
+					System.out.println("Polygons differ for " + n1 + "-" + n2 + " x " + m1 + "-" + m2);
+					failed++;
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		System.out.println(boxes - failed + " of " + boxes + " boxes agree");
+		if (failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static String describeSteps(List<NogoTimeStep> steps) {
+		List<List<NogoPolygon>> polygons = new ArrayList<List<NogoPolygon>>();
+		for (NogoTimeStep step : steps) {
+			polygons.add(step.getAdded());
+			polygons.add(step.getRemoved() == null ? Collections.<NogoPolygon> emptyList() : step.getRemoved());
+		}
+		return describe(polygons);
+	}
+
+	/**
+	 * The coordinates of the polygons and their holes in order
+	 */
+	private static String describe(List<List<NogoPolygon>> polygons) {
+		StringBuilder builder = new StringBuilder();
+		for (List<NogoPolygon> part : polygons) {
+			describePolygons(part, builder);
+			builder.append('|');
+		}
+		return builder.toString();
+	}
+
+	private static void describePolygons(List<NogoPolygon> polygons, StringBuilder builder) {
+		for (NogoPolygon polygon : polygons) {
+			builder.append('(');
+			for (NogoPoint point : polygon.getPolygon()) {
+				builder.append(point.getLat()).append(' ').append(point.getLon()).append(',');
+			}
+			if (polygon.getHoles() != null) {
+				describePolygons(polygon.getHoles(), builder);
+			}
+			builder.append(')');
+		}
+	}
+
+	/**
+	 * Runs the strips on a plain pool, without the queue and deadline of the
+	 * NoGo executor bean
+	 */
+	private static class PoolExecutor implements NogoExecutor {
+
+		private final ExecutorService pool;
+
+		PoolExecutor(int threads) {
+			pool = Executors.newFixedThreadPool(threads);
+		}
+
+		@Override
+		public int runAll(List<? extends Runnable> tasks, long deadline) {
+			List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+			for (Runnable task : tasks) {
+				futures.add(pool.submit(task));
+			}
+			try {
+				for (Future<?> future : futures) {
+					future.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return Errorcodes.NOGO_TIMEOUT;
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+				return Errorcodes.SYSTEM_ERROR;
+			}
+			return Errorcodes.OK;
+		}
+
+		@Override
+		public int runStrips(List<? extends Runnable> tasks, long deadline) {
+			return runAll(tasks, deadline);
+		}
+
+		@Override
+		public long getTimeout() {
+			return Long.MAX_VALUE;
+		}
+
+		@Override
+		public Map<String, String> getStatistics() {
+			return Collections.emptyMap();
+		}
+
+		void shutdown() {
+			pool.shutdown();
+		}
+
+	}
+
+}
@@ -0,0 +1,107 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import dk.frv.enav.common.xml.nogo.types.BoundingBoxPoint;
+import dk.frv.enav.common.xml.nogo.types.NogoGeometry;
+import dk.frv.enav.common.xml.nogo.types.NogoPoint;
+import dk.frv.enav.common.xml.nogo.types.NogoPolygon;
+import dk.frv.enav.shore.core.services.ServiceException;
+
+/**
+ * Checks that the polygons of a box assembled from the runs of the tiles
+ * covering it, as the NoGo service does with nogo_tile_zoom set, are the
+ * polygons calculated for the box directly. Random boxes of a synthetic grid
+ * are cut into tiles of random size and offset, with and without tide, as
+ * rectangles and as outlines. Prints the boxes that differ and exits with 1
+ * if any do.
+ *
+ * Usage: NogoTilesCheck [boxes]
+ */
+public class NogoTilesCheck {
+
+	private static final int WIDTH = 1200;
+	private static final int HEIGHT = 1000;
+
+	public static void main(String[] args) throws ServiceException {
+		int boxes = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		ArrayDepthGrid grid = SyntheticGrid.create(WIDTH, HEIGHT, 7);
+		DepthPyramid pyramid = new DepthPyramid(grid);
+		TideWindow tide = SyntheticGrid.tide(WIDTH, HEIGHT, 1, 11);
+		NogoRegion region = NogoRegionRegistry.createDefault(null).getRegion("sydkattegat");
+		NogoEngine engine = new NogoEngine(1.0);
+		Random random = new Random(42);
+
+		int failed = 0;
+		for (int i = 0; i < boxes; i++) {
+			int n1 = random.nextInt(WIDTH);
+			int n2 = n1 + random.nextInt(Math.min(WIDTH - n1, 400));
+			int m1 = random.nextInt(HEIGHT);
+			int m2 = m1 + random.nextInt(Math.min(HEIGHT - m1, 400));
+			BoundingBoxPoint first = new BoundingBoxPoint(n1, m1);
+			BoundingBoxPoint second = new BoundingBoxPoint(n2, m2);
+			int tileWidth = 1 + random.nextInt(150);
+			int tileHeight = 1 + random.nextInt(150);
+			int offsetN = random.nextInt(tileWidth);
+			int offsetM = random.nextInt(tileHeight);
+			double[] draughts = { -3 - random.nextInt(8) };
+
+			boolean agree = true;
+			for (TideWindow window : new TideWindow[] { tide, null }) {
+				// The runs of each tile overlapping the box, the whole tile
+				List<int[]> parts = new ArrayList<int[]>();
+				for (int tm = (m1 + offsetM) / tileHeight; tm <= (m2 + offsetM) / tileHeight; tm++) {
+					for (int tn = (n1 + offsetN) / tileWidth; tn <= (n2 + offsetN) / tileWidth; tn++) {
+						BoundingBoxPoint tileFirst = new BoundingBoxPoint(Math.max(0, tn * tileWidth - offsetN),
+								Math.max(0, tm * tileHeight - offsetM));
+						BoundingBoxPoint tileSecond = new BoundingBoxPoint(Math.min(WIDTH - 1, (tn + 1) * tileWidth
+								- offsetN - 1), Math.min(HEIGHT - 1, (tm + 1) * tileHeight - offsetM - 1));
+						NogoContext context = new NogoContext(null, region, null, null, draughts[0], new Date(),
+								new Date(), Long.MAX_VALUE, NogoGeometry.RECTANGLES);
+						parts.add(engine.findRuns(pyramid, tileFirst, tileSecond, window, context, draughts)[0]);
+					}
+				}
+				int[] runs = NogoEngine.joinRuns(parts, first, second);
+
+				for (NogoGeometry geometry : new NogoGeometry[] { NogoGeometry.RECTANGLES, NogoGeometry.OUTLINES }) {
+					NogoContext context = new NogoContext(null, region, null, null, draughts[0], new Date(),
+							new Date(), Long.MAX_VALUE, geometry);
+					agree &= describe(engine.parseGrid(pyramid, first, second, window, context)).equals(
+							describe(engine.gridPolygons(runs, grid, context)));
+				}
+			}
+			if (!agree) {
+				System.out.println("Polygons differ for " + n1 + "-" + n2 + " x " + m1 + "-" + m2 + " in tiles of "
+						+ tileWidth + " x " + tileHeight);
+				failed++;
+			}
+		}
+
+		System.out.println(boxes - failed + " of " + boxes + " boxes agree");
+		if (failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * The coordinates of the polygons and their holes in order
+	 */
+	private static String describe(List<NogoPolygon> polygons) {
+		StringBuilder builder = new StringBuilder();
+		for (NogoPolygon polygon : polygons) {
+			builder.append('(');
+			for (NogoPoint point : polygon.getPolygon()) {
+				builder.append(point.getLat()).append(' ').append(point.getLon()).append(',');
+			}
+			if (polygon.getHoles() != null) {
+				builder.append(describe(polygon.getHoles()));
+			}
+			builder.append(')');
+		}
+		return builder.toString();
+	}
+
+}
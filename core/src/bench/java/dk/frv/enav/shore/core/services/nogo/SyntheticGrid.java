@@ -0,0 +1,64 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Depth grids with a coastline for the checks and benchmarks: smooth shoals
+ * and deeps with noise on top, land where the sea would be shallower than
+ * 1.5 m and single cells without data scattered over the grid. The tide
+ * cells span 8 by 5 depth cells as in the database.
+ */
+class SyntheticGrid {
+
+	private static final double STEP = 0.00055504;
+
+	static ArrayDepthGrid create(int width, int height, long seed) {
+		return create(width, height, 0.8, seed);
+	}
+
+	/**
+	 * @param noise
+	 *            standard deviation of the noise in meters, 0 for a smooth
+	 *            bottom
+	 */
+	static ArrayDepthGrid create(int width, int height, double noise, long seed) {
+		Random random = new Random(seed);
+		ArrayDepthGrid grid = new ArrayDepthGrid(0, width - 1, 0, height - 1);
+		for (int m = 0; m < height; m++) {
+			for (int n = 0; n < width; n++) {
+				double depth = -8 + 7 * Math.sin(n / 23.0) * Math.cos(m / 17.0) + noise * random.nextGaussian();
+				if (random.nextInt(97) != 0) {
+					grid.set(n, m, 55.0 + m * STEP, 11.0 + n * STEP, depth > -1.5 ? null : depth);
+				}
+			}
+		}
+		grid.fillCoordinates();
+		return grid;
+	}
+
+	/**
+	 * Tide of some hours over a grid, up to a meter from the mean and
+	 * shifting from hour to hour
+	 * 
+	 * @return the window of all hours over the whole grid
+	 */
+	static TideWindow tide(int width, int height, int hours, long seed) {
+		Random random = new Random(seed);
+		int tideN = width / 8 + 2;
+		int tideM = height / 5 + 2;
+		TideCube cube = new TideCube(0, tideN - 1, 0, tideM - 1, 0, (hours - 1) * 3600 * 1000L, 1);
+		for (int h = 0; h < hours; h++) {
+			Date time = new Date(h * 3600 * 1000L);
+			for (int m = 0; m < tideM; m++) {
+				for (int n = 0; n < tideN; n++) {
+					double level = Math.sin(n * 0.05 + h * 0.3) * Math.cos(m * 0.07) + 0.1 * random.nextGaussian();
+					cube.set(n, m, 55.0 + (m * 5 - 2) * STEP, 11.0 + (n * 8 - 4) * STEP, time, level);
+				}
+			}
+		}
+		cube.complete();
+		return cube.getWindow(0, 0, tideN - 1, tideM - 1, new Date(0), new Date((hours - 1) * 3600 * 1000L));
+	}
+
+}
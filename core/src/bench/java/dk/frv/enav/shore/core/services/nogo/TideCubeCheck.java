@@ -0,0 +1,66 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Checks that the lowest level of a window found by {@link TideCube} is the
+ * lowest level of a scan over the hours of the window, on random windows of
+ * every length over a cube of random levels with missing samples. Prints the
+ * windows that differ and exits with 1 if any do.
+ * 
+ * Usage: TideCubeCheck [windows]
+ */
+public class TideCubeCheck {
+
+	private static final int N = 10;
+	private static final int M = 8;
+	private static final int HOURS = 1000;
+	private static final long HOUR = 3600 * 1000L;
+
+	public static void main(String[] args) {
+		int windows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		Random random = new Random(42);
+
+		TideCube cube = new TideCube(0, N - 1, 0, M - 1, 0, (HOURS - 1) * HOUR, 1);
+		float[][] levels = new float[N * M][HOURS];
+		for (int m = 0; m < M; m++) {
+			for (int n = 0; n < N; n++) {
+				for (int h = 0; h < HOURS; h++) {
+					Double level = random.nextInt(20) == 0 ? null : random.nextGaussian();
+					cube.set(n, m, 55.0 + m * 0.01, 11.0 + n * 0.01, new Date(h * HOUR), level);
+					levels[m * N + n][h] = level == null ? Float.NaN : level.floatValue();
+				}
+			}
+		}
+		cube.complete();
+
+		int failed = 0;
+		for (int i = 0; i < windows; i++) {
+			int n = random.nextInt(N);
+			int m = random.nextInt(M);
+			int first = random.nextInt(HOURS);
+			int last = first + random.nextInt(i % 2 == 0 ? Math.min(48, HOURS - first) : HOURS - first);
+
+			float lowest = Float.NaN;
+			for (int h = first; h <= last; h++) {
+				float level = levels[m * N + n][h];
+				if (Float.isNaN(lowest) || level < lowest) {
+					lowest = level;
+				}
+			}
+			float found = cube.getLowest(n, m, first, last);
+			if (Float.compare(found, lowest) != 0) {
+				System.out.println("Lowest of " + n + "," + m + " from " + first + " to " + last + " is " + lowest
+						+ ", found " + found);
+				failed++;
+			}
+		}
+
+		System.out.println(windows - failed + " of " + windows + " windows agree");
+		if (failed > 0) {
+			System.exit(1);
+		}
+	}
+
+}
@@ -0,0 +1,212 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import dk.frv.enav.shore.core.domain.DepthDenmark;
+import dk.frv.enav.shore.core.domain.TideDenmark;
+
+/**
+ * Compares the block copy of the tide points onto the depth points NogoEngine
+ * used to do with the bilinear interpolation of {@link TideLevels}
+ * for growing boxes, the tide cells spanning 8 by 5 depth cells as in the
+ * database. Prints the time of both and the largest difference in tide
+ * between neighbouring depth cells, the height of the steps.
+ * 
+ * Usage: TideInterpolationBenchmark [max cells along a side]
+ */
+public class TideInterpolationBenchmark {
+
+	private static final double STEP = 0.00055504;
+	private static final int REPEAT = 10;
+
+	public static void main(String[] args) {
+		int max = args.length > 0 ? Integer.parseInt(args[0]) : 3200;
+
+		System.out.println("cells\tblocks ms\tbilinear ms\tblocks step\tbilinear step");
+		for (int size = 100; size <= max; size *= 2) {
+			int tideN = size / 8 + 1;
+			int tideM = size / 5 + 1;
+
+			ArrayDepthGrid grid = new ArrayDepthGrid(0, size - 1, 0, size - 1);
+			for (int m = 0; m < size; m++) {
+				for (int n = 0; n < size; n++) {
+					grid.set(n, m, 55.0 + m * STEP, 11.0 + n * STEP, 0.0);
+				}
+			}
+			grid.fillCoordinates();
+
+			Date time = new Date(0);
+			TideCube cube = new TideCube(0, tideN - 1, 0, tideM - 1, time.getTime(), time.getTime(), 1);
+			List<TideDenmark> tidePoints = new ArrayList<TideDenmark>();
+			for (int m = 0; m < tideM; m++) {
+				for (int n = 0; n < tideN; n++) {
+					double level = level(n, m);
+					cube.set(n, m, 55.0 + (m * 5 + 2) * STEP, 11.0 + (n * 8 + 3.5) * STEP, time, level);
+					TideDenmark point = new TideDenmark();
+					point.setN(n);
+					point.setM(m);
+					point.setTime(new Timestamp(time.getTime()));
+					point.setDepth(level);
+					tidePoints.add(point);
+				}
+			}
+			cube.complete();
+			TideWindow window = cube.getWindow(0, 0, tideN - 1, tideM - 1, time, time);
+
+			// The block copy subtracts from the points it is given, the steps
+			// are measured after the first run
+			List<List<DepthDenmark>> lines = depthLines(size);
+			float blockStep = 0;
+			long blocks = Long.MAX_VALUE;
+			for (int r = 0; r <= REPEAT; r++) {
+				long start = System.nanoTime();
+				int j = 0;
+				for (int m = 0; m < tideM; m++) {
+					combineVertical(tidePoints.subList(m * tideN, (m + 1) * tideN), lines, j);
+					j = j + 5;
+				}
+				blocks = Math.min(blocks, System.nanoTime() - start);
+
+				for (int m = 0; r == 0 && m < size; m++) {
+					for (int n = 1; n < size; n++) {
+						blockStep = Math.max(blockStep, (float) Math.abs(lines.get(m).get(n).getDepth()
+								- lines.get(m).get(n - 1).getDepth()));
+					}
+				}
+			}
+
+			float[] depths = new float[size * size];
+			float[] row = new float[size];
+			long bilinear = Long.MAX_VALUE;
+			for (int r = 0; r <= REPEAT; r++) {
+				long start = System.nanoTime();
+				TideLevels levels = new TideLevels(grid, 0, size - 1, 0, size - 1, window);
+				for (int m = 0; m < size; m++) {
+					levels.getRow(m, 0, size - 1, row, 0);
+					for (int n = 0; n < size; n++) {
+						depths[m * size + n] = (float) grid.getDepth(n, m) - row[n];
+					}
+				}
+				bilinear = Math.min(bilinear, System.nanoTime() - start);
+			}
+
+			float bilinearStep = 0;
+			for (int m = 0; m < size; m++) {
+				for (int n = 1; n < size; n++) {
+					bilinearStep = Math.max(bilinearStep, Math.abs(depths[m * size + n] - depths[m * size + n - 1]));
+				}
+			}
+
+			System.out.println(size * size + "\t" + blocks / 1000000.0 + "\t" + bilinear / 1000000.0 + "\t"
+					+ blockStep + "\t" + bilinearStep);
+		}
+	}
+
+	/**
+	 * A smooth tide field, up to a meter from the mean
+	 */
+	private static double level(int n, int m) {
+		return Math.sin(n * 0.05) * Math.cos(m * 0.07);
+	}
+
+	/**
+	 * Subtract the levels of a line of tide points from the depth lines from
+	 * k on, in blocks of 5 lines and 8 points, as NogoEngine did before the
+	 * tide was interpolated
+	 */
+	private static void combineVertical(List<TideDenmark> currentTideLine, List<List<DepthDenmark>> lines, int k) {
+
+		// How many entries does lines has, is k + 5 > than lines.size then
+		// treat then special - end of shit
+
+		if (k + 5 > lines.size() - 1) {
+
+			for (int i = k + 1; i < lines.size(); i++) {
+				combineHorizontal(currentTideLine, lines.get(k));
+			}
+
+		} else {
+
+			// We have the line, work on the depth database part
+			for (int j = 0; j < 4; j++) {
+				// Five lines has to use the currentTideLine
+				// Each line now has to iterate through the tideline
+				combineHorizontal(currentTideLine, lines.get(k + j));
+			}
+
+		}
+
+	}
+
+	private static void combineHorizontal(List<TideDenmark> currentTideLine, List<DepthDenmark> currentDepthList) {
+
+		// Gets two lines - depth and tide
+		int j = 0;
+
+		// For each tidePoint, apply it's depth to all element in the depth
+		for (int i = 0; i < currentTideLine.size(); i++) {
+			// Apply this depth to some elements - 8 f them
+			double currentDepth = 0;
+
+			if (currentTideLine.get(i).getDepth() != null) {
+				currentDepth = currentTideLine.get(i).getDepth();
+			}
+
+			combineDepth(currentDepth, currentDepthList, j);
+
+			// Take element from
+
+			j += 8;
+		}
+
+	}
+
+	private static void combineDepth(double currentDepth, List<DepthDenmark> currentDepthList, int j) {
+
+		if (j + 8 > currentDepthList.size() - 1) {
+
+			for (int i = j + 1; i < currentDepthList.size(); i++) {
+
+				// It's null, screw it
+				if (currentDepthList.get(i).getDepth() != null) {
+					double newDepth = currentDepthList.get(i).getDepth() - currentDepth;
+					currentDepthList.get(i).setDepth(newDepth);
+				}
+			}
+
+		}
+
+		if (j + 8 <= currentDepthList.size() - 1) {
+			// j is the current position, so we need to take that + 7
+			for (int i = 0; i < 7; i++) {
+
+				// It's null, screw it
+				if (currentDepthList.get(i + j).getDepth() != null) {
+					double newDepth = currentDepthList.get(i + j).getDepth() - currentDepth;
+					currentDepthList.get(i + j).setDepth(newDepth);
+				}
+			}
+		}
+
+	}
+
+	private static List<List<DepthDenmark>> depthLines(int size) {
+		List<List<DepthDenmark>> lines = new ArrayList<List<DepthDenmark>>(size);
+		for (int m = 0; m < size; m++) {
+			List<DepthDenmark> line = new ArrayList<DepthDenmark>(size);
+			for (int n = 0; n < size; n++) {
+				DepthDenmark point = new DepthDenmark();
+				point.setN(n);
+				point.setM(m);
+				point.setDepth(0.0);
+				line.add(point);
+			}
+			lines.add(line);
+		}
+		return lines;
+	}
+
+}
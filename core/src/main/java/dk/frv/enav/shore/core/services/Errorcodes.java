@@ -24,6 +24,9 @@ public class Errorcodes {
 	public static final int NOGO_NO_DATA = 17;
 	public static final int NOGO_NO_TIDE = 18;
 	public static final int NOGO_TIMEOUT = 19;
+	public static final int NOGO_INVALID_TILE = 20;
+	public static final int NOGO_BUSY = 21;
+	public static final int NOGO_INVALID_GEOMETRY = 22;
 
 	private static Errorcodes instance = null;
 
@@ -50,6 +53,9 @@ public class Errorcodes {
 		errorMsg.put(NOGO_NO_DATA, "No data available for requested area");
 		errorMsg.put(NOGO_NO_TIDE, "No tide data available, showing static depth");
 		errorMsg.put(NOGO_TIMEOUT, "NoGo request timed out");
+		errorMsg.put(NOGO_INVALID_TILE, "Invalid NoGo tile");
+		errorMsg.put(NOGO_BUSY, "NoGo service busy, try again later");
+		errorMsg.put(NOGO_INVALID_GEOMETRY, "Geometry not supported for a NoGo time series");
 	}
 
 	public static String getErrorMessage(int errorCode) {
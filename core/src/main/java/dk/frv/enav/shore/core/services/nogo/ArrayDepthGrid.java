@@ -0,0 +1,205 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Depth grid held on the heap in flat primitive arrays. The grid is assumed to
+ * be a regular lat/lon grid, so the latitude is kept per m row and the
+ * longitude per n column.
+ */
+public class ArrayDepthGrid implements DepthGrid {
+
+	private static Logger LOG = Logger.getLogger(ArrayDepthGrid.class);
+
+	/**
+	 * Number of m rows fetched per query while loading
+	 */
+	private static final int LOAD_ROWS = 50;
+
+	private final int minN;
+	private final int minM;
+	private final int nCount;
+	private final int mCount;
+
+	private final float[] depths;
+	private final double[] lats;
+	private final double[] lons;
+
+	private GridDescriptor descriptor;
+
+	public ArrayDepthGrid(int minN, int maxN, int minM, int maxM) {
+		this.minN = minN;
+		this.minM = minM;
+		this.nCount = maxN - minN + 1;
+		this.mCount = maxM - minM + 1;
+		this.depths = new float[nCount * mCount];
+		this.lats = new double[mCount];
+		this.lons = new double[nCount];
+
+		// Cells not present in the table are open water, as with the query
+		// based lookup
+		Arrays.fill(depths, Float.NEGATIVE_INFINITY);
+		Arrays.fill(lats, Double.NaN);
+		Arrays.fill(lons, Double.NaN);
+	}
+
+	/**
+	 * Load the full depth table behind the given entity into a new grid
+	 *
+	 * @param entityManager
+	 * @param entityName
+	 *            JPQL entity name of the depth table, e.g. DepthDenmark
+	 * @return the grid or null if the table is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public static ArrayDepthGrid load(EntityManager entityManager, String entityName) {
+		Object[] bounds = (Object[]) entityManager.createQuery(
+				"SELECT min(dd.n), max(dd.n), min(dd.m), max(dd.m) FROM " + entityName + " dd").getSingleResult();
+
+		if (bounds == null || bounds[0] == null) {
+			return null;
+		}
+
+		int maxM = (Integer) bounds[3];
+		ArrayDepthGrid grid = new ArrayDepthGrid((Integer) bounds[0], (Integer) bounds[1], (Integer) bounds[2], maxM);
+
+		// Fetch a band of rows at a time to keep the result lists small
+		Query query = entityManager.createQuery("SELECT dd.n, dd.m, dd.lat, dd.lon, dd.depth FROM " + entityName + " dd "
+				+ "WHERE dd.m between :m1 AND :m2");
+
+		int count = 0;
+		for (int m = grid.minM; m <= maxM; m += LOAD_ROWS) {
+			query.setParameter("m1", m);
+			query.setParameter("m2", Math.min(m + LOAD_ROWS - 1, maxM));
+
+			List<Object[]> rows = query.getResultList();
+			for (Object[] row : rows) {
+				grid.set((Integer) row[0], (Integer) row[1], (Double) row[2], (Double) row[3], (Double) row[4]);
+			}
+			count += rows.size();
+		}
+
+		grid.fillCoordinates();
+
+		LOG.info("Loaded " + count + " depth points from " + entityName + " into a " + grid.nCount + "x" + grid.mCount
+				+ " grid");
+
+		return grid;
+	}
+
+	void set(int n, int m, double lat, double lon, Double depth) {
+		setDepth(n, m, depth == null ? Float.NaN : depth.floatValue());
+		setCoordinates(n, m, lat, lon);
+	}
+
+	/**
+	 * Set the depth of a cell, NaN for land
+	 */
+	void setDepth(int n, int m, float depth) {
+		depths[(m - minM) * nCount + n - minN] = depth;
+	}
+
+	/**
+	 * Set the latitude of the row and the longitude of the column of a cell
+	 */
+	void setCoordinates(int n, int m, double lat, double lon) {
+		lats[m - minM] = lat;
+		lons[n - minN] = lon;
+	}
+
+	/**
+	 * Interpolate coordinates for rows and columns that had no points in the
+	 * table and derive the descriptor from them
+	 */
+	void fillCoordinates() {
+		fill(lats);
+		fill(lons);
+		descriptor = GridDescriptor.fromCorners(this);
+	}
+
+	/**
+	 * Fill the NaN gaps of an evenly spaced coordinate axis by linear
+	 * interpolation, extrapolating at the ends
+	 */
+	static void fill(double[] values) {
+		int first = -1;
+		int previous = -1;
+		for (int i = 0; i < values.length; i++) {
+			if (Double.isNaN(values[i])) {
+				continue;
+			}
+			if (previous == -1) {
+				first = i;
+			} else if (i - previous > 1) {
+				double step = (values[i] - values[previous]) / (i - previous);
+				for (int j = previous + 1; j < i; j++) {
+					values[j] = values[previous] + step * (j - previous);
+				}
+			}
+			previous = i;
+		}
+
+		if (first == -1 || first == previous) {
+			return;
+		}
+		double step = (values[previous] - values[first]) / (previous - first);
+		for (int j = 0; j < first; j++) {
+			values[j] = values[first] - step * (first - j);
+		}
+		for (int j = previous + 1; j < values.length; j++) {
+			values[j] = values[previous] + step * (j - previous);
+		}
+	}
+
+	@Override
+	public int getMinN() {
+		return minN;
+	}
+
+	@Override
+	public int getMaxN() {
+		return minN + nCount - 1;
+	}
+
+	@Override
+	public int getMinM() {
+		return minM;
+	}
+
+	@Override
+	public int getMaxM() {
+		return minM + mCount - 1;
+	}
+
+	@Override
+	public double getDepth(int n, int m) {
+		int row = m - minM;
+		int col = n - minN;
+		if (row < 0 || row >= mCount || col < 0 || col >= nCount) {
+			return Double.NaN;
+		}
+		return depths[row * nCount + col];
+	}
+
+	@Override
+	public double getLat(int n, int m) {
+		return lats[m - minM];
+	}
+
+	@Override
+	public double getLon(int n, int m) {
+		return lons[n - minN];
+	}
+
+	@Override
+	public GridDescriptor getDescriptor() {
+		return descriptor;
+	}
+
+}
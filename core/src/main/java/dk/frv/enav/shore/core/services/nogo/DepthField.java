@@ -0,0 +1,92 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import dk.frv.enav.common.xml.nogo.types.BoundingBoxPoint;
+
+/**
+ * Depths of a box of grid cells with the lowest tide of the time window
+ * subtracted, the input of the no go calculation. Land is NaN and cells
+ * missing in the depth table are negative infinity.
+ */
+public class DepthField {
+
+	private final int n1;
+	private final int n2;
+	private final int m1;
+	private final int m2;
+	private final int width;
+	private final float[] depths;
+
+	private DepthField(int n1, int n2, int m1, int m2) {
+		this.n1 = n1;
+		this.n2 = n2;
+		this.m1 = m1;
+		this.m2 = m2;
+		this.width = n2 - n1 + 1;
+		this.depths = new float[width * (m2 - m1 + 1)];
+	}
+
+	/**
+	 * Read the depths of the box between two cells from a grid and subtract
+	 * the lowest sea level interpolated from the tide cells around each cell
+	 * 
+	 * @param grid
+	 * @param firstPos
+	 * @param secondPos
+	 * @param tide
+	 *            tide window or null if there is no tide data
+	 * @return
+	 */
+	public static DepthField create(DepthGrid grid, BoundingBoxPoint firstPos, BoundingBoxPoint secondPos,
+			TideWindow tide) {
+		int n1 = Math.max(Math.min(firstPos.getN(), secondPos.getN()), grid.getMinN());
+		int n2 = Math.min(Math.max(firstPos.getN(), secondPos.getN()), grid.getMaxN());
+		int m1 = Math.max(Math.min(firstPos.getM(), secondPos.getM()), grid.getMinM());
+		int m2 = Math.min(Math.max(firstPos.getM(), secondPos.getM()), grid.getMaxM());
+
+		DepthField field = new DepthField(n1, n2, m1, m2);
+
+		TideLevels levels = tide == null ? null : new TideLevels(grid, n1, n2, m1, m2, tide);
+
+		float[] row = new float[field.width];
+		int i = 0;
+		for (int m = m1; m <= m2; m++) {
+			if (levels != null) {
+				levels.getRow(m, n1, n2, row, 0);
+			}
+			for (int n = n1; n <= n2; n++) {
+				field.depths[i++] = (float) (grid.getDepth(n, m) - row[n - n1]);
+			}
+		}
+
+		return field;
+	}
+
+	/**
+	 * Is the cell no go for a ship with the given (negative) draught
+	 */
+	public boolean isNogo(int n, int m, double draught) {
+		float depth = depths[(m - m1) * width + n - n1];
+		return Float.isNaN(depth) || depth > draught;
+	}
+
+	public float getDepth(int n, int m) {
+		return depths[(m - m1) * width + n - n1];
+	}
+
+	public int getMinN() {
+		return n1;
+	}
+
+	public int getMaxN() {
+		return n2;
+	}
+
+	public int getMinM() {
+		return m1;
+	}
+
+	public int getMaxM() {
+		return m2;
+	}
+
+}
@@ -0,0 +1,20 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+/**
+ * Read only depth grid for a single NoGo region. Cells are addressed by the
+ * same (n, m) indexes as the depth tables, n running along the longitude and
+ * m along the latitude.
+ */
+public interface DepthGrid extends GeoGrid {
+
+	/**
+	 * Depth of a cell, NaN if the cell has no depth (land) or is outside the
+	 * grid
+	 *
+	 * @param n
+	 * @param m
+	 * @return
+	 */
+	double getDepth(int n, int m);
+
+}
@@ -0,0 +1,77 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Offline tool exporting a depth table to a {@link DepthGridFile}.
+ * 
+ * <pre>
+ * usage: DepthGridConverter &lt;jdbc url&gt; &lt;user&gt; &lt;password&gt; &lt;table&gt; &lt;output file&gt;
+ * e.g.   DepthGridConverter jdbc:mysql://localhost/enav enav secret humber_depth humber.grid
+ * </pre>
+ * 
+ * The output file must be named after the region, e.g. humber.grid, and placed
+ * in the directory given by the nogo_grid_dir property for the NoGo service
+ * to use it.
+ */
+public class DepthGridConverter {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 5) {
+			System.err.println("usage: DepthGridConverter <jdbc url> <user> <password> <table> <output file>");
+			System.exit(1);
+		}
+
+		Class.forName("com.mysql.jdbc.Driver");
+		Connection conn = DriverManager.getConnection(args[0], args[1], args[2]);
+		try {
+			ArrayDepthGrid grid = readTable(conn, args[3]);
+			if (grid == null) {
+				System.err.println("Table " + args[3] + " is empty");
+				System.exit(1);
+			}
+			DepthGridFile.write(grid, new File(args[4]));
+			System.out.println("Wrote " + args[4]);
+		} finally {
+			conn.close();
+		}
+	}
+
+	static ArrayDepthGrid readTable(Connection conn, String table) throws SQLException {
+		Statement stmt = conn.createStatement();
+		ArrayDepthGrid grid;
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT min(n), max(n), min(m), max(m) FROM " + table);
+			if (!rs.next() || rs.getObject(1) == null) {
+				return null;
+			}
+			grid = new ArrayDepthGrid(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4));
+			rs.close();
+		} finally {
+			stmt.close();
+		}
+
+		// Stream the rows instead of buffering the whole table in the driver
+		stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		stmt.setFetchSize(Integer.MIN_VALUE);
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT n, m, lat, lon, depth FROM " + table);
+			while (rs.next()) {
+				double depth = rs.getDouble(5);
+				grid.set(rs.getInt(1), rs.getInt(2), rs.getDouble(3), rs.getDouble(4), rs.wasNull() ? null : depth);
+			}
+			rs.close();
+		} finally {
+			stmt.close();
+		}
+
+		grid.fillCoordinates();
+		return grid;
+	}
+
+}
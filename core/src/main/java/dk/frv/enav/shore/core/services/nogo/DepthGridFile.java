@@ -0,0 +1,97 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary file format for depth grids. All values are big endian.
+ * 
+ * <pre>
+ * offset  type     field
+ *  0      int      magic "NOGO"
+ *  4      int      version
+ *  8      int      min n
+ * 12      int      min m
+ * 16      int      n count
+ * 20      int      m count
+ * 24      double   latitude of cell (min n, min m)
+ * 32      double   longitude of cell (min n, min m)
+ * 40      double   latitude step per m
+ * 48      double   longitude step per n
+ * 56      8 bytes  reserved
+ * 64      float[]  depths, m rows of n count values, NaN for land
+ * </pre>
+ */
+public final class DepthGridFile {
+
+	public static final int MAGIC = 0x4E4F474F;
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 64;
+
+	/**
+	 * File name used for the grid of a region in the grid directory
+	 */
+	public static final String EXTENSION = ".grid";
+
+	private DepthGridFile() {
+	}
+
+	/**
+	 * Write a grid to file. The origin and cell size are taken from the
+	 * corners of the grid.
+	 * 
+	 * @param grid
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void write(DepthGrid grid, File file) throws IOException {
+		int minN = grid.getMinN();
+		int minM = grid.getMinM();
+		int nCount = grid.getMaxN() - minN + 1;
+		int mCount = grid.getMaxM() - minM + 1;
+
+		double originLat = grid.getLat(minN, minM);
+		double originLon = grid.getLon(minN, minM);
+		double latStep = mCount > 1 ? (grid.getLat(minN, grid.getMaxM()) - originLat) / (mCount - 1) : 0;
+		double lonStep = nCount > 1 ? (grid.getLon(grid.getMaxN(), minM) - originLon) / (nCount - 1) : 0;
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		writeHeader(header, minN, minM, nCount, mCount, originLat, originLon, latStep, lonStep);
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			out.write(header.array());
+
+			for (int m = minM; m <= grid.getMaxM(); m++) {
+				for (int n = minN; n <= grid.getMaxN(); n++) {
+					out.writeFloat((float) grid.getDepth(n, m));
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Write the header at the start of a buffer
+	 */
+	public static void writeHeader(ByteBuffer buffer, int minN, int minM, int nCount, int mCount, double originLat,
+			double originLon, double latStep, double lonStep) {
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putInt(8, minN);
+		buffer.putInt(12, minM);
+		buffer.putInt(16, nCount);
+		buffer.putInt(20, mCount);
+		buffer.putDouble(24, originLat);
+		buffer.putDouble(32, originLon);
+		buffer.putDouble(40, latStep);
+		buffer.putDouble(48, lonStep);
+		buffer.putLong(56, 0);
+	}
+
+}
@@ -0,0 +1,307 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.Arrays;
+
+/**
+ * Minimum and maximum depth of square blocks of a depth grid, in levels of
+ * blocks doubling in size. Blocks that are all deep water or all no go for a
+ * draught are settled from the block alone, so only the blocks along the
+ * coastline are classified cell by cell. Classifying stops at the next row of
+ * cells when the thread is interrupted.
+ */
+public class DepthPyramid {
+
+	/**
+	 * Side of the smallest blocks in cells
+	 */
+	static final int BLOCK = 8;
+
+	private final DepthGrid grid;
+	private final int minN;
+	private final int minM;
+
+	/**
+	 * Number of blocks along n and m on each level
+	 */
+	private final int[] blocksN;
+	private final int[] blocksM;
+
+	/**
+	 * Lowest and highest depth of each block ignoring land, and whether the
+	 * block has land
+	 */
+	private final float[][] min;
+	private final float[][] max;
+	private final boolean[][] land;
+
+	public DepthPyramid(DepthGrid grid) {
+		this.grid = grid;
+		this.minN = grid.getMinN();
+		this.minM = grid.getMinM();
+
+		int width = grid.getMaxN() - minN + 1;
+		int height = grid.getMaxM() - minM + 1;
+		int levels = 1;
+		while ((BLOCK << (levels - 1)) < Math.max(width, height)) {
+			levels++;
+		}
+
+		blocksN = new int[levels];
+		blocksM = new int[levels];
+		min = new float[levels][];
+		max = new float[levels][];
+		land = new boolean[levels][];
+
+		for (int k = 0; k < levels; k++) {
+			int size = BLOCK << k;
+			blocksN[k] = (width + size - 1) / size;
+			blocksM[k] = (height + size - 1) / size;
+			int blocks = blocksN[k] * blocksM[k];
+			min[k] = new float[blocks];
+			max[k] = new float[blocks];
+			land[k] = new boolean[blocks];
+			Arrays.fill(min[k], Float.POSITIVE_INFINITY);
+			Arrays.fill(max[k], Float.NEGATIVE_INFINITY);
+		}
+
+		for (int j = 0; j < height; j++) {
+			int row = (j / BLOCK) * blocksN[0];
+			for (int i = 0; i < width; i++) {
+				int b = row + i / BLOCK;
+				float depth = (float) grid.getDepth(minN + i, minM + j);
+				if (Float.isNaN(depth)) {
+					land[0][b] = true;
+				} else {
+					min[0][b] = Math.min(min[0][b], depth);
+					max[0][b] = Math.max(max[0][b], depth);
+				}
+			}
+		}
+
+		for (int k = 1; k < levels; k++) {
+			for (int bm = 0; bm < blocksM[k - 1]; bm++) {
+				for (int bn = 0; bn < blocksN[k - 1]; bn++) {
+					int child = bm * blocksN[k - 1] + bn;
+					int parent = (bm / 2) * blocksN[k] + bn / 2;
+					min[k][parent] = Math.min(min[k][parent], min[k - 1][child]);
+					max[k][parent] = Math.max(max[k][parent], max[k - 1][child]);
+					land[k][parent] |= land[k - 1][child];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Classify the cells of a box into a mask. A block is skipped if it has no
+	 * land and its shallowest cell clears the draught at the lowest tide of
+	 * the box, and filled whole if its deepest cell is no go even at the
+	 * highest of the lowest tides of the box.
+	 *
+	 * @param n1
+	 * @param n2
+	 * @param m1
+	 * @param m2
+	 * @param tide
+	 *            lowest tide of each cell or null if there is no tide data
+	 * @param draught
+	 * @return
+	 */
+	public NogoMask classify(int n1, int n2, int m1, int m2, TideLevels tide, double draught) {
+		NogoMask mask = new NogoMask(n1, n2, m1, m2);
+		classify(mask, n1, n2, m1, m2, tide, draught);
+		return mask;
+	}
+
+	/**
+	 * Classify the cells of a box into an existing mask holding the box, to
+	 * build a mask of any shape from boxes
+	 */
+	public void classify(NogoMask mask, int n1, int n2, int m1, int m2, TideLevels tide, double draught) {
+		classify(new NogoMask[] { mask }, n1, n2, m1, m2, tide, new double[] { draught });
+	}
+
+	/**
+	 * Classify the cells of a box for several draughts in one pass, into a
+	 * mask for each. A cell no go for a draught is no go for all deeper
+	 * draughts, so each block and cell is only compared to the draughts it is
+	 * not settled for yet.
+	 *
+	 * @param masks
+	 *            mask of each draught, holding the box
+	 * @param n1
+	 * @param n2
+	 * @param m1
+	 * @param m2
+	 * @param tide
+	 *            lowest tide of each cell or null if there is no tide data
+	 * @param draughts
+	 *            draughts in increasing order, the deepest first
+	 */
+	public void classify(NogoMask[] masks, int n1, int n2, int m1, int m2, TideLevels tide, double[] draughts) {
+		double lowTide = tide == null ? 0 : tide.getMin();
+		double highTide = tide == null ? 0 : tide.getMax();
+
+		int top = min.length - 1;
+		for (int bm = 0; bm < blocksM[top]; bm++) {
+			for (int bn = 0; bn < blocksN[top]; bn++) {
+				classify(masks, top, bn, bm, n1, n2, m1, m2, tide, lowTide, highTide, draughts, 0, draughts.length);
+			}
+		}
+	}
+
+	/**
+	 * Classify a block for the draughts from first to last, excluded
+	 */
+	private void classify(NogoMask[] masks, int k, int bn, int bm, int n1, int n2, int m1, int m2, TideLevels tide,
+			double lowTide, double highTide, double[] draughts, int first, int last) {
+		int size = BLOCK << k;
+		int fromN = Math.max(n1, minN + bn * size);
+		int toN = Math.min(n2, minN + (bn + 1) * size - 1);
+		int fromM = Math.max(m1, minM + bm * size);
+		int toM = Math.min(m2, minM + (bm + 1) * size - 1);
+		if (fromN > toN || fromM > toM) {
+			return;
+		}
+
+		int b = bm * blocksN[k] + bn;
+		int open = last;
+		while (open > first && !land[k][b] && max[k][b] - lowTide <= draughts[open - 1]) {
+			open--;
+		}
+		int full = first;
+		while (full < open && min[k][b] - highTide > draughts[full]) {
+			for (int m = fromM; m <= toM; m++) {
+				masks[full].setRange(fromN, toN, m);
+			}
+			full++;
+		}
+		if (full == open) {
+			return;
+		}
+
+		if (k > 0) {
+			for (int cm = bm * 2; cm <= bm * 2 + 1 && cm < blocksM[k - 1]; cm++) {
+				for (int cn = bn * 2; cn <= bn * 2 + 1 && cn < blocksN[k - 1]; cn++) {
+					classify(masks, k - 1, cn, cm, n1, n2, m1, m2, tide, lowTide, highTide, draughts, full, open);
+				}
+			}
+			return;
+		}
+
+		// Along the coast, cell by cell as in DepthField
+		float[] levels = new float[toN - fromN + 1];
+		for (int m = fromM; m <= toM; m++) {
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+			if (tide != null) {
+				tide.getRow(m, fromN, toN, levels, 0);
+			}
+			for (int n = fromN; n <= toN; n++) {
+				float value = (float) (grid.getDepth(n, m) - levels[n - fromN]);
+				for (int t = full; t < open && (Float.isNaN(value) || value > draughts[t]); t++) {
+					masks[t].set(n, m);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Update a mask classified at one tide to another tide, such as the next
+	 * hour. Only the blocks under tide cells that changed and with depths
+	 * between the draught at the old and new levels of those tide cells are
+	 * visited, and only the cells whose tide changed are classified again. The cells turning no go are set in added and the cells turning
+	 * clear in removed.
+	 *
+	 * @param mask
+	 *            mask classified at the tide before, holding the box
+	 * @param added
+	 *            mask holding the box
+	 * @param removed
+	 *            mask holding the box
+	 * @param n1
+	 * @param n2
+	 * @param m1
+	 * @param m2
+	 * @param before
+	 *            tide the mask is classified at or null if there is no tide
+	 *            data
+	 * @param after
+	 *            tide to classify at or null if there is no tide data
+	 * @param draught
+	 */
+	public void reclassify(NogoMask mask, NogoMask added, NogoMask removed, int n1, int n2, int m1, int m2,
+			TideLevels before, TideLevels after, double draught) {
+		if (before == null || after == null) {
+			return;
+		}
+
+		float[] range = new float[2];
+		int top = min.length - 1;
+		for (int bm = 0; bm < blocksM[top]; bm++) {
+			for (int bn = 0; bn < blocksN[top]; bn++) {
+				reclassify(mask, added, removed, top, bn, bm, n1, n2, m1, m2, before, after, draught, range);
+			}
+		}
+	}
+
+	private void reclassify(NogoMask mask, NogoMask added, NogoMask removed, int k, int bn, int bm, int n1, int n2,
+			int m1, int m2, TideLevels before, TideLevels after, double draught, float[] range) {
+		int size = BLOCK << k;
+		int fromN = Math.max(n1, minN + bn * size);
+		int toN = Math.min(n2, minN + (bn + 1) * size - 1);
+		int fromM = Math.max(m1, minM + bm * size);
+		int toM = Math.min(m2, minM + (bm + 1) * size - 1);
+		if (fromN > toN || fromM > toM) {
+			return;
+		}
+
+		// No tide change, or clear at both tides or no go at both. Land never
+		// changes.
+		if (!before.changeRange(after, fromN, toN, fromM, toM, range)) {
+			return;
+		}
+		int b = bm * blocksN[k] + bn;
+		if (max[k][b] - range[0] <= draught || min[k][b] - range[1] > draught) {
+			return;
+		}
+
+		if (k > 0) {
+			for (int cm = bm * 2; cm <= bm * 2 + 1 && cm < blocksM[k - 1]; cm++) {
+				for (int cn = bn * 2; cn <= bn * 2 + 1 && cn < blocksN[k - 1]; cn++) {
+					reclassify(mask, added, removed, k - 1, cn, cm, n1, n2, m1, m2, before, after, draught, range);
+				}
+			}
+			return;
+		}
+
+		for (int m = fromM; m <= toM; m++) {
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+			for (int n = fromN; n <= toN; n++) {
+				float level = after.get(n, m);
+				if (level == before.get(n, m)) {
+					continue;
+				}
+				float value = (float) (grid.getDepth(n, m) - level);
+				boolean nogo = Float.isNaN(value) || value > draught;
+				if (nogo == mask.isSet(n, m)) {
+					continue;
+				}
+				if (nogo) {
+					mask.set(n, m);
+					added.set(n, m);
+				} else {
+					mask.clear(n, m);
+					removed.set(n, m);
+				}
+			}
+		}
+	}
+
+	public DepthGrid getGrid() {
+		return grid;
+	}
+
+}
@@ -0,0 +1,29 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+/**
+ * Grid of cells addressed by (n, m) with a known position for every cell, n
+ * running along the longitude and m along the latitude.
+ */
+public interface GeoGrid {
+
+	int getMinN();
+
+	int getMaxN();
+
+	int getMinM();
+
+	int getMaxM();
+
+	double getLat(int n, int m);
+
+	double getLon(int n, int m);
+
+	/**
+	 * Regular lat/lon description of the grid, used to go from a position to
+	 * a cell without searching
+	 *
+	 * @return
+	 */
+	GridDescriptor getDescriptor();
+
+}
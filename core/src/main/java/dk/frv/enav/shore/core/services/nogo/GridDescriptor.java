@@ -0,0 +1,182 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import dk.frv.ais.geo.GeoLocation;
+import dk.frv.enav.common.xml.nogo.types.BoundingBoxPoint;
+
+/**
+ * Georeferencing of a regular lat/lon grid. The cell (n, m) is centered at
+ * originLat + (m - minM) * latStep, originLon + (n - minN) * lonStep, so a
+ * position is mapped to its cell with a bit of arithmetic.
+ */
+public class GridDescriptor {
+
+	private final int minN;
+	private final int maxN;
+	private final int minM;
+	private final int maxM;
+	private final double originLat;
+	private final double originLon;
+	private final double latStep;
+	private final double lonStep;
+
+	public GridDescriptor(int minN, int maxN, int minM, int maxM, double originLat, double originLon, double latStep,
+			double lonStep) {
+		this.minN = minN;
+		this.maxN = maxN;
+		this.minM = minM;
+		this.maxM = maxM;
+		this.originLat = originLat;
+		this.originLon = originLon;
+		this.latStep = latStep;
+		this.lonStep = lonStep;
+	}
+
+	/**
+	 * Describe a grid from the positions of its corner cells
+	 *
+	 * @param grid
+	 * @return
+	 */
+	public static GridDescriptor fromCorners(GeoGrid grid) {
+		int minN = grid.getMinN();
+		int maxN = grid.getMaxN();
+		int minM = grid.getMinM();
+		int maxM = grid.getMaxM();
+		double originLat = grid.getLat(minN, minM);
+		double originLon = grid.getLon(minN, minM);
+		double latStep = maxM > minM ? (grid.getLat(minN, maxM) - originLat) / (maxM - minM) : 0;
+		double lonStep = maxN > minN ? (grid.getLon(maxN, minM) - originLon) / (maxN - minN) : 0;
+		return new GridDescriptor(minN, maxN, minM, maxM, originLat, originLon, latStep, lonStep);
+	}
+
+	/**
+	 * Fractional m coordinate of a latitude, not clamped to the grid
+	 */
+	public double fractionalM(double lat) {
+		return latStep == 0 ? minM : minM + (lat - originLat) / latStep;
+	}
+
+	/**
+	 * Fractional n coordinate of a longitude, not clamped to the grid
+	 */
+	public double fractionalN(double lon) {
+		return lonStep == 0 ? minN : minN + (lon - originLon) / lonStep;
+	}
+
+	/**
+	 * Nearest m row of a latitude, clamped to the grid
+	 */
+	public int toM(double lat) {
+		return clamp((int) Math.round(fractionalM(lat)), minM, maxM);
+	}
+
+	/**
+	 * Nearest n column of a longitude, clamped to the grid
+	 */
+	public int toN(double lon) {
+		return clamp((int) Math.round(fractionalN(lon)), minN, maxN);
+	}
+
+	/**
+	 * Is the position within the grid or less than one cell outside it
+	 */
+	public boolean contains(double lat, double lon) {
+		double m = fractionalM(lat);
+		double n = fractionalN(lon);
+		return m >= minM - 1 && m <= maxM + 1 && n >= minN - 1 && n <= maxN + 1;
+	}
+
+	/**
+	 * Find the cell nearest to a position. The estimate from the regular grid
+	 * is refined against the exact cell positions of its neighbours, which
+	 * matters for cells at the edges of an irregular grid.
+	 *
+	 * @param pos
+	 * @param grid
+	 *            grid holding the exact cell positions
+	 * @return the cell or null if the position is outside the grid
+	 */
+	public BoundingBoxPoint locate(GeoLocation pos, GeoGrid grid) {
+		if (!contains(pos.getLatitude(), pos.getLongitude())) {
+			return null;
+		}
+
+		int n0 = toN(pos.getLongitude());
+		int m0 = toM(pos.getLatitude());
+
+		int bestN = n0;
+		int bestM = m0;
+		double bestDistance = Double.MAX_VALUE;
+		for (int m = Math.max(minM, m0 - 1); m <= Math.min(maxM, m0 + 1); m++) {
+			for (int n = Math.max(minN, n0 - 1); n <= Math.min(maxN, n0 + 1); n++) {
+				double distance = pos.getGeodesicDistance(new GeoLocation(grid.getLat(n, m), grid.getLon(n, m)));
+				if (distance < bestDistance) {
+					bestDistance = distance;
+					bestN = n;
+					bestM = m;
+				}
+			}
+		}
+
+		return new BoundingBoxPoint(bestN, bestM);
+	}
+
+	/**
+	 * Latitude of a fractional m coordinate
+	 */
+	public double toLat(double m) {
+		return originLat + (m - minM) * latStep;
+	}
+
+	/**
+	 * Longitude of a fractional n coordinate
+	 */
+	public double toLon(double n) {
+		return originLon + (n - minN) * lonStep;
+	}
+
+	public double getLat(int m) {
+		return originLat + (m - minM) * latStep;
+	}
+
+	public double getLon(int n) {
+		return originLon + (n - minN) * lonStep;
+	}
+
+	public int getMinN() {
+		return minN;
+	}
+
+	public int getMaxN() {
+		return maxN;
+	}
+
+	public int getMinM() {
+		return minM;
+	}
+
+	public int getMaxM() {
+		return maxM;
+	}
+
+	public double getOriginLat() {
+		return originLat;
+	}
+
+	public double getOriginLon() {
+		return originLon;
+	}
+
+	public double getLatStep() {
+		return latStep;
+	}
+
+	public double getLonStep() {
+		return lonStep;
+	}
+
+	private static int clamp(int value, int min, int max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+}
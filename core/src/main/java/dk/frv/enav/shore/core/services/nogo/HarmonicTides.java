@@ -0,0 +1,527 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sea levels predicted from the harmonic constituents of each tide cell,
+ * instead of read from the hourly tide table. The level of a cell t hours
+ * after the epoch is the mean plus a cos(speed t) + b sin(speed t) of each
+ * constituent, so a cell takes a few floats however long the windows asked
+ * for are, and any time can be predicted. Nodal corrections are left out,
+ * which drifts by a few percent of the amplitudes a year from the epoch.
+ *
+ * The constituents are read from a text file, or fitted by least squares to
+ * the hourly levels of a {@link TideCube} and written to one. A fit leaves
+ * out the constituents the length of the record cannot tell apart.
+ */
+public class HarmonicTides implements TideSource {
+
+	private static Logger LOG = Logger.getLogger(HarmonicTides.class);
+
+	private static final long HOUR = 3600 * 1000L;
+
+	/**
+	 * Hours the table of cosines and sines reaches past a window, so windows
+	 * of nearby requests share it
+	 */
+	private static final int BASIS_MARGIN = 24 * 7;
+
+	/**
+	 * Known constituents in the order they are fitted and their speeds in
+	 * degrees per hour
+	 */
+	private static final String[] NAMES = { "M2", "S2", "K1", "O1", "N2", "M4", "K2", "P1", "Q1" };
+	private static final double[] SPEEDS = { 28.9841042, 30.0, 15.0410686, 13.9430356, 28.4397295, 57.9682084,
+			30.0821373, 14.9589314, 13.3986609 };
+
+	private final int minN;
+	private final int minM;
+	private final int nCount;
+	private final int mCount;
+	private final long epoch;
+
+	/**
+	 * Names and speeds in radians per hour of the constituents used
+	 */
+	private final String[] names;
+	private final double[] speeds;
+
+	/**
+	 * Mean level of each cell, NaN for cells without constituents, and the a
+	 * and b of each constituent of each cell
+	 */
+	private final float[] means;
+	private final float[] coefficients;
+
+	private final double[] lats;
+	private final double[] lons;
+
+	private GridDescriptor descriptor;
+
+	private volatile Basis basis;
+
+	/**
+	 * Cosines and sines of the constituents for each hour from first to last
+	 */
+	private static class Basis {
+		final int first;
+		final int last;
+		final float[] values;
+
+		Basis(int first, int last, double[] speeds) {
+			this.first = first;
+			this.last = last;
+			values = new float[(last - first + 1) * speeds.length * 2];
+			int i = 0;
+			for (int hour = first; hour <= last; hour++) {
+				for (double speed : speeds) {
+					values[i++] = (float) Math.cos(speed * hour);
+					values[i++] = (float) Math.sin(speed * hour);
+				}
+			}
+		}
+	}
+
+	HarmonicTides(int minN, int maxN, int minM, int maxM, long epoch, String[] names) {
+		this.minN = minN;
+		this.minM = minM;
+		this.nCount = maxN - minN + 1;
+		this.mCount = maxM - minM + 1;
+		this.epoch = epoch;
+		this.names = names;
+		this.speeds = new double[names.length];
+		for (int k = 0; k < names.length; k++) {
+			speeds[k] = Math.toRadians(SPEEDS[indexOf(names[k])]);
+		}
+
+		means = new float[nCount * mCount];
+		coefficients = new float[nCount * mCount * names.length * 2];
+		Arrays.fill(means, Float.NaN);
+
+		lats = new double[mCount];
+		lons = new double[nCount];
+		Arrays.fill(lats, Double.NaN);
+		Arrays.fill(lons, Double.NaN);
+	}
+
+	private static int indexOf(String name) {
+		for (int k = 0; k < NAMES.length; k++) {
+			if (NAMES[k].equals(name)) {
+				return k;
+			}
+		}
+		throw new IllegalArgumentException("Unknown tide constituent " + name);
+	}
+
+	/**
+	 * Set the constituents of a cell
+	 *
+	 * @param ab
+	 *            a and b of each constituent
+	 */
+	void set(int n, int m, double lat, double lon, float mean, float[] ab) {
+		int cell = (m - minM) * nCount + (n - minN);
+		means[cell] = mean;
+		System.arraycopy(ab, 0, coefficients, cell * ab.length, ab.length);
+		lats[m - minM] = lat;
+		lons[n - minN] = lon;
+	}
+
+	/**
+	 * Fill in the positions of rows and columns without cells and
+	 * georeference the grid
+	 */
+	void complete() {
+		ArrayDepthGrid.fill(lats);
+		ArrayDepthGrid.fill(lons);
+		descriptor = GridDescriptor.fromCorners(this);
+	}
+
+	/**
+	 * Fit the constituents of each cell of a cube to its hourly levels by
+	 * least squares, with the start of the cube as the epoch. A constituent is
+	 * only fitted if the record is long enough to tell it apart from the
+	 * mean and the constituents before it, by the Rayleigh criterion.
+	 *
+	 * @param cube
+	 * @return
+	 */
+	public static HarmonicTides fit(TideCube cube) {
+		int hours = cube.getHours();
+		List<String> chosen = new ArrayList<String>();
+		List<Double> chosenSpeeds = new ArrayList<Double>();
+		for (int k = 0; k < NAMES.length; k++) {
+			boolean resolved = hours * SPEEDS[k] >= 360;
+			for (int j = 0; resolved && j < chosenSpeeds.size(); j++) {
+				resolved = hours * Math.abs(SPEEDS[k] - chosenSpeeds.get(j)) >= 360;
+			}
+			if (resolved) {
+				chosen.add(NAMES[k]);
+				chosenSpeeds.add(SPEEDS[k]);
+			}
+		}
+
+		HarmonicTides tides = new HarmonicTides(cube.getMinN(), cube.getMaxN(), cube.getMinM(), cube.getMaxM(),
+				cube.getStartTime(), chosen.toArray(new String[chosen.size()]));
+		int size = 1 + tides.speeds.length * 2;
+
+		// Unknowns are the mean and the a and b of each constituent, the
+		// normal equations of a cell with all hours are shared by all cells
+		double[][] rows = new double[hours][size];
+		double[] full = new double[size * size];
+		for (int hour = 0; hour < hours; hour++) {
+			double[] row = rows[hour];
+			row[0] = 1;
+			for (int k = 0; k < tides.speeds.length; k++) {
+				row[1 + k * 2] = Math.cos(tides.speeds[k] * hour);
+				row[2 + k * 2] = Math.sin(tides.speeds[k] * hour);
+			}
+			addOuter(full, row, 1);
+		}
+
+		double[] normal = new double[size * size];
+		double[] rhs = new double[size];
+		float[] ab = new float[size - 1];
+		for (int m = cube.getMinM(); m <= cube.getMaxM(); m++) {
+			for (int n = cube.getMinN(); n <= cube.getMaxN(); n++) {
+				System.arraycopy(full, 0, normal, 0, full.length);
+				Arrays.fill(rhs, 0);
+				int count = 0;
+				double sum = 0;
+				for (int hour = 0; hour < hours; hour++) {
+					float level = cube.getLevel(n, m, hour);
+					if (Float.isNaN(level)) {
+						addOuter(normal, rows[hour], -1);
+						continue;
+					}
+					for (int i = 0; i < size; i++) {
+						rhs[i] += level * rows[hour][i];
+					}
+					count++;
+					sum += level;
+				}
+				if (count == 0) {
+					continue;
+				}
+
+				// Too few levels for the constituents, keep the mean
+				Arrays.fill(ab, 0);
+				float mean = (float) (sum / count);
+				if (count >= size && solve(normal, rhs, size)) {
+					mean = (float) rhs[0];
+					for (int i = 1; i < size; i++) {
+						ab[i - 1] = (float) rhs[i];
+					}
+				}
+				tides.set(n, m, cube.getLat(n, m), cube.getLon(n, m), mean, ab);
+			}
+		}
+		tides.complete();
+
+		LOG.info("Fitted " + Arrays.toString(tides.names) + " to " + hours + " hours of a " + tides.nCount + "x"
+				+ tides.mCount + " tide cube");
+		return tides;
+	}
+
+	private static void addOuter(double[] matrix, double[] row, double sign) {
+		for (int i = 0; i < row.length; i++) {
+			for (int j = 0; j < row.length; j++) {
+				matrix[i * row.length + j] += sign * row[i] * row[j];
+			}
+		}
+	}
+
+	/**
+	 * Solve a symmetric system in place by Gaussian elimination with partial
+	 * pivoting, leaving the solution in rhs
+	 *
+	 * @return false if the system is singular
+	 */
+	private static boolean solve(double[] a, double[] rhs, int size) {
+		for (int col = 0; col < size; col++) {
+			int pivot = col;
+			for (int row = col + 1; row < size; row++) {
+				if (Math.abs(a[row * size + col]) > Math.abs(a[pivot * size + col])) {
+					pivot = row;
+				}
+			}
+			if (Math.abs(a[pivot * size + col]) < 1e-9) {
+				return false;
+			}
+			if (pivot != col) {
+				for (int i = 0; i < size; i++) {
+					double t = a[col * size + i];
+					a[col * size + i] = a[pivot * size + i];
+					a[pivot * size + i] = t;
+				}
+				double t = rhs[col];
+				rhs[col] = rhs[pivot];
+				rhs[pivot] = t;
+			}
+			for (int row = col + 1; row < size; row++) {
+				double f = a[row * size + col] / a[col * size + col];
+				for (int i = col; i < size; i++) {
+					a[row * size + i] -= f * a[col * size + i];
+				}
+				rhs[row] -= f * rhs[col];
+			}
+		}
+		for (int row = size - 1; row >= 0; row--) {
+			double sum = rhs[row];
+			for (int i = row + 1; i < size; i++) {
+				sum -= a[row * size + i] * rhs[i];
+			}
+			rhs[row] = sum / a[row * size + row];
+		}
+		return true;
+	}
+
+	/**
+	 * Read the constituents from a file written by {@link #write(File)}
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static HarmonicTides load(File file) throws IOException {
+		long epoch = 0;
+		String[] names = null;
+		List<double[]> cells = new ArrayList<double[]>();
+
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				try {
+					if (fields[0].equals("epoch")) {
+						epoch = Long.parseLong(fields[1]);
+					} else if (fields[0].equals("constituents")) {
+						names = Arrays.copyOfRange(fields, 1, fields.length);
+					} else {
+						double[] cell = new double[fields.length];
+						for (int i = 0; i < fields.length; i++) {
+							cell[i] = Double.parseDouble(fields[i]);
+						}
+						cells.add(cell);
+					}
+				} catch (RuntimeException e) {
+					throw new IOException("Invalid line in " + file + ": " + line);
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		if (names == null || cells.isEmpty()) {
+			throw new IOException("No tide constituents in " + file);
+		}
+
+		int minN = Integer.MAX_VALUE;
+		int maxN = Integer.MIN_VALUE;
+		int minM = Integer.MAX_VALUE;
+		int maxM = Integer.MIN_VALUE;
+		for (double[] cell : cells) {
+			if (cell.length != 5 + names.length * 2) {
+				throw new IOException("Expected " + names.length + " constituents for each cell in " + file);
+			}
+			minN = Math.min(minN, (int) cell[0]);
+			maxN = Math.max(maxN, (int) cell[0]);
+			minM = Math.min(minM, (int) cell[1]);
+			maxM = Math.max(maxM, (int) cell[1]);
+		}
+
+		HarmonicTides tides;
+		try {
+			tides = new HarmonicTides(minN, maxN, minM, maxM, epoch, names);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage() + " in " + file);
+		}
+
+		// Amplitude in meters and phase in degrees to a and b
+		float[] ab = new float[names.length * 2];
+		for (double[] cell : cells) {
+			for (int k = 0; k < names.length; k++) {
+				double amplitude = cell[5 + k * 2];
+				double phase = Math.toRadians(cell[6 + k * 2]);
+				ab[k * 2] = (float) (amplitude * Math.cos(phase));
+				ab[k * 2 + 1] = (float) (amplitude * Math.sin(phase));
+			}
+			tides.set((int) cell[0], (int) cell[1], cell[2], cell[3], (float) cell[4], ab);
+		}
+		tides.complete();
+
+		LOG.info("Loaded " + Arrays.toString(names) + " of " + cells.size() + " tide cells from " + file);
+		return tides;
+	}
+
+	/**
+	 * Write the constituents to a file: the epoch in milliseconds, the names
+	 * of the constituents, then a line per cell with n, m, lat, lon, the mean
+	 * level and the amplitude in meters and phase in degrees of each
+	 * constituent
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println("# Harmonic tide constituents, level = mean + amplitude * cos(speed * hours since epoch - phase)");
+			out.println("epoch " + epoch);
+			StringBuilder header = new StringBuilder("constituents");
+			for (String name : names) {
+				header.append(' ').append(name);
+			}
+			out.println(header);
+
+			for (int m = 0; m < mCount; m++) {
+				for (int n = 0; n < nCount; n++) {
+					int cell = m * nCount + n;
+					if (Float.isNaN(means[cell])) {
+						continue;
+					}
+					StringBuilder line = new StringBuilder();
+					line.append(minN + n).append(' ').append(minM + m).append(' ').append(lats[m]).append(' ')
+							.append(lons[n]).append(' ').append(means[cell]);
+					for (int k = 0; k < names.length; k++) {
+						double a = coefficients[(cell * names.length + k) * 2];
+						double b = coefficients[(cell * names.length + k) * 2 + 1];
+						line.append(' ').append((float) Math.sqrt(a * a + b * b)).append(' ')
+								.append((float) Math.toDegrees(Math.atan2(b, a)));
+					}
+					out.println(line);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if (out.checkError()) {
+			throw new IOException("Failed to write " + file);
+		}
+	}
+
+	/**
+	 * The table of cosines and sines covering hours first to last, shared
+	 * until a window falls outside it
+	 */
+	private Basis basis(int first, int last) {
+		Basis current = basis;
+		if (current != null && current.first <= first && current.last >= last) {
+			return current;
+		}
+		current = new Basis(first - BASIS_MARGIN, last + BASIS_MARGIN, speeds);
+		basis = current;
+		return current;
+	}
+
+	@Override
+	public TideWindow getWindow(int n1, int m1, int n2, int m2, Date start, Date end) {
+		int h1 = (int) Math.floor((start.getTime() - epoch) / (double) HOUR);
+		int h2 = (int) Math.floor((end.getTime() - epoch) / (double) HOUR);
+		if (h2 < h1) {
+			return null;
+		}
+
+		int nMin = Math.max(Math.min(n1, n2), minN);
+		int nMax = Math.min(Math.max(n1, n2), getMaxN());
+		int mMin = Math.max(Math.min(m1, m2), minM);
+		int mMax = Math.min(Math.max(m1, m2), getMaxM());
+		if (nMax < nMin || mMax < mMin) {
+			return null;
+		}
+
+		return new TideWindow(this, nMin, nMax, mMin, mMax, h1, h2);
+	}
+
+	@Override
+	public float getLevel(int n, int m, int hour) {
+		return getLowest(n, m, hour, hour);
+	}
+
+	@Override
+	public float getLowest(int n, int m, int first, int last) {
+		int cell = (m - minM) * nCount + (n - minN);
+		float mean = means[cell];
+		if (Float.isNaN(mean)) {
+			return Float.NaN;
+		}
+
+		Basis table = basis(first, last);
+		int width = speeds.length * 2;
+		int base = cell * width;
+		float lowest = Float.POSITIVE_INFINITY;
+		for (int hour = first; hour <= last; hour++) {
+			int offset = (hour - table.first) * width;
+			float level = mean;
+			for (int i = 0; i < width; i++) {
+				level += coefficients[base + i] * table.values[offset + i];
+			}
+			lowest = Math.min(lowest, level);
+		}
+		return lowest;
+	}
+
+	@Override
+	public long getStartTime() {
+		return epoch;
+	}
+
+	/**
+	 * Names of the constituents used
+	 */
+	public String[] getConstituents() {
+		return names.clone();
+	}
+
+	@Override
+	public int getMinN() {
+		return minN;
+	}
+
+	@Override
+	public int getMaxN() {
+		return minN + nCount - 1;
+	}
+
+	@Override
+	public int getMinM() {
+		return minM;
+	}
+
+	@Override
+	public int getMaxM() {
+		return minM + mCount - 1;
+	}
+
+	@Override
+	public double getLat(int n, int m) {
+		return lats[m - minM];
+	}
+
+	@Override
+	public double getLon(int n, int m) {
+		return lons[n - minN];
+	}
+
+	@Override
+	public GridDescriptor getDescriptor() {
+		return descriptor;
+	}
+
+}
@@ -0,0 +1,127 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.Arrays;
+
+/**
+ * No go runs of a whole depth grid without tide, precomputed for a ladder of
+ * draughts step meters apart. The runs of each draught are indexed by row, so
+ * the runs of a box are cut out without looking at the grid.
+ * 
+ * A request is served from the nearest draught of the ladder at or below its
+ * own, which gives the same or a slightly larger no go area.
+ */
+public class IsobathLadder {
+
+	private final DepthPyramid pyramid;
+	private final double step;
+	private final int minM;
+	private final int maxM;
+
+	/**
+	 * m, first n and last n of the runs of each draught, ordered by m and n
+	 */
+	private final int[][] runs;
+
+	/**
+	 * Index of the first run of each row, and one past the last run
+	 */
+	private final int[][] rowStart;
+
+	/**
+	 * Build the ladder for the draughts 0, -step, -2 * step and so on
+	 * 
+	 * @param pyramid
+	 * @param step
+	 *            meters between the draughts
+	 * @param count
+	 *            number of draughts
+	 */
+	public IsobathLadder(DepthPyramid pyramid, double step, int count) {
+		this.pyramid = pyramid;
+		this.step = step;
+		DepthGrid grid = pyramid.getGrid();
+		this.minM = grid.getMinM();
+		this.maxM = grid.getMaxM();
+		this.runs = new int[count][];
+		this.rowStart = new int[count][];
+
+		for (int k = 0; k < count; k++) {
+			int[] draughtRuns = pyramid.classify(grid.getMinN(), grid.getMaxN(), minM, maxM, null, -k * step)
+					.findRuns();
+			int[] start = new int[maxM - minM + 2];
+			int r = 0;
+			for (int m = minM; m <= maxM + 1; m++) {
+				while (r < draughtRuns.length && draughtRuns[r] < m) {
+					r += 3;
+				}
+				start[m - minM] = r / 3;
+			}
+			runs[k] = draughtRuns;
+			rowStart[k] = start;
+		}
+	}
+
+	/**
+	 * Cut the runs of a box out of the nearest draught at or below the given
+	 * draught
+	 * 
+	 * @param draught
+	 *            negative draught of the ship
+	 * @param n1
+	 * @param n2
+	 * @param m1
+	 * @param m2
+	 * @return the runs clipped to the box, or null if the draught is below
+	 *         the ladder
+	 */
+	public int[] clip(double draught, int n1, int n2, int m1, int m2) {
+		int k = Math.max(0, (int) Math.ceil(-draught / step - 1e-9));
+		if (k >= runs.length) {
+			return null;
+		}
+		int[] draughtRuns = runs[k];
+		int[] start = rowStart[k];
+
+		int[] result = new int[48];
+		int count = 0;
+		for (int m = Math.max(m1, minM); m <= Math.min(m2, maxM); m++) {
+			// First run of the row not ending before the box
+			int low = start[m - minM];
+			int high = start[m - minM + 1];
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (draughtRuns[mid * 3 + 2] < n1) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			for (int r = low; r < start[m - minM + 1] && draughtRuns[r * 3 + 1] <= n2; r++) {
+				if (count * 3 == result.length) {
+					result = Arrays.copyOf(result, result.length * 2);
+				}
+				result[count * 3] = m;
+				result[count * 3 + 1] = Math.max(n1, draughtRuns[r * 3 + 1]);
+				result[count * 3 + 2] = Math.min(n2, draughtRuns[r * 3 + 2]);
+				count++;
+			}
+		}
+		return Arrays.copyOf(result, count * 3);
+	}
+
+	public DepthPyramid getPyramid() {
+		return pyramid;
+	}
+
+	/**
+	 * Number of runs over all draughts
+	 */
+	public int getRunCount() {
+		int count = 0;
+		for (int[] draughtRuns : runs) {
+			count += draughtRuns.length / 3;
+		}
+		return count;
+	}
+
+}
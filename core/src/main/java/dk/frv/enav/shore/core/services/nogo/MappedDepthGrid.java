@@ -0,0 +1,118 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Depth grid read from a memory mapped {@link DepthGridFile}. The depths stay
+ * in the OS page cache, which is shared by all processes mapping the same
+ * file.
+ */
+public class MappedDepthGrid implements DepthGrid {
+
+	private final int minN;
+	private final int minM;
+	private final int nCount;
+	private final int mCount;
+
+	private final GridDescriptor descriptor;
+
+	private final FloatBuffer depths;
+
+	private MappedDepthGrid(ByteBuffer header, FloatBuffer depths) {
+		this.minN = header.getInt(8);
+		this.minM = header.getInt(12);
+		this.nCount = header.getInt(16);
+		this.mCount = header.getInt(20);
+		this.descriptor = new GridDescriptor(minN, minN + nCount - 1, minM, minM + mCount - 1, header.getDouble(24),
+				header.getDouble(32), header.getDouble(40), header.getDouble(48));
+		this.depths = depths;
+	}
+
+	/**
+	 * Map a grid file into memory
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 *             if the file can not be read or is not a valid grid file
+	 */
+	public static MappedDepthGrid open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buffer.capacity() < DepthGridFile.HEADER_SIZE || buffer.getInt(0) != DepthGridFile.MAGIC) {
+				throw new IOException("Not a depth grid file: " + file);
+			}
+			if (buffer.getInt(4) != DepthGridFile.VERSION) {
+				throw new IOException("Unsupported depth grid version " + buffer.getInt(4) + " in " + file);
+			}
+
+			long cells = (long) buffer.getInt(16) * buffer.getInt(20);
+			if (buffer.capacity() < DepthGridFile.HEADER_SIZE + cells * 4) {
+				throw new IOException("Truncated depth grid file: " + file);
+			}
+
+			buffer.position(DepthGridFile.HEADER_SIZE);
+			FloatBuffer depths = buffer.slice().asFloatBuffer();
+
+			// The mapping stays valid after the channel is closed
+			return new MappedDepthGrid(buffer, depths);
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Override
+	public int getMinN() {
+		return minN;
+	}
+
+	@Override
+	public int getMaxN() {
+		return minN + nCount - 1;
+	}
+
+	@Override
+	public int getMinM() {
+		return minM;
+	}
+
+	@Override
+	public int getMaxM() {
+		return minM + mCount - 1;
+	}
+
+	@Override
+	public double getDepth(int n, int m) {
+		int row = m - minM;
+		int col = n - minN;
+		if (row < 0 || row >= mCount || col < 0 || col >= nCount) {
+			return Double.NaN;
+		}
+		return depths.get(row * nCount + col);
+	}
+
+	@Override
+	public double getLat(int n, int m) {
+		return descriptor.getLat(m);
+	}
+
+	@Override
+	public double getLon(int n, int m) {
+		return descriptor.getLon(n);
+	}
+
+	@Override
+	public GridDescriptor getDescriptor() {
+		return descriptor;
+	}
+
+}
@@ -0,0 +1,242 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Marching squares over a {@link DepthField} at the draught of a ship. The
+ * lattice has a point at every cell center, cell corner and middle of a cell
+ * edge, half a cell apart. A point on the edges of cells takes the shallowest
+ * of them, so every lattice point within a no go cell is no go and the whole
+ * square of the cell is inside the contour, as with the rectangles. The
+ * contour crosses a lattice edge where the depth passes the draught, which
+ * is between the edge of a no go cell and the center of its neighbour.
+ * Crossings next to land, missing depths or the border of the box are put
+ * half way on the lattice edge, a quarter of a cell beyond the cell edge.
+ * 
+ * The box is padded with a ring of open water, so all contours are closed.
+ * Saddle squares are resolved as no go, joining the no go areas.
+ * 
+ * Rings are returned in (n, m) coordinates with the no go area on the left,
+ * so outer rings run counter clockwise and holes clockwise.
+ */
+class MarchingSquares {
+
+	private final DepthField field;
+	private final double draught;
+	private final int n0;
+	private final int m0;
+	private final int width;
+	private final int height;
+
+	/**
+	 * Depth minus draught of every lattice point including the padding,
+	 * positive is no go. Point i, j is at n0 + i / 2, m0 + j / 2.
+	 */
+	private final float[] values;
+
+	MarchingSquares(DepthField field, double draught) {
+		this.field = field;
+		this.draught = draught;
+		this.n0 = field.getMinN() - 1;
+		this.m0 = field.getMinM() - 1;
+		this.width = 2 * (field.getMaxN() - field.getMinN()) + 5;
+		this.height = 2 * (field.getMaxM() - field.getMinM()) + 5;
+		this.values = new float[width * height];
+
+		for (int j = 0; j < height; j++) {
+			for (int i = 0; i < width; i++) {
+				values[j * width + i] = value(i, j);
+			}
+		}
+	}
+
+	/**
+	 * The shallowest of the cells at a lattice point, one at a center, two
+	 * at the middle of an edge and four at a corner
+	 */
+	private float value(int i, int j) {
+		if (i == 0 || j == 0 || i == width - 1 || j == height - 1) {
+			return Float.NEGATIVE_INFINITY;
+		}
+		float value = Float.NEGATIVE_INFINITY;
+		for (int n = n0 + i / 2; n <= n0 + (i + 1) / 2; n++) {
+			for (int m = m0 + j / 2; m <= m0 + (j + 1) / 2; m++) {
+				if (n >= field.getMinN() && n <= field.getMaxN() && m >= field.getMinM() && m <= field.getMaxM()) {
+					value = Math.max(value, cell(n, m));
+				}
+			}
+		}
+		return value;
+	}
+
+	private float cell(int n, int m) {
+		float depth = field.getDepth(n, m);
+		if (Float.isNaN(depth)) {
+			return Float.POSITIVE_INFINITY;
+		}
+		return (float) (depth - draught);
+	}
+
+	/**
+	 * Trace all contour rings
+	 * 
+	 * @return rings as n, m pairs, without repeating the first point
+	 */
+	List<double[]> trace() {
+		// Lattice edges are numbered 2 * point for the edge to the right of a
+		// point and 2 * point + 1 for the edge above it. next holds the edge
+		// the contour continues to from each crossed edge.
+		int[] next = new int[width * height * 2];
+		Arrays.fill(next, -1);
+
+		int[] crossings = new int[4];
+		boolean[] entering = new boolean[4];
+
+		for (int j = 0; j < height - 1; j++) {
+			for (int i = 0; i < width - 1; i++) {
+				int a = j * width + i;
+				int b = a + 1;
+				int c = a + width + 1;
+				int d = a + width;
+
+				// Edges counter clockwise: bottom, right, top, left
+				int[] from = { a, b, c, d };
+				int[] to = { b, c, d, a };
+				int[] edge = { 2 * a, 2 * b + 1, 2 * d, 2 * a + 1 };
+
+				int count = 0;
+				for (int k = 0; k < 4; k++) {
+					boolean inFrom = values[from[k]] > 0;
+					boolean inTo = values[to[k]] > 0;
+					if (inFrom != inTo) {
+						crossings[count] = edge[k];
+						entering[count] = inTo;
+						count++;
+					}
+				}
+
+				if (count == 2) {
+					// Run from the edge leaving the no go area to the one
+					// entering it
+					if (entering[0]) {
+						next[crossings[1]] = crossings[0];
+					} else {
+						next[crossings[0]] = crossings[1];
+					}
+				} else if (count == 4) {
+					// Saddle, the center is taken as no go so each leaving
+					// edge is joined to the following entering edge
+					for (int k = 0; k < 4; k++) {
+						if (!entering[k]) {
+							next[crossings[k]] = crossings[(k + 1) % 4];
+						}
+					}
+				}
+			}
+		}
+
+		List<double[]> rings = new ArrayList<double[]>();
+		for (int start = 0; start < next.length; start++) {
+			if (next[start] == -1) {
+				continue;
+			}
+			List<Integer> ring = new ArrayList<Integer>();
+			int current = start;
+			while (next[current] != -1) {
+				ring.add(current);
+				int following = next[current];
+				next[current] = -1;
+				current = following;
+			}
+			rings.add(toCoordinates(ring));
+		}
+		return rings;
+	}
+
+	/**
+	 * Positions of the crossings of a ring, dropping points on a straight
+	 * line between their neighbours
+	 */
+	private double[] toCoordinates(List<Integer> ring) {
+		int size = ring.size();
+		double[] points = new double[size * 2];
+		for (int k = 0; k < size; k++) {
+			crossing(ring.get(k), points, k * 2);
+		}
+
+		double[] result = new double[size * 2];
+		int count = 0;
+		for (int k = 0; k < size; k++) {
+			int prev = (k + size - 1) % size;
+			int nxt = (k + 1) % size;
+			double cross = (points[k * 2] - points[prev * 2]) * (points[nxt * 2 + 1] - points[k * 2 + 1])
+					- (points[k * 2 + 1] - points[prev * 2 + 1]) * (points[nxt * 2] - points[k * 2]);
+			if (Math.abs(cross) > 1e-9 || size <= 4) {
+				result[count * 2] = points[k * 2];
+				result[count * 2 + 1] = points[k * 2 + 1];
+				count++;
+			}
+		}
+
+		double[] trimmed = new double[count * 2];
+		System.arraycopy(result, 0, trimmed, 0, count * 2);
+		return trimmed;
+	}
+
+	/**
+	 * Position of the contour on a lattice edge, interpolated on the depth
+	 */
+	private void crossing(int edge, double[] points, int offset) {
+		int p = edge / 2;
+		int q = edge % 2 == 0 ? p + 1 : p + width;
+		double vp = values[p];
+		double vq = values[q];
+		double t = 0.5;
+		if (!Double.isInfinite(vp) && !Double.isInfinite(vq)) {
+			t = vp / (vp - vq);
+		}
+		double n = n0 + (p % width) / 2.0;
+		double m = m0 + (p / width) / 2.0;
+		if (edge % 2 == 0) {
+			n += t / 2;
+		} else {
+			m += t / 2;
+		}
+		points[offset] = n;
+		points[offset + 1] = m;
+	}
+
+	/**
+	 * Signed area of a ring, positive for counter clockwise
+	 */
+	static double area(double[] ring) {
+		double area = 0;
+		int size = ring.length / 2;
+		for (int k = 0; k < size; k++) {
+			int nxt = (k + 1) % size;
+			area += ring[k * 2] * ring[nxt * 2 + 1] - ring[nxt * 2] * ring[k * 2 + 1];
+		}
+		return area / 2;
+	}
+
+	/**
+	 * Is a point inside a ring, by the even odd rule
+	 */
+	static boolean contains(double[] ring, double x, double y) {
+		boolean inside = false;
+		int size = ring.length / 2;
+		for (int k = 0, l = size - 1; k < size; l = k++) {
+			double xk = ring[k * 2];
+			double yk = ring[k * 2 + 1];
+			double xl = ring[l * 2];
+			double yl = ring[l * 2 + 1];
+			if ((yk > y) != (yl > y) && x < (xl - xk) * (y - yk) / (yl - yk) + xk) {
+				inside = !inside;
+			}
+		}
+		return inside;
+	}
+
+}
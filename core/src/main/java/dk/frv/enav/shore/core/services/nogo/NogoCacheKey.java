@@ -0,0 +1,108 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import dk.frv.enav.common.xml.nogo.types.NogoGeometry;
+
+/**
+ * Normalized NoGo request. Requests with equal keys have the same result: the
+ * box is given in grid cells, or in positions snapped to a fixed step for
+ * regions without a grid, the draught is rounded to a step and the time
+ * window to whole hours. The geometry of the result is part of the key, and
+ * so is the route of corridor requests. So is the version of the
+ * {@link NogoDataset}, a result calculated from data since swapped out is
+ * never returned for a request on the new data.
+ */
+public class NogoCacheKey {
+
+	private final long version;
+	private final String region;
+	private final long box1;
+	private final long box2;
+	private final long box3;
+	private final long box4;
+	private final long draught;
+	private final long hourStart;
+	private final long hourEnd;
+	private final NogoGeometry geometry;
+	private final String corridor;
+
+	public NogoCacheKey(long version, String region, long box1, long box2, long box3, long box4, long draught,
+			long hourStart, long hourEnd, NogoGeometry geometry) {
+		this(version, region, box1, box2, box3, box4, draught, hourStart, hourEnd, geometry, null);
+	}
+
+	/**
+	 * @param version
+	 *            version of the dataset the request is answered from
+	 * @param corridor
+	 *            normalized route of a corridor request or null for a box
+	 */
+	public NogoCacheKey(long version, String region, long box1, long box2, long box3, long box4, long draught,
+			long hourStart, long hourEnd, NogoGeometry geometry, String corridor) {
+		this.version = version;
+		this.region = region;
+		this.box1 = box1;
+		this.box2 = box2;
+		this.box3 = box3;
+		this.box4 = box4;
+		this.draught = draught;
+		this.hourStart = hourStart;
+		this.hourEnd = hourEnd;
+		this.geometry = geometry;
+		this.corridor = corridor;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = (int) (version ^ (version >>> 32));
+		hash = 31 * hash + region.hashCode();
+		hash = 31 * hash + (int) (box1 ^ (box1 >>> 32));
+		hash = 31 * hash + (int) (box2 ^ (box2 >>> 32));
+		hash = 31 * hash + (int) (box3 ^ (box3 >>> 32));
+		hash = 31 * hash + (int) (box4 ^ (box4 >>> 32));
+		hash = 31 * hash + (int) (draught ^ (draught >>> 32));
+		hash = 31 * hash + (int) (hourStart ^ (hourStart >>> 32));
+		hash = 31 * hash + (int) (hourEnd ^ (hourEnd >>> 32));
+		hash = 31 * hash + geometry.hashCode();
+		hash = 31 * hash + (corridor == null ? 0 : corridor.hashCode());
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof NogoCacheKey)) {
+			return false;
+		}
+		NogoCacheKey other = (NogoCacheKey) obj;
+		return version == other.version && region.equals(other.region) && box1 == other.box1 && box2 == other.box2
+				&& box3 == other.box3 && box4 == other.box4 && draught == other.draught && hourStart == other.hourStart
+				&& hourEnd == other.hourEnd && geometry == other.geometry
+				&& (corridor == null ? other.corridor == null : corridor.equals(other.corridor));
+	}
+
+	/**
+	 * The key of the same request for another draught
+	 */
+	public NogoCacheKey withDraught(long draught) {
+		return new NogoCacheKey(version, region, box1, box2, box3, box4, draught, hourStart, hourEnd, geometry,
+				corridor);
+	}
+
+	/**
+	 * Name of a file holding the result of this key
+	 */
+	public String toFileName() {
+		return version + "_" + region.replaceAll("[^A-Za-z0-9]", "-") + "_" + box1 + "_" + box2 + "_" + box3 + "_"
+				+ box4 + "_" + draught + "_" + hourStart + "_" + hourEnd + "_" + geometry
+				+ (corridor == null ? "" : "_" + Integer.toHexString(corridor.hashCode())) + ".nogo";
+	}
+
+	@Override
+	public String toString() {
+		return region + "@" + version + "[" + box1 + "," + box2 + "," + box3 + "," + box4 + "] draught=" + draught
+				+ " hours=" + hourStart + "-" + hourEnd + " " + geometry + (corridor == null ? "" : " corridor=" + corridor);
+	}
+
+}
@@ -0,0 +1,115 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.Date;
+
+import dk.frv.ais.geo.GeoLocation;
+import dk.frv.enav.common.xml.nogo.types.NogoGeometry;
+import dk.frv.enav.shore.core.services.nogo.NogoServiceBean.DataType;
+
+/**
+ * Everything a single NoGo calculation depends on. The context is immutable,
+ * so one {@link NogoEngine} can serve any number of requests at the same time.
+ */
+public class NogoContext {
+
+	private final NogoDataset dataset;
+	private final NogoRegion region;
+	private final GeoLocation northWest;
+	private final GeoLocation southEast;
+	private final double draught;
+	private final Date timeStart;
+	private final Date timeEnd;
+	private final long deadline;
+	private final NogoGeometry geometry;
+	private final NogoCorridor corridor;
+
+	public NogoContext(NogoDataset dataset, NogoRegion region, GeoLocation northWest, GeoLocation southEast,
+			double draught, Date timeStart, Date timeEnd, long deadline, NogoGeometry geometry) {
+		this(dataset, region, northWest, southEast, draught, timeStart, timeEnd, deadline, geometry, null);
+	}
+
+	/**
+	 * @param dataset
+	 *            grids and tide to answer from
+	 * @param region
+	 * @param northWest
+	 * @param southEast
+	 * @param draught
+	 *            negative draught of the ship
+	 * @param timeStart
+	 * @param timeEnd
+	 * @param deadline
+	 *            time in millis since the epoch the calculation must finish by
+	 * @param geometry
+	 *            geometry of the result
+	 * @param corridor
+	 *            route corridor to limit the calculation to or null for the
+	 *            whole box
+	 */
+	public NogoContext(NogoDataset dataset, NogoRegion region, GeoLocation northWest, GeoLocation southEast,
+			double draught, Date timeStart, Date timeEnd, long deadline, NogoGeometry geometry, NogoCorridor corridor) {
+		this.dataset = dataset;
+		this.region = region;
+		this.northWest = northWest;
+		this.southEast = southEast;
+		this.draught = draught;
+		this.timeStart = new Date(timeStart.getTime());
+		this.timeEnd = new Date(timeEnd.getTime());
+		this.deadline = deadline;
+		this.geometry = geometry;
+		this.corridor = corridor;
+	}
+
+	public NogoDataset getDataset() {
+		return dataset;
+	}
+
+	public NogoRegion getRegion() {
+		return region;
+	}
+
+	public DataType getDataType() {
+		return region.getDataType();
+	}
+
+	public double getLatOffset() {
+		return region.getLatOffset();
+	}
+
+	public double getLonOffset() {
+		return region.getLonOffset();
+	}
+
+	public GeoLocation getNorthWest() {
+		return northWest;
+	}
+
+	public GeoLocation getSouthEast() {
+		return southEast;
+	}
+
+	public double getDraught() {
+		return draught;
+	}
+
+	public Date getTimeStart() {
+		return new Date(timeStart.getTime());
+	}
+
+	public Date getTimeEnd() {
+		return new Date(timeEnd.getTime());
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+	public NogoGeometry getGeometry() {
+		return geometry;
+	}
+
+	public NogoCorridor getCorridor() {
+		return corridor;
+	}
+
+}
@@ -0,0 +1,171 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.List;
+
+import dk.frv.enav.common.xml.Waypoint;
+
+/**
+ * Corridor of a given width along the legs of a route. The legs are buffered
+ * on a local plane in nautical miles, the longitudes scaled by the cosine of
+ * the middle latitude of the route, which is accurate enough for routes
+ * within a region.
+ *
+ * A cell is in the corridor if any part of it may be, so the corridor is
+ * widened by half the diagonal of a cell and cells are tested by their center.
+ */
+public class NogoCorridor {
+
+	private final double[] lats;
+	private final double[] lons;
+	private final double halfWidth;
+	private final double scale;
+
+	/**
+	 * @param waypoints
+	 *            at least one waypoint
+	 * @param width
+	 *            width in nautical miles, half of it on each side of the legs
+	 */
+	public NogoCorridor(List<Waypoint> waypoints, double width) {
+		lats = new double[waypoints.size()];
+		lons = new double[waypoints.size()];
+		for (int i = 0; i < lats.length; i++) {
+			lats[i] = waypoints.get(i).getLat();
+			lons[i] = waypoints.get(i).getLon();
+		}
+		halfWidth = width / 2;
+		scale = Math.cos(Math.toRadians((min(lats) + max(lats)) / 2));
+	}
+
+	public double getNorth() {
+		return max(lats) + halfWidth / 60;
+	}
+
+	public double getSouth() {
+		return min(lats) - halfWidth / 60;
+	}
+
+	public double getWest() {
+		return min(lons) - halfWidth / 60 / scale;
+	}
+
+	public double getEast() {
+		return max(lons) + halfWidth / 60 / scale;
+	}
+
+	/**
+	 * The route and width with the positions snapped to a step, equal for
+	 * routes giving the same corridor
+	 *
+	 * @param step
+	 *            step in degrees
+	 * @return
+	 */
+	public String getKey(double step) {
+		StringBuilder key = new StringBuilder();
+		key.append(halfWidth * 2);
+		for (int i = 0; i < lats.length; i++) {
+			key.append(';').append(Math.round(lats[i] / step)).append(',').append(Math.round(lons[i] / step));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Find the cells of a box in the corridor
+	 *
+	 * @param descriptor
+	 *            georeferencing of the cells
+	 * @param n1
+	 * @param n2
+	 * @param m1
+	 * @param m2
+	 * @return mask of the box with the cells in the corridor set
+	 */
+	public NogoMask toMask(GridDescriptor descriptor, int n1, int n2, int m1, int m2) {
+		NogoMask mask = new NogoMask(n1, n2, m1, m2);
+
+		double cellX = Math.abs(descriptor.getLonStep()) * 60 * scale / 2;
+		double cellY = Math.abs(descriptor.getLatStep()) * 60 / 2;
+		double radius = halfWidth + Math.sqrt(cellX * cellX + cellY * cellY);
+
+		double[] span = new double[2];
+		for (int m = m1; m <= m2; m++) {
+			double y = descriptor.getLat(m) * 60;
+			for (int i = 0; i < Math.max(1, lats.length - 1); i++) {
+				int j = Math.min(i + 1, lats.length - 1);
+				if (!span(lons[i] * 60 * scale, lats[i] * 60, lons[j] * 60 * scale, lats[j] * 60, radius, y, span)) {
+					continue;
+				}
+				double a = descriptor.fractionalN(span[0] / 60 / scale);
+				double b = descriptor.fractionalN(span[1] / 60 / scale);
+				int from = Math.max(n1, (int) Math.ceil(Math.min(a, b)));
+				int to = Math.min(n2, (int) Math.floor(Math.max(a, b)));
+				if (from <= to) {
+					mask.setRange(from, to, m);
+				}
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * Find the span of a horizontal line within a distance of a leg. The
+	 * buffered leg is convex, so the span runs between the outermost points
+	 * where the line crosses the circles around the ends or the sides of the
+	 * band between them.
+	 *
+	 * @return false if the line misses the buffered leg
+	 */
+	private static boolean span(double ax, double ay, double bx, double by, double radius, double y, double[] span) {
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+
+		for (int end = 0; end < 2; end++) {
+			double px = end == 0 ? ax : bx;
+			double dy = y - (end == 0 ? ay : by);
+			if (Math.abs(dy) <= radius) {
+				double h = Math.sqrt(radius * radius - dy * dy);
+				min = Math.min(min, px - h);
+				max = Math.max(max, px + h);
+			}
+		}
+
+		double dx = bx - ax;
+		double dy = by - ay;
+		double length = Math.sqrt(dx * dx + dy * dy);
+		if (length > 0) {
+			double nx = -dy / length * radius;
+			double ny = dx / length * radius;
+			for (int side = -1; side <= 1; side += 2) {
+				double y1 = ay + side * ny;
+				double y2 = by + side * ny;
+				if (y1 != y2 && (y1 - y) * (y2 - y) <= 0) {
+					double x = ax + side * nx + (y - y1) / (y2 - y1) * dx;
+					min = Math.min(min, x);
+					max = Math.max(max, x);
+				}
+			}
+		}
+
+		span[0] = min;
+		span[1] = max;
+		return min <= max;
+	}
+
+	private static double min(double[] values) {
+		double min = Double.POSITIVE_INFINITY;
+		for (double value : values) {
+			min = Math.min(min, value);
+		}
+		return min;
+	}
+
+	private static double max(double[] values) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (double value : values) {
+			max = Math.max(max, value);
+		}
+		return max;
+	}
+
+}
@@ -0,0 +1,62 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import javax.ejb.Local;
+
+@Local
+public interface NogoDataService {
+
+	/**
+	 * Get the configured NoGo regions
+	 * @return
+	 */
+	NogoRegionRegistry getRegionRegistry();
+
+	/**
+	 * Get the current grids and tide. A request should take the dataset once
+	 * and answer from it alone.
+	 * @return
+	 */
+	NogoDataset getDataset();
+
+	/**
+	 * Get the in-memory depth grid for a region
+	 * @param region
+	 * @return the grid or null if it has not been loaded
+	 */
+	DepthGrid getDepthGrid(NogoRegion region);
+
+	/**
+	 * Get the depth pyramid of the in-memory depth grid for a region
+	 * @param region
+	 * @return the pyramid or null if the grid has not been loaded
+	 */
+	DepthPyramid getDepthPyramid(NogoRegion region);
+
+	/**
+	 * Get the precomputed isobaths of the depth grid for a region
+	 * @param region
+	 * @return the ladder or null if it has not been built yet
+	 */
+	IsobathLadder getIsobathLadder(NogoRegion region);
+
+	/**
+	 * Get the tide source, the in-memory tide cube or the harmonic
+	 * constituents
+	 * @return the source or null if there is no tide data
+	 */
+	TideSource getTideSource();
+
+	/**
+	 * Get the cache of NoGo results, cleared when the regions or the tide data
+	 * change
+	 * @return
+	 */
+	NogoResultCache getResultCache();
+
+	/**
+	 * Get the cache of NoGo tiles, cleared along with the result cache
+	 * @return
+	 */
+	NogoResultCache getTileCache();
+
+}
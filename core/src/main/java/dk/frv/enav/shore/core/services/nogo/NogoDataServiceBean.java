@@ -0,0 +1,429 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.apache.log4j.Logger;
+
+import dk.frv.enav.common.jboss.JbossProperties;
+
+/**
+ * Holds the NoGo regions and their depth grids. The regions are read from the
+ * file given by nogo_region_file, or the built-in regions are used if there is
+ * no such file. The file is checked for changes regularly, so regions can be
+ * added without a redeploy.
+ * 
+ * The grids are loaded when a region is added and only read afterwards. A
+ * region is memory mapped from &lt;nogo_grid_dir&gt;/&lt;region&gt;.grid if the
+ * file exists, otherwise it is loaded from its depth table. A
+ * {@link DepthPyramid} is built for each grid as it is loaded.
+ * 
+ * In the background an {@link IsobathLadder} is built for each grid, with
+ * nogo_isobath_count draughts nogo_isobath_step meters apart, for serving
+ * requests without tide data.
+ * 
+ * The newest nogo_tide_window_hours hours of the tide table are loaded into a
+ * {@link TideCube}, which is replaced when the table changes. With nogo_tide_harmonics set tide is predicted from the
+ * {@link HarmonicTides} constituents in that file instead, fitted to the tide
+ * table and written to the file if it does not exist, and reloaded when the
+ * file changes.
+ * 
+ * With nogo_data_dir set, grids and tide written there by the
+ * {@link NogoIngester} take precedence. The directory is checked for a new
+ * generation every minute (see {@link NogoGenerations}), and the grids and
+ * tide cube of a new generation are mapped and their pyramids built while the
+ * current data keeps serving requests.
+ * 
+ * Grids and tide are swapped in together as a {@link NogoDataset}, so readers
+ * are never blocked and never see a mix of old and new data. Loads are
+ * serialized among themselves. The NoGo result cache is cleared whenever the
+ * data change. Its size and time to live in seconds are read from
+ * nogo_cache_size and nogo_cache_ttl.
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class NogoDataServiceBean implements NogoDataService {
+
+	private static Logger LOG = Logger.getLogger(NogoDataServiceBean.class);
+
+	@PersistenceContext(unitName = "enav")
+	private EntityManager entityManager;
+
+	private volatile NogoRegionRegistry regionRegistry = NogoRegionRegistry.createDefault(null);
+
+	private volatile NogoDataset dataset = new NogoDataset(0, new HashMap<String, DepthPyramid>(), null);
+
+	private volatile Map<String, IsobathLadder> isobathLadders = new HashMap<String, IsobathLadder>();
+
+	/**
+	 * Generation of the data directory the dataset is loaded from, 0 for none
+	 */
+	private volatile long generation;
+
+	private volatile long harmonicsModified;
+
+	private NogoResultCache resultCache;
+
+	private NogoResultCache tileCache;
+
+	@PostConstruct
+	public void init() {
+		long ttl = Long.parseLong(JbossProperties.get("nogo_cache_ttl", "600")) * 1000;
+		resultCache = new NogoResultCache(Integer.parseInt(JbossProperties.get("nogo_cache_size", "1000")), ttl);
+		tileCache = new NogoResultCache("NOGO_TILE_CACHE", Integer.parseInt(JbossProperties.get(
+				"nogo_tile_cache_size", "5000")), ttl, new File(JbossProperties.get("nogo_tile_dir",
+				System.getProperty("jboss.server.home.dir") + "/tmp/nogo-tiles")), Integer.parseInt(JbossProperties
+				.get("nogo_tile_disk_size", "100000")));
+		loadRegions();
+		loadData(getPublishedGeneration(), true);
+	}
+
+	private void loadRegions() {
+		File file = new File(JbossProperties.get("nogo_region_file", System.getProperty("jboss.server.home.dir")
+				+ "/conf/nogo-regions.properties"));
+		if (!file.exists()) {
+			LOG.info("No NoGo region file " + file + ", using built-in regions");
+			regionRegistry = NogoRegionRegistry.createDefault(file);
+			return;
+		}
+		try {
+			regionRegistry = NogoRegionRegistry.load(file);
+		} catch (IOException e) {
+			LOG.error("Failed to load NoGo regions: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Load the grids of all regions and the tide, and swap them in as a new
+	 * dataset. The grids and tide already loaded are kept, unless the
+	 * generation has new files for them or the tide is to be reloaded.
+	 * 
+	 * @param generation
+	 *            generation of the data directory to load from, 0 for none
+	 * @param reloadTide
+	 */
+	private synchronized void loadData(long generation, boolean reloadTide) {
+		NogoDataset current = dataset;
+		boolean newGeneration = generation != this.generation;
+		File generationDir = getGenerationDir(generation);
+
+		Map<String, DepthPyramid> pyramids = new HashMap<String, DepthPyramid>();
+		for (NogoRegion region : regionRegistry.getRegions()) {
+			DepthPyramid pyramid = current.getDepthPyramid(region);
+			File file = generationDir == null ? null : new File(generationDir, region.getName().toLowerCase()
+					+ DepthGridFile.EXTENSION);
+			if (pyramid == null || newGeneration && file != null && file.exists()) {
+				DepthGrid grid = loadGrid(region, file);
+				if (grid != null) {
+					long start = System.currentTimeMillis();
+					pyramid = new DepthPyramid(grid);
+					LOG.info("Depth pyramid for " + region + " built in " + (System.currentTimeMillis() - start)
+							+ " ms");
+				}
+			}
+			if (pyramid != null) {
+				pyramids.put(region.getName(), pyramid);
+			}
+		}
+
+		TideSource tideSource = current.getTideSource();
+		File tideFile = generationDir == null ? null : new File(generationDir, NogoGenerations.TIDE_FILE);
+		if (tideFile != null && !tideFile.exists()) {
+			tideFile = null;
+		}
+		if (reloadTide || newGeneration && tideFile != null) {
+			TideSource loaded = loadTide(tideFile);
+			if (loaded != null) {
+				tideSource = loaded;
+			}
+		}
+
+		dataset = new NogoDataset(current.getVersion() + 1, pyramids, tideSource);
+		this.generation = generation;
+		resultCache.clear();
+		tileCache.clear();
+		LOG.info("NoGo dataset " + dataset.getVersion() + " swapped in"
+				+ (generation == 0 ? "" : " from generation " + generation));
+	}
+
+	/**
+	 * Load the grid of a region from the first of the generation, the grid
+	 * directory and the depth table that has it
+	 * 
+	 * @param generationFile
+	 *            grid file of the region in the generation or null
+	 */
+	private DepthGrid loadGrid(NogoRegion region, File generationFile) {
+		long start = System.currentTimeMillis();
+		if (generationFile != null && generationFile.exists()) {
+			try {
+				DepthGrid grid = MappedDepthGrid.open(generationFile);
+				LOG.info("Depth grid for " + region + " mapped from " + generationFile);
+				return grid;
+			} catch (IOException e) {
+				LOG.error("Failed to map depth grid " + generationFile + ": " + e.getMessage());
+			}
+		}
+		String gridDir = JbossProperties.get("nogo_grid_dir");
+		if (gridDir != null) {
+			File file = new File(gridDir, region.getName().toLowerCase() + DepthGridFile.EXTENSION);
+			if (file.exists()) {
+				try {
+					DepthGrid grid = MappedDepthGrid.open(file);
+					LOG.info("Depth grid for " + region + " mapped from " + file);
+					return grid;
+				} catch (IOException e) {
+					LOG.error("Failed to map depth grid " + file + ": " + e.getMessage());
+				}
+			}
+		}
+		if (region.getDataType() == null) {
+			LOG.error("No depth grid file or depth table for " + region);
+			return null;
+		}
+		try {
+			DepthGrid grid = ArrayDepthGrid.load(entityManager, region.getDataType().getDepthEntity());
+			if (grid != null) {
+				LOG.info("Depth grid for " + region + " loaded in " + (System.currentTimeMillis() - start) + " ms");
+			}
+			return grid;
+		} catch (RuntimeException e) {
+			// Fall back to querying the database for this region
+			LOG.error("Failed to load depth grid for " + region + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Reload the regions if the region file has changed
+	 */
+	@Schedule(minute = "*", hour = "*", persistent = false)
+	public void refreshRegions() {
+		if (!regionRegistry.isModified()) {
+			return;
+		}
+		LOG.info("NoGo region file changed, reloading regions");
+		loadRegions();
+		loadData(generation, false);
+	}
+
+	/**
+	 * Swap in the data of a new generation if one has been published
+	 */
+	@Schedule(minute = "*", hour = "*", persistent = false)
+	public void refreshGeneration() {
+		long published = getPublishedGeneration();
+		if (published == generation) {
+			return;
+		}
+		LOG.info("NoGo data generation " + published + " published, loading");
+		loadData(published, false);
+	}
+
+	/**
+	 * Read the generation published in nogo_data_dir
+	 * 
+	 * @return the generation or the one loaded if it can not be read, 0 if
+	 *         there is no data directory
+	 */
+	private long getPublishedGeneration() {
+		String dataDir = JbossProperties.get("nogo_data_dir");
+		if (dataDir == null) {
+			return 0;
+		}
+		try {
+			return NogoGenerations.getCurrent(new File(dataDir));
+		} catch (IOException e) {
+			LOG.error("Failed to read NoGo data generation: " + e.getMessage());
+			return generation;
+		}
+	}
+
+	private File getGenerationDir(long generation) {
+		String dataDir = JbossProperties.get("nogo_data_dir");
+		if (dataDir == null || generation == 0) {
+			return null;
+		}
+		return NogoGenerations.getDirectory(new File(dataDir), generation);
+	}
+
+	@Override
+	public NogoDataset getDataset() {
+		return dataset;
+	}
+
+	@Override
+	public NogoRegionRegistry getRegionRegistry() {
+		return regionRegistry;
+	}
+
+	@Override
+	public DepthGrid getDepthGrid(NogoRegion region) {
+		DepthPyramid pyramid = dataset.getDepthPyramid(region);
+		return pyramid == null ? null : pyramid.getGrid();
+	}
+
+	@Override
+	public DepthPyramid getDepthPyramid(NogoRegion region) {
+		return dataset.getDepthPyramid(region);
+	}
+
+	/**
+	 * Build the isobath ladders of grids that do not have one yet
+	 */
+	@Schedule(minute = "*", hour = "*", persistent = false)
+	public void buildIsobaths() {
+		double step = Double.parseDouble(JbossProperties.get("nogo_isobath_step", "0.25"));
+		int count = Integer.parseInt(JbossProperties.get("nogo_isobath_count", "80"));
+
+		Map<String, DepthPyramid> pyramids = dataset.getDepthPyramids();
+		Map<String, IsobathLadder> current = isobathLadders;
+		Map<String, IsobathLadder> ladders = new HashMap<String, IsobathLadder>();
+		boolean changed = current.size() != pyramids.size();
+		for (Map.Entry<String, DepthPyramid> entry : pyramids.entrySet()) {
+			IsobathLadder ladder = current.get(entry.getKey());
+			if (ladder == null || ladder.getPyramid() != entry.getValue()) {
+				long start = System.currentTimeMillis();
+				ladder = new IsobathLadder(entry.getValue(), step, count);
+				LOG.info("Isobaths for " + entry.getKey() + " built in " + (System.currentTimeMillis() - start)
+						+ " ms, " + ladder.getRunCount() + " runs");
+				changed = true;
+			}
+			ladders.put(entry.getKey(), ladder);
+		}
+		if (changed) {
+			isobathLadders = ladders;
+		}
+	}
+
+	@Override
+	public IsobathLadder getIsobathLadder(NogoRegion region) {
+		return isobathLadders.get(region.getName());
+	}
+
+	/**
+	 * Load the tide from the first of the harmonic constituents, the tide cube
+	 * of the generation and the tide table that is there
+	 * 
+	 * @param cubeFile
+	 *            tide cube file of the generation or null
+	 * @return the tide or null if it could not be loaded
+	 */
+	private TideSource loadTide(File cubeFile) {
+		long start = System.currentTimeMillis();
+		try {
+			TideSource tideSource;
+			String harmonics = JbossProperties.get("nogo_tide_harmonics");
+			if (harmonics != null) {
+				tideSource = loadHarmonics(new File(harmonics), cubeFile);
+			} else if (cubeFile != null) {
+				tideSource = TideCube.open(cubeFile);
+			} else {
+				tideSource = TideCube.load(entityManager, getTideWindowHours());
+			}
+			LOG.info("Tide loaded in " + (System.currentTimeMillis() - start) + " ms");
+			return tideSource;
+		} catch (IOException e) {
+			LOG.error("Failed to load tide: " + e.getMessage());
+			return null;
+		} catch (RuntimeException e) {
+			LOG.error("Failed to load tide: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Read the harmonic constituents from a file, fitting them to the tide
+	 * cube of the generation or the tide table and writing the file first if
+	 * it does not exist
+	 */
+	private HarmonicTides loadHarmonics(File file, File cubeFile) {
+		try {
+			if (!file.exists()) {
+				TideCube cube = cubeFile != null ? TideCube.open(cubeFile) : TideCube.load(entityManager,
+						getTideWindowHours());
+				if (cube == null) {
+					LOG.error("No tide constituents in " + file + " and no tide table to fit them to");
+					return null;
+				}
+				HarmonicTides tides = HarmonicTides.fit(cube);
+				tides.write(file);
+				harmonicsModified = file.lastModified();
+				LOG.info("Tide constituents written to " + file);
+				return tides;
+			}
+			harmonicsModified = file.lastModified();
+			return HarmonicTides.load(file);
+		} catch (IOException e) {
+			LOG.error("Failed to load tide constituents: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static int getTideWindowHours() {
+		return Integer.parseInt(JbossProperties.get("nogo_tide_window_hours", "744"));
+	}
+
+	/**
+	 * Reload the tide cube if new tide data has arrived in the tide table, or
+	 * the constituents if their file has changed. A tide cube of a generation
+	 * is only replaced by the next generation.
+	 */
+	@Schedule(minute = "*/10", hour = "*", persistent = false)
+	public void refreshTide() {
+		TideSource current = dataset.getTideSource();
+		String harmonics = JbossProperties.get("nogo_tide_harmonics");
+		if (harmonics != null) {
+			if (current != null && new File(harmonics).lastModified() == harmonicsModified) {
+				return;
+			}
+			LOG.info("Tide constituents changed, reloading");
+			loadData(generation, true);
+			return;
+		}
+
+		File generationDir = getGenerationDir(generation);
+		if (generationDir != null && new File(generationDir, NogoGenerations.TIDE_FILE).exists()) {
+			return;
+		}
+
+		try {
+			if (current instanceof TideCube && !((TideCube) current).isStale(entityManager)) {
+				return;
+			}
+		} catch (RuntimeException e) {
+			LOG.error("Failed to check tide data: " + e.getMessage());
+			return;
+		}
+		LOG.info("Tide data changed, reloading tide cube");
+		loadData(generation, true);
+	}
+
+	@Override
+	public TideSource getTideSource() {
+		return dataset.getTideSource();
+	}
+
+	@Override
+	public NogoResultCache getResultCache() {
+		return resultCache;
+	}
+
+	@Override
+	public NogoResultCache getTileCache() {
+		return tileCache;
+	}
+
+}
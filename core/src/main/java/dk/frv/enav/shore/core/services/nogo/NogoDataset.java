@@ -0,0 +1,52 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The depth grids and tide NoGo requests are answered from. A dataset is
+ * never changed, new data is swapped in as a new dataset with the next
+ * version, so a request taking the dataset once sees grids and tide from the
+ * same load however long it runs.
+ */
+public class NogoDataset {
+
+	private final long version;
+	private final Map<String, DepthPyramid> depthPyramids;
+	private final TideSource tideSource;
+
+	/**
+	 * @param version
+	 *            increasing with each dataset swapped in
+	 * @param depthPyramids
+	 *            pyramid of the grid of each region by region name
+	 * @param tideSource
+	 *            tide or null if there is no tide data
+	 */
+	public NogoDataset(long version, Map<String, DepthPyramid> depthPyramids, TideSource tideSource) {
+		this.version = version;
+		this.depthPyramids = Collections.unmodifiableMap(new HashMap<String, DepthPyramid>(depthPyramids));
+		this.tideSource = tideSource;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the pyramid or null if the grid of the region is not loaded
+	 */
+	public DepthPyramid getDepthPyramid(NogoRegion region) {
+		return depthPyramids.get(region.getName());
+	}
+
+	public Map<String, DepthPyramid> getDepthPyramids() {
+		return depthPyramids;
+	}
+
+	public TideSource getTideSource() {
+		return tideSource;
+	}
+
+}
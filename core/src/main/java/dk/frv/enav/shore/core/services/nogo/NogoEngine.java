@@ -0,0 +1,712 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import dk.frv.enav.common.xml.nogo.types.BoundingBoxPoint;
+import dk.frv.enav.common.xml.nogo.types.NogoGeometry;
+import dk.frv.enav.common.xml.nogo.types.NogoPoint;
+import dk.frv.enav.common.xml.nogo.types.NogoPolygon;
+import dk.frv.enav.common.xml.nogo.types.NogoTimeStep;
+import dk.frv.enav.shore.core.services.Errorcodes;
+import dk.frv.enav.shore.core.services.ServiceException;
+
+/**
+ * Turns depth and tide data into no go polygons. The engine keeps no state
+ * between calls, everything a calculation needs is passed in a
+ * {@link NogoContext}, so a single engine is shared by all requests.
+ * 
+ * Given a pool, large boxes are classified in strips of m rows in parallel,
+ * and outlines are traced in parallel for separate groups of runs. The strips
+ * never cut an outline, the runs of all strips are grouped by shared edges
+ * before tracing. The strips stop at the next row when their thread is
+ * interrupted, a calculation that passes its deadline, is interrupted or has
+ * a strip fail throws a ServiceException rather than return a partial result.
+ */
+public class NogoEngine {
+
+	/**
+	 * Fewest rows of a strip and runs of a batch of outlines worth a task
+	 */
+	private static final int MIN_STRIP_ROWS = 64;
+	private static final int MIN_BATCH_RUNS = 256;
+
+	/**
+	 * Most rows and cells of a row of a box whose runs are joined, the row and
+	 * both ends of a run are packed into 21 bits each of a long
+	 */
+	private static final int JOIN_LIMIT = 1 << 21;
+
+	/**
+	 * Tolerance of the outline simplification in grid cells, of the larger
+	 * side of a cell on the ground
+	 */
+	private final double simplifyTolerance;
+
+	private final NogoExecutor executor;
+	private final int strips;
+
+	public NogoEngine() {
+		this(1.0);
+	}
+
+	/**
+	 * @param simplifyTolerance
+	 *            largest distance in grid cells, of the larger side of a
+	 *            cell, the simplified outlines may move from the cell edges
+	 */
+	public NogoEngine(double simplifyTolerance) {
+		this(simplifyTolerance, null, 1);
+	}
+
+	/**
+	 * @param simplifyTolerance
+	 *            largest distance in grid cells, of the larger side of a
+	 *            cell, the simplified outlines may move from the cell edges
+	 * @param executor
+	 *            pool to run strips on or null to run on the calling thread
+	 * @param strips
+	 *            most tasks to split a calculation into
+	 */
+	public NogoEngine(double simplifyTolerance, NogoExecutor executor, int strips) {
+		this.simplifyTolerance = simplifyTolerance;
+		this.executor = executor;
+		this.strips = Math.max(1, strips);
+	}
+
+	/**
+	 * Calculate the no go polygons directly from an in-memory depth grid. The
+	 * cells are classified through the depth pyramid of the grid, so only the
+	 * blocks along the coast are looked at cell by cell, and the horizontal
+	 * runs of no go cells are found in the resulting mask. The lowest sea
+	 * level in the time window, interpolated from the tide cells around each
+	 * cell, is subtracted from its depth. With a route corridor in the context only the cells
+	 * of the corridor are classified.
+	 * 
+	 * @param pyramid
+	 *            depth pyramid of the grid
+	 * @param firstPos
+	 * @param secondPos
+	 * @param tide
+	 *            tide window or null if there is no tide data
+	 * @param context
+	 * @return
+	 */
+	public List<NogoPolygon> parseGrid(DepthPyramid pyramid, BoundingBoxPoint firstPos, BoundingBoxPoint secondPos,
+			TideWindow tide, NogoContext context) throws ServiceException {
+		return parseGrid(pyramid, firstPos, secondPos, tide, context, new double[] { context.getDraught() }).get(0);
+	}
+
+	/**
+	 * Calculate the no go polygons of several draughts from an in-memory depth
+	 * grid, classifying the cells against all draughts in one pass through
+	 * the depth pyramid
+	 * 
+	 * @param pyramid
+	 *            depth pyramid of the grid
+	 * @param firstPos
+	 * @param secondPos
+	 * @param tide
+	 *            tide window or null if there is no tide data
+	 * @param context
+	 * @param draughts
+	 *            draughts in increasing order, the deepest first
+	 * @return the polygons of each draught
+	 */
+	public List<List<NogoPolygon>> parseGrid(DepthPyramid pyramid, BoundingBoxPoint firstPos,
+			BoundingBoxPoint secondPos, TideWindow tide, NogoContext context, double[] draughts)
+			throws ServiceException {
+		int[][] runs = findRuns(pyramid, firstPos, secondPos, tide, context, draughts);
+		List<List<NogoPolygon>> res = new ArrayList<List<NogoPolygon>>(draughts.length);
+		for (int t = 0; t < draughts.length; t++) {
+			res.add(gridPolygons(runs[t], pyramid.getGrid(), context));
+		}
+		return res;
+	}
+
+	/**
+	 * Find the runs of no go cells of several draughts, as parseGrid does
+	 * before building the polygons
+	 * 
+	 * @return the runs of each draught, triples of m, first n and last n
+	 *         ordered by m and n
+	 */
+	public int[][] findRuns(final DepthPyramid pyramid, BoundingBoxPoint firstPos, BoundingBoxPoint secondPos,
+			TideWindow tide, NogoContext context, final double[] draughts) throws ServiceException {
+
+		DepthGrid grid = pyramid.getGrid();
+
+		final int n1 = Math.max(Math.min(firstPos.getN(), secondPos.getN()), grid.getMinN());
+		final int n2 = Math.min(Math.max(firstPos.getN(), secondPos.getN()), grid.getMaxN());
+		int m1 = Math.max(Math.min(firstPos.getM(), secondPos.getM()), grid.getMinM());
+		int m2 = Math.min(Math.max(firstPos.getM(), secondPos.getM()), grid.getMaxM());
+
+		final TideLevels levels = tide == null ? null : new TideLevels(grid, n1, n2, m1, m2, tide);
+
+		// Along a route only the spans of the corridor are classified
+		final int[] spans = context.getCorridor() == null ? null : context.getCorridor().toMask(
+				grid.getDescriptor(), n1, n2, m1, m2).findRuns();
+
+		int[][] bounds = strips(m1, m2);
+		final int[][][] parts = new int[bounds.length][draughts.length][];
+		List<Runnable> tasks = new ArrayList<Runnable>(bounds.length);
+		for (int i = 0; i < bounds.length; i++) {
+			final int index = i;
+			final int from = bounds[i][0];
+			final int to = bounds[i][1];
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					NogoMask[] masks = new NogoMask[draughts.length];
+					for (int t = 0; t < draughts.length; t++) {
+						masks[t] = new NogoMask(n1, n2, from, to);
+					}
+					if (spans == null) {
+						pyramid.classify(masks, n1, n2, from, to, levels, draughts);
+					} else {
+						for (int s = 0; s < spans.length && !Thread.currentThread().isInterrupted(); s += 3) {
+							if (spans[s] >= from && spans[s] <= to) {
+								pyramid.classify(masks, spans[s + 1], spans[s + 2], spans[s], spans[s], levels,
+										draughts);
+							}
+						}
+					}
+					for (int t = 0; t < draughts.length; t++) {
+						parts[index][t] = masks[t].findRuns();
+					}
+				}
+			});
+		}
+		runStrips(tasks, context.getDeadline());
+
+		int[][] runs = new int[draughts.length][];
+		for (int t = 0; t < draughts.length; t++) {
+			runs[t] = concat(parts, t);
+		}
+		return runs;
+	}
+
+	/**
+	 * Join the runs of neighbouring parts of a grid, e.g. tiles, into the runs
+	 * of a box as findRuns gives them for the box itself: cut at the box,
+	 * ordered by m and n, and runs meeting or overlapping in a row merged.
+	 * 
+	 * @return the runs or null if the box is too large to join in one sort
+	 */
+	public static int[] joinRuns(List<int[]> parts, BoundingBoxPoint firstPos, BoundingBoxPoint secondPos) {
+		int n1 = Math.min(firstPos.getN(), secondPos.getN());
+		int n2 = Math.max(firstPos.getN(), secondPos.getN());
+		int m1 = Math.min(firstPos.getM(), secondPos.getM());
+		int m2 = Math.max(firstPos.getM(), secondPos.getM());
+		if (n2 - n1 >= JOIN_LIMIT || m2 - m1 >= JOIN_LIMIT) {
+			return null;
+		}
+
+		// Each run cut at the box and packed into a long of its row, first and
+		// last cell relative to the box, so a sort orders them by m and n
+		int count = 0;
+		for (int[] part : parts) {
+			count += part.length / 3;
+		}
+		long[] packed = new long[count];
+		count = 0;
+		for (int[] part : parts) {
+			for (int r = 0; r < part.length; r += 3) {
+				int first = Math.max(part[r + 1], n1);
+				int last = Math.min(part[r + 2], n2);
+				if (part[r] >= m1 && part[r] <= m2 && first <= last) {
+					packed[count++] = ((long) (part[r] - m1) << 42) | ((long) (first - n1) << 21) | (last - n1);
+				}
+			}
+		}
+		Arrays.sort(packed, 0, count);
+
+		int[] runs = new int[count * 3];
+		int length = 0;
+		for (int i = 0; i < count; i++) {
+			int m = (int) (packed[i] >>> 42) + m1;
+			int first = (int) (packed[i] >>> 21 & JOIN_LIMIT - 1) + n1;
+			int last = (int) (packed[i] & JOIN_LIMIT - 1) + n1;
+			if (length > 0 && runs[length - 3] == m && runs[length - 1] + 1 >= first) {
+				runs[length - 1] = Math.max(runs[length - 1], last);
+			} else {
+				runs[length++] = m;
+				runs[length++] = first;
+				runs[length++] = last;
+			}
+		}
+		return length == runs.length ? runs : Arrays.copyOf(runs, length);
+	}
+
+	/**
+	 * Calculate the no go areas of a box hour by hour from an in-memory depth
+	 * grid. The first hour is classified in full, each later hour updates the
+	 * mask of the hour before through the depth pyramid, looking only at the
+	 * cells that may cross the draught, and polygons are built for the cells
+	 * that changed only.
+	 * 
+	 * @param pyramid
+	 *            depth pyramid of the grid
+	 * @param firstPos
+	 * @param secondPos
+	 * @param hours
+	 *            tide window of each hour or null if there is no tide data
+	 * @param context
+	 * @return a step for each hour, the area of the first hour given as added
+	 */
+	public List<NogoTimeStep> parseSeries(final DepthPyramid pyramid, BoundingBoxPoint firstPos,
+			BoundingBoxPoint secondPos, TideWindow[] hours, NogoContext context) throws ServiceException {
+
+		DepthGrid grid = pyramid.getGrid();
+
+		final int n1 = Math.max(Math.min(firstPos.getN(), secondPos.getN()), grid.getMinN());
+		final int n2 = Math.min(Math.max(firstPos.getN(), secondPos.getN()), grid.getMaxN());
+		int m1 = Math.max(Math.min(firstPos.getM(), secondPos.getM()), grid.getMinM());
+		int m2 = Math.min(Math.max(firstPos.getM(), secondPos.getM()), grid.getMaxM());
+
+		final double draught = context.getDraught();
+		final TideLevels[] levels = new TideLevels[hours.length];
+		for (int h = 0; h < hours.length; h++) {
+			levels[h] = hours[h] == null ? null : new TideLevels(grid, n1, n2, m1, m2, hours[h]);
+		}
+
+		final int[] spans = context.getCorridor() == null ? null : context.getCorridor().toMask(
+				grid.getDescriptor(), n1, n2, m1, m2).findRuns();
+
+		// Each strip keeps its mask from hour to hour, the runs of the first
+		// hour are followed by the runs added and removed each later hour
+		int[][] bounds = strips(m1, m2);
+		final int[][][] parts = new int[bounds.length][hours.length * 2 - 1][];
+		List<Runnable> tasks = new ArrayList<Runnable>(bounds.length);
+		for (int i = 0; i < bounds.length; i++) {
+			final int index = i;
+			final int from = bounds[i][0];
+			final int to = bounds[i][1];
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					NogoMask mask = new NogoMask(n1, n2, from, to);
+					if (spans == null) {
+						pyramid.classify(mask, n1, n2, from, to, levels[0], draught);
+					} else {
+						for (int s = 0; s < spans.length && !Thread.currentThread().isInterrupted(); s += 3) {
+							if (spans[s] >= from && spans[s] <= to) {
+								pyramid.classify(mask, spans[s + 1], spans[s + 2], spans[s], spans[s], levels[0],
+										draught);
+							}
+						}
+					}
+					parts[index][0] = mask.findRuns();
+
+					for (int h = 1; h < levels.length; h++) {
+						NogoMask added = new NogoMask(n1, n2, from, to);
+						NogoMask removed = new NogoMask(n1, n2, from, to);
+						if (spans == null) {
+							pyramid.reclassify(mask, added, removed, n1, n2, from, to, levels[h - 1], levels[h],
+									draught);
+						} else {
+							for (int s = 0; s < spans.length && !Thread.currentThread().isInterrupted(); s += 3) {
+								if (spans[s] >= from && spans[s] <= to) {
+									pyramid.reclassify(mask, added, removed, spans[s + 1], spans[s + 2], spans[s],
+											spans[s], levels[h - 1], levels[h], draught);
+								}
+							}
+						}
+						parts[index][h * 2 - 1] = added.findRuns();
+						parts[index][h * 2] = removed.findRuns();
+					}
+				}
+			});
+		}
+		runStrips(tasks, context.getDeadline());
+
+		List<NogoTimeStep> res = new ArrayList<NogoTimeStep>(hours.length);
+		NogoTimeStep first = new NogoTimeStep();
+		first.setAdded(gridPolygons(concat(parts, 0), grid, context));
+		res.add(first);
+		for (int h = 1; h < hours.length; h++) {
+			NogoTimeStep step = new NogoTimeStep();
+			step.setAdded(gridPolygons(concat(parts, h * 2 - 1), grid, context));
+			step.setRemoved(gridPolygons(concat(parts, h * 2), grid, context));
+			res.add(step);
+		}
+		return res;
+	}
+
+	/**
+	 * Calculate the no go polygons without tide from the precomputed runs of
+	 * an isobath ladder, clipped to the box
+	 * 
+	 * @param ladder
+	 * @param firstPos
+	 * @param secondPos
+	 * @param context
+	 * @return the polygons or null if the draught is below the ladder
+	 */
+	public List<NogoPolygon> clipIsobaths(IsobathLadder ladder, BoundingBoxPoint firstPos,
+			BoundingBoxPoint secondPos, NogoContext context) throws ServiceException {
+		List<List<NogoPolygon>> res = clipIsobaths(ladder, firstPos, secondPos, context,
+				new double[] { context.getDraught() });
+		return res == null ? null : res.get(0);
+	}
+
+	/**
+	 * Calculate the no go polygons of several draughts without tide from the
+	 * precomputed runs of an isobath ladder, clipped to the box
+	 * 
+	 * @param ladder
+	 * @param firstPos
+	 * @param secondPos
+	 * @param context
+	 * @param draughts
+	 * @return the polygons of each draught or null if a draught is below the
+	 *         ladder
+	 */
+	public List<List<NogoPolygon>> clipIsobaths(IsobathLadder ladder, BoundingBoxPoint firstPos,
+			BoundingBoxPoint secondPos, NogoContext context, double[] draughts) throws ServiceException {
+		int[][] runs = clipRuns(ladder, firstPos, secondPos, draughts);
+		if (runs == null) {
+			return null;
+		}
+		List<List<NogoPolygon>> res = new ArrayList<List<NogoPolygon>>(draughts.length);
+		for (int t = 0; t < draughts.length; t++) {
+			res.add(gridPolygons(runs[t], ladder.getPyramid().getGrid(), context));
+		}
+		return res;
+	}
+
+	/**
+	 * Cut the runs of several draughts out of an isobath ladder, as
+	 * clipIsobaths does before building the polygons
+	 * 
+	 * @return the runs of each draught or null if a draught is below the
+	 *         ladder
+	 */
+	public int[][] clipRuns(IsobathLadder ladder, BoundingBoxPoint firstPos, BoundingBoxPoint secondPos,
+			double[] draughts) {
+		int[][] runs = new int[draughts.length][];
+		for (int t = 0; t < draughts.length; t++) {
+			runs[t] = ladder.clip(draughts[t], Math.min(firstPos.getN(), secondPos.getN()),
+					Math.max(firstPos.getN(), secondPos.getN()), Math.min(firstPos.getM(), secondPos.getM()),
+					Math.max(firstPos.getM(), secondPos.getM()));
+			if (runs[t] == null) {
+				return null;
+			}
+		}
+		return runs;
+	}
+
+	/**
+	 * Build the polygons of the requested geometry, rectangles or outlines,
+	 * from runs of grid cells
+	 */
+	public List<NogoPolygon> gridPolygons(int[] runs, DepthGrid grid, NogoContext context)
+			throws ServiceException {
+		if (context.getGeometry() == NogoGeometry.OUTLINES) {
+			return outlineRuns(runs, grid.getDescriptor(), context.getDeadline());
+		}
+
+		return buildPolygons(runs, grid, context);
+	}
+
+	/**
+	 * Calculate closed contour polygons around the no go areas of an
+	 * in-memory depth grid by marching squares
+	 * 
+	 * @param grid
+	 * @param firstPos
+	 * @param secondPos
+	 * @param tide
+	 *            tide window or null if there is no tide data
+	 * @param context
+	 * @return outer polygons with their holes
+	 */
+	public List<NogoPolygon> contourGrid(DepthGrid grid, BoundingBoxPoint firstPos, BoundingBoxPoint secondPos,
+			TideWindow tide, NogoContext context) {
+		return contourGrid(grid, firstPos, secondPos, tide, context, new double[] { context.getDraught() }).get(0);
+	}
+
+	/**
+	 * Calculate contour polygons of several draughts, from a single depth
+	 * field of the box
+	 * 
+	 * @param grid
+	 * @param firstPos
+	 * @param secondPos
+	 * @param tide
+	 *            tide window or null if there is no tide data
+	 * @param context
+	 * @param draughts
+	 * @return outer polygons with their holes of each draught
+	 */
+	public List<List<NogoPolygon>> contourGrid(DepthGrid grid, BoundingBoxPoint firstPos,
+			BoundingBoxPoint secondPos, TideWindow tide, NogoContext context, double[] draughts) {
+
+		DepthField field = DepthField.create(grid, firstPos, secondPos, tide);
+		List<List<NogoPolygon>> res = new ArrayList<List<NogoPolygon>>(draughts.length);
+		for (double draught : draughts) {
+			List<double[]> rings = new MarchingSquares(field, draught).trace();
+			res.add(toPolygons(rings, grid.getDescriptor(), 0));
+		}
+		return res;
+	}
+
+	/**
+	 * Merge the runs of no go cells into rectilinear outlines along the cell
+	 * edges and simplify them within the tolerance of the engine. Each group
+	 * of runs joined by edges is traced on its own, so holes are only matched
+	 * against the outline of their own group.
+	 * 
+	 * @param runs
+	 *            m, first n and last n of each run, ordered by m and n
+	 * @param descriptor
+	 *            georeferencing of the cells
+	 * @param deadline
+	 *            time in millis since the epoch to finish tasks on the pool by
+	 * @return outer polygons with their holes
+	 */
+	List<NogoPolygon> outlineRuns(int[] runs, final GridDescriptor descriptor, long deadline)
+			throws ServiceException {
+		int count = runs.length / 3;
+		int batches = Math.max(1, Math.min(strips, count / MIN_BATCH_RUNS));
+
+		// Batches of whole groups of about the same number of runs
+		List<int[]> components = RunOutline.components(runs);
+		final List<List<int[]>> work = new ArrayList<List<int[]>>(batches);
+		List<int[]> batch = new ArrayList<int[]>();
+		int filled = 0;
+		for (int[] component : components) {
+			batch.add(component);
+			filled += component.length / 3;
+			if (filled * batches >= (work.size() + 1) * count) {
+				work.add(batch);
+				batch = new ArrayList<int[]>();
+			}
+		}
+		if (!batch.isEmpty()) {
+			work.add(batch);
+		}
+
+		final List<List<NogoPolygon>> parts = new ArrayList<List<NogoPolygon>>(Collections
+				.<List<NogoPolygon>> nCopies(work.size(), null));
+		List<Runnable> tasks = new ArrayList<Runnable>(work.size());
+		for (int i = 0; i < work.size(); i++) {
+			final int index = i;
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					List<NogoPolygon> polygons = new ArrayList<NogoPolygon>();
+					for (int[] component : work.get(index)) {
+						if (Thread.currentThread().isInterrupted()) {
+							return;
+						}
+						polygons.addAll(toPolygons(new RunOutline(component, component.length / 3).trace(),
+								descriptor, simplifyTolerance));
+					}
+					parts.set(index, polygons);
+				}
+			});
+		}
+		runStrips(tasks, deadline);
+
+		List<NogoPolygon> res = new ArrayList<NogoPolygon>();
+		for (List<NogoPolygon> part : parts) {
+			res.addAll(part);
+		}
+		return res;
+	}
+
+	/**
+	 * Split the rows from m1 to m2 into strips of at least MIN_STRIP_ROWS rows
+	 *
+	 * @return first and last m of each strip
+	 */
+	private int[][] strips(int m1, int m2) {
+		int rows = m2 - m1 + 1;
+		int count = Math.max(1, Math.min(strips, rows / MIN_STRIP_ROWS));
+		int[][] bounds = new int[count][];
+		for (int i = 0; i < count; i++) {
+			bounds[i] = new int[] { m1 + (int) ((long) rows * i / count), m1 + (int) ((long) rows * (i + 1) / count) - 1 };
+		}
+		return bounds;
+	}
+
+	/**
+	 * Run the tasks of a calculation on the strip pool, or on the calling
+	 * thread if the engine has no pool
+	 * 
+	 * @throws ServiceException
+	 *             with NOGO_TIMEOUT if the deadline passed or the calculation
+	 *             was interrupted and SYSTEM_ERROR if a task failed, the
+	 *             result being incomplete
+	 */
+	private void runStrips(List<Runnable> tasks, long deadline) throws ServiceException {
+		int errorCode;
+		if (executor == null || tasks.size() == 1) {
+			for (Runnable task : tasks) {
+				task.run();
+			}
+			errorCode = Thread.currentThread().isInterrupted() ? Errorcodes.NOGO_TIMEOUT : Errorcodes.OK;
+		} else {
+			errorCode = executor.runStrips(tasks, deadline);
+		}
+		if (errorCode != Errorcodes.OK) {
+			throw new ServiceException(errorCode, "NoGo calculation in " + tasks.size() + " tasks stopped");
+		}
+	}
+
+	/**
+	 * Put the runs of a draught, or hour, of strips ordered by m after each
+	 * other
+	 */
+	private static int[] concat(int[][][] parts, int index) {
+		if (parts.length == 1) {
+			return parts[0][index];
+		}
+		int length = 0;
+		for (int[][] part : parts) {
+			length += part[index].length;
+		}
+		int[] runs = new int[length];
+		int offset = 0;
+		for (int[][] part : parts) {
+			System.arraycopy(part[index], 0, runs, offset, part[index].length);
+			offset += part[index].length;
+		}
+		return runs;
+	}
+
+	/**
+	 * Turn rings in (n, m) coordinates into polygons. Counter clockwise rings
+	 * are outer rings, and each clockwise ring becomes a hole of the smallest
+	 * outer ring around it. With a tolerance the rings are simplified, and
+	 * holes no wider than twice the tolerance are filled, as the no go area
+	 * may grow by the tolerance anyway.
+	 */
+	private static List<NogoPolygon> toPolygons(List<double[]> rings, GridDescriptor descriptor, double tolerance) {
+		// The tolerance is in cells of the larger side, the cells of a grid
+		// of equal degrees being narrower along n than along m
+		double width = Math.abs(descriptor.getLonStep())
+				* Math.cos(Math.toRadians(descriptor.getLat((descriptor.getMinM() + descriptor.getMaxM()) / 2)));
+		double height = Math.abs(descriptor.getLatStep());
+		double scaleN = width / Math.max(width, height);
+		double scaleM = height / Math.max(width, height);
+
+		List<double[]> outers = new ArrayList<double[]>();
+		List<double[]> holes = new ArrayList<double[]>();
+		for (double[] ring : rings) {
+			if (MarchingSquares.area(ring) > 0) {
+				outers.add(ring);
+			} else {
+				holes.add(ring);
+			}
+		}
+
+		List<NogoPolygon> res = new ArrayList<NogoPolygon>(outers.size());
+		for (double[] outer : outers) {
+			res.add(toPolygon(RunOutline.simplify(outer, tolerance, scaleN, scaleM), descriptor));
+		}
+
+		for (double[] hole : holes) {
+			if (tolerance > 0 && RunOutline.within(hole, tolerance, scaleN, scaleM)) {
+				continue;
+			}
+
+			// The middle of an edge is never on another ring, unlike a corner
+			double n = (hole[0] + hole[2]) / 2;
+			double m = (hole[1] + hole[3]) / 2;
+			int owner = -1;
+			double ownerArea = Double.MAX_VALUE;
+			for (int i = 0; i < outers.size(); i++) {
+				double area = MarchingSquares.area(outers.get(i));
+				if (area < ownerArea && MarchingSquares.contains(outers.get(i), n, m)) {
+					owner = i;
+					ownerArea = area;
+				}
+			}
+			if (owner != -1) {
+				res.get(owner).getHoles().add(toPolygon(RunOutline.simplify(hole, tolerance, scaleN, scaleM),
+						descriptor));
+			}
+		}
+
+		return res;
+	}
+
+	private static NogoPolygon toPolygon(double[] ring, GridDescriptor descriptor) {
+		NogoPolygon polygon = new NogoPolygon();
+		for (int k = 0; k < ring.length; k += 2) {
+			polygon.getPolygon().add(new NogoPoint(descriptor.toLat(ring[k + 1]), descriptor.toLon(ring[k])));
+		}
+		return polygon;
+	}
+
+	/**
+	 * Build the no go polygons from runs of no go cells, ordered by m and n as
+	 * triples of m, first n and last n: a rectangle around each run of more
+	 * than one cell, and triangles connecting the ends of runs in neighbouring
+	 * rows. The points are placed at the coordinates of the cells in the grid.
+	 */
+	private List<NogoPolygon> buildPolygons(int[] runs, GeoGrid grid, NogoContext context) {
+
+		double latOffset = context.getLatOffset();
+		double lonOffset = context.getLonOffset();
+
+		// This is where we store our result
+		List<NogoPolygon> res = new ArrayList<NogoPolygon>();
+
+		if (runs.length == 0) {
+			return res;
+		}
+
+		// Index of the first run of each row with runs, and the end
+		List<Integer> rows = new ArrayList<Integer>();
+		for (int r = 0; r < runs.length; r += 3) {
+			if (r == 0 || runs[r] > runs[r - 3]) {
+				rows.add(r);
+			}
+		}
+		rows.add(runs.length);
+
+		// Connect the runs of each row to those of the row with runs below it,
+		// from the highest m down
+		List<NogoPolygon> allNeighboursLine = new ArrayList<NogoPolygon>();
+		for (int i = rows.size() - 2; i > 0; i--) {
+			for (int r = rows.get(i); r < rows.get(i + 1); r += 3) {
+				allNeighboursLine.addAll(connectNeighbourLines.connectFindValidNeighbours(grid, runs, r,
+						rows.get(i - 1), rows.get(i)));
+			}
+		}
+
+		// We found our neighbours, make sure they don't clash together
+		res.addAll(connectNeighbourLines.triangleOverlap(allNeighboursLine));
+
+		// The difference between each point / 2 is used in calculating the
+		// polygons surrounding the runs, singletons are not drawn
+		for (int r = 0; r < runs.length; r += 3) {
+			int m = runs[r];
+			int west = runs[r + 1];
+			int east = runs[r + 2];
+			if (west == east) {
+				continue;
+			}
+
+			double westLat = grid.getLat(west, m);
+			double westLon = grid.getLon(west, m) - lonOffset;
+			double eastLat = grid.getLat(east, m);
+			double eastLon = grid.getLon(east, m) + lonOffset;
+
+			NogoPolygon polygon = new NogoPolygon();
+			polygon.getPolygon().add(new NogoPoint(westLat + latOffset, westLon));
+			polygon.getPolygon().add(new NogoPoint(westLat - latOffset, westLon));
+			polygon.getPolygon().add(new NogoPoint(eastLat - latOffset, eastLon));
+			polygon.getPolygon().add(new NogoPoint(eastLat + latOffset, eastLon));
+			res.add(polygon);
+		}
+
+		return res;
+	}
+
+}
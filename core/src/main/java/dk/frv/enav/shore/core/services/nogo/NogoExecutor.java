@@ -0,0 +1,49 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.ejb.Local;
+
+@Local
+public interface NogoExecutor {
+
+	/**
+	 * Run tasks on the NoGo worker pool and wait for them to finish. Tasks
+	 * still running when the deadline passes are cancelled.
+	 * 
+	 * @param tasks
+	 * @param deadline
+	 *            time in millis since the epoch
+	 * @return Errorcodes.OK, NOGO_TIMEOUT if the deadline passed, NOGO_BUSY if
+	 *         the pool was full or SYSTEM_ERROR if a task failed
+	 */
+	int runAll(List<? extends Runnable> tasks, long deadline);
+
+	/**
+	 * Run the strips of a calculation on the calling thread and the helper
+	 * threads of the strip pool that are idle. Strips are never queued behind
+	 * other requests or rejected, a strip no helper is free for is run by the
+	 * caller. Strips still running when the deadline passes are cancelled.
+	 * 
+	 * @param tasks
+	 * @param deadline
+	 *            time in millis since the epoch
+	 * @return Errorcodes.OK, NOGO_TIMEOUT if the deadline passed or the caller
+	 *         was interrupted or SYSTEM_ERROR if a strip failed
+	 */
+	int runStrips(List<? extends Runnable> tasks, long deadline);
+
+	/**
+	 * Get the time in millis a NoGo request is allowed to take
+	 * @return
+	 */
+	long getTimeout();
+
+	/**
+	 * Get pool statistics for the status page
+	 * @return
+	 */
+	Map<String, String> getStatistics();
+
+}
@@ -0,0 +1,205 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+
+import org.apache.log4j.Logger;
+
+import dk.frv.enav.common.jboss.JbossProperties;
+import dk.frv.enav.shore.core.services.Errorcodes;
+
+/**
+ * Shared, bounded pool running the database queries of NoGo requests. The
+ * pool is created at deployment and shut down with the application. Pool size,
+ * queue length and request timeout are read from nogo_pool_size,
+ * nogo_queue_size and nogo_timeout (millis).
+ * 
+ * The strips of in-memory calculations run on a pool of their own of
+ * nogo_strip_pool_size helper threads without a queue, so they never wait
+ * behind the database queries of the request they belong to.
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class NogoExecutorBean implements NogoExecutor {
+
+	private static Logger LOG = Logger.getLogger(NogoExecutorBean.class);
+
+	private ThreadPoolExecutor executor;
+	private ThreadPoolExecutor stripExecutor;
+	private int queueSize;
+	private long timeout;
+
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong callerStrips = new AtomicLong();
+
+	@PostConstruct
+	public void init() {
+		int poolSize = Integer.parseInt(JbossProperties.get("nogo_pool_size", "12"));
+		queueSize = Integer.parseInt(JbossProperties.get("nogo_queue_size", "60"));
+		timeout = Long.parseLong(JbossProperties.get("nogo_timeout", "30000"));
+
+		executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+				queueSize), new WorkerThreadFactory("nogo-worker-"));
+		executor.allowCoreThreadTimeOut(true);
+
+		int stripPoolSize = Integer.parseInt(JbossProperties.get("nogo_strip_pool_size", Integer.toString(Runtime
+				.getRuntime().availableProcessors())));
+		stripExecutor = new ThreadPoolExecutor(stripPoolSize, stripPoolSize, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new WorkerThreadFactory("nogo-strip-"));
+		stripExecutor.allowCoreThreadTimeOut(true);
+
+		LOG.info("NoGo pool started with " + poolSize + " threads and a queue of " + queueSize + ", strip pool with "
+				+ stripPoolSize + " threads");
+	}
+
+	@PreDestroy
+	public void destroy() {
+		executor.shutdownNow();
+		stripExecutor.shutdownNow();
+	}
+
+	@Override
+	public int runAll(List<? extends Runnable> tasks, long deadline) {
+		List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+		try {
+			for (Runnable task : tasks) {
+				futures.add(executor.submit(task));
+			}
+		} catch (RejectedExecutionException e) {
+			LOG.warn("NoGo pool is full, rejecting request");
+			rejected.incrementAndGet();
+			cancel(futures);
+			return Errorcodes.NOGO_BUSY;
+		}
+		return await(futures, deadline);
+	}
+
+	@Override
+	public int runStrips(List<? extends Runnable> tasks, long deadline) {
+		List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+		List<Runnable> local = new ArrayList<Runnable>();
+		local.add(tasks.get(0));
+		for (Runnable task : tasks.subList(1, tasks.size())) {
+			try {
+				futures.add(stripExecutor.submit(task));
+			} catch (RejectedExecutionException e) {
+				local.add(task);
+			}
+		}
+		callerStrips.addAndGet(local.size());
+
+		for (Runnable task : local) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				LOG.error("NoGo strip failed", e);
+				cancel(futures);
+				return Errorcodes.SYSTEM_ERROR;
+			}
+			if (Thread.currentThread().isInterrupted() || System.currentTimeMillis() > deadline) {
+				LOG.warn("NoGo request passed its deadline, cancelling " + futures.size() + " strips");
+				timeouts.incrementAndGet();
+				cancel(futures);
+				return Errorcodes.NOGO_TIMEOUT;
+			}
+		}
+
+		return await(futures, deadline);
+	}
+
+	/**
+	 * Wait for the tasks to finish, cancelling all of them when the deadline
+	 * passes or one of them fails
+	 */
+	private int await(List<Future<?>> futures, long deadline) {
+		for (Future<?> future : futures) {
+			try {
+				future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				LOG.warn("NoGo request passed its deadline, cancelling " + futures.size() + " tasks");
+				timeouts.incrementAndGet();
+				cancel(futures);
+				return Errorcodes.NOGO_TIMEOUT;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				cancel(futures);
+				return Errorcodes.NOGO_TIMEOUT;
+			} catch (ExecutionException e) {
+				LOG.error("NoGo task failed", e.getCause());
+				cancel(futures);
+				return Errorcodes.SYSTEM_ERROR;
+			} catch (CancellationException e) {
+				return Errorcodes.NOGO_TIMEOUT;
+			}
+		}
+		return Errorcodes.OK;
+	}
+
+	private static void cancel(List<Future<?>> futures) {
+		for (Future<?> future : futures) {
+			future.cancel(true);
+		}
+	}
+
+	@Override
+	public long getTimeout() {
+		return timeout;
+	}
+
+	@Override
+	public Map<String, String> getStatistics() {
+		Map<String, String> stats = new LinkedHashMap<String, String>();
+		stats.put("NOGO_POOL_SIZE", Integer.toString(executor.getPoolSize()));
+		stats.put("NOGO_POOL_ACTIVE", Integer.toString(executor.getActiveCount()));
+		stats.put("NOGO_POOL_LARGEST", Integer.toString(executor.getLargestPoolSize()));
+		stats.put("NOGO_QUEUE", executor.getQueue().size() + "/" + queueSize);
+		stats.put("NOGO_COMPLETED", Long.toString(executor.getCompletedTaskCount()));
+		stats.put("NOGO_REJECTED", Long.toString(rejected.get()));
+		stats.put("NOGO_TIMEOUTS", Long.toString(timeouts.get()));
+		stats.put("NOGO_STRIP_POOL_ACTIVE", Integer.toString(stripExecutor.getActiveCount()));
+		stats.put("NOGO_CALLER_STRIPS", Long.toString(callerStrips.get()));
+		return stats;
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		public WorkerThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+
+	}
+
+}
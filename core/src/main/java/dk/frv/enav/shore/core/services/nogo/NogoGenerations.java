@@ -0,0 +1,157 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generations of NoGo data in a data directory. A generation is a numbered
+ * directory holding the grid files of the regions and the tide cube, and the
+ * file current holds the number of the generation in use:
+ *
+ * <pre>
+ * &lt;nogo_data_dir&gt;/current            e.g. 7
+ * &lt;nogo_data_dir&gt;/7/humber.grid
+ * &lt;nogo_data_dir&gt;/7/tide.tide
+ * </pre>
+ *
+ * A generation is written in full before it is published, and never changed
+ * afterwards. It is published by writing its number to a temporary file
+ * renamed over current, so a reader sees the old or the new generation and
+ * never one in the making.
+ */
+public final class NogoGenerations {
+
+	public static final String CURRENT = "current";
+
+	/**
+	 * File name of the tide cube in a generation
+	 */
+	public static final String TIDE_FILE = "tide" + TideCubeFile.EXTENSION;
+
+	private NogoGenerations() {
+	}
+
+	/**
+	 * Read the generation in use
+	 *
+	 * @param dataDir
+	 * @return the generation or 0 if none has been published
+	 * @throws IOException
+	 */
+	public static long getCurrent(File dataDir) throws IOException {
+		File file = new File(dataDir, CURRENT);
+		if (!file.exists()) {
+			return 0;
+		}
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line = in.readLine();
+			return line == null ? 0 : Long.parseLong(line.trim());
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid generation in " + file);
+		} finally {
+			in.close();
+		}
+	}
+
+	public static File getDirectory(File dataDir, long generation) {
+		return new File(dataDir, Long.toString(generation));
+	}
+
+	/**
+	 * Create the directory of a new generation, numbered after all existing
+	 * generations
+	 *
+	 * @param dataDir
+	 * @return the new generation
+	 * @throws IOException
+	 *             if the directory can not be created, e.g. by another
+	 *             ingestion creating the same generation
+	 */
+	public static long create(File dataDir) throws IOException {
+		dataDir.mkdirs();
+		long generation = getCurrent(dataDir);
+		for (long existing : list(dataDir)) {
+			generation = Math.max(generation, existing);
+		}
+		generation++;
+		File dir = getDirectory(dataDir, generation);
+		if (!dir.mkdir()) {
+			throw new IOException("Failed to create " + dir);
+		}
+		return generation;
+	}
+
+	/**
+	 * Make a generation the one in use
+	 *
+	 * @param dataDir
+	 * @param generation
+	 * @throws IOException
+	 */
+	public static void publish(File dataDir, long generation) throws IOException {
+		File tmp = new File(dataDir, CURRENT + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write((generation + "\n").getBytes("US-ASCII"));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		File file = new File(dataDir, CURRENT);
+		if (!tmp.renameTo(file)) {
+			// Not atomic, only where a rename does not replace a file
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Failed to publish generation " + generation + " in " + dataDir);
+			}
+		}
+	}
+
+	/**
+	 * Delete the generations before the current one but the newest keep - 1.
+	 * The files of a deleted generation stay readable where the service still
+	 * has them mapped.
+	 *
+	 * @param dataDir
+	 * @param keep
+	 *            number of generations to keep including the current one
+	 * @throws IOException
+	 */
+	public static void prune(File dataDir, int keep) throws IOException {
+		long current = getCurrent(dataDir);
+		for (long generation : list(dataDir)) {
+			if (generation <= current - Math.max(1, keep)) {
+				File dir = getDirectory(dataDir, generation);
+				File[] files = dir.listFiles();
+				if (files != null) {
+					for (File file : files) {
+						file.delete();
+					}
+				}
+				dir.delete();
+			}
+		}
+	}
+
+	private static List<Long> list(File dataDir) {
+		List<Long> generations = new ArrayList<Long>();
+		File[] files = dataDir.listFiles();
+		if (files == null) {
+			return generations;
+		}
+		for (File file : files) {
+			if (file.isDirectory() && file.getName().matches("[0-9]+")) {
+				generations.add(Long.parseLong(file.getName()));
+			}
+		}
+		return generations;
+	}
+
+}
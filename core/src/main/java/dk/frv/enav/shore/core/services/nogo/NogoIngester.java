@@ -0,0 +1,760 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Offline tool ingesting hydrodynamic model output into a new generation of
+ * NoGo data, see {@link NogoGenerations}.
+ *
+ * <pre>
+ * usage: NogoIngester [-threads &lt;count&gt;] [-keep &lt;count&gt;] &lt;data dir&gt; &lt;dataset&gt;=&lt;file&gt;...
+ * e.g.   NogoIngester /data/nogo tide=dmi-20120105.csv tide=dmi-20120106.csv humber=humber-depth.csv
+ * </pre>
+ *
+ * The dataset is tide or the name of a region, and is given once per file of
+ * its output. The files are text with the columns of the tide and depth
+ * tables, separated by commas, semicolons or white space. Lines not starting
+ * with a number, such as headers, are skipped.
+ *
+ * <pre>
+ * tide:   n m lat lon time level   time as yyyy-MM-dd HH:mm:ss in local time or millis since the epoch
+ * depth:  n m lat lon depth        no depth or NaN for land
+ * </pre>
+ *
+ * The files are cut into chunks at line ends and each chunk is parsed on its
+ * own thread, twice: once for the extent of the data and once for the values,
+ * which are put straight into the memory mapped grid and tide files. Datasets
+ * not given are copied from the current generation, so each generation is
+ * complete, and the new generation is published once all its files are
+ * written. The NoGo service swaps it in within a minute.
+ */
+public class NogoIngester {
+
+	private static final long HOUR = 3600 * 1000L;
+
+	/**
+	 * Bytes of a file parsed per task
+	 */
+	private static final int CHUNK_SIZE = 16 << 20;
+
+	public static final String TIDE = "tide";
+
+	private final ExecutorService executor;
+	private final int threads;
+
+	public NogoIngester(int threads) {
+		this.threads = threads;
+		this.executor = Executors.newFixedThreadPool(threads);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int keep = 2;
+		int i = 0;
+		while (i + 1 < args.length && args[i].startsWith("-")) {
+			if (args[i].equals("-threads")) {
+				threads = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("-keep")) {
+				keep = Integer.parseInt(args[i + 1]);
+			} else {
+				break;
+			}
+			i += 2;
+		}
+
+		Map<String, List<File>> datasets = new LinkedHashMap<String, List<File>>();
+		for (int k = i + 1; k < args.length; k++) {
+			int split = args[k].indexOf('=');
+			if (split < 1) {
+				datasets.clear();
+				break;
+			}
+			String name = args[k].substring(0, split).toLowerCase();
+			if (!datasets.containsKey(name)) {
+				datasets.put(name, new ArrayList<File>());
+			}
+			datasets.get(name).add(new File(args[k].substring(split + 1)));
+		}
+		if (i >= args.length || datasets.isEmpty()) {
+			System.err.println("usage: NogoIngester [-threads <count>] [-keep <count>] <data dir> <dataset>=<file>...");
+			System.exit(1);
+		}
+
+		File dataDir = new File(args[i]);
+		NogoIngester ingester = new NogoIngester(threads);
+		try {
+			long generation = ingester.ingest(dataDir, datasets);
+			NogoGenerations.prune(dataDir, keep);
+			System.out.println("Published generation " + generation + " in " + dataDir);
+		} finally {
+			ingester.shutdown();
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Write the datasets into a new generation and publish it
+	 *
+	 * @param dataDir
+	 * @param datasets
+	 *            files of each dataset, tide or the name of a region
+	 * @return the new generation
+	 * @throws IOException
+	 *             if a file can not be read or written, the new generation is
+	 *             then removed again
+	 */
+	public long ingest(File dataDir, Map<String, List<File>> datasets) throws IOException {
+		long current = NogoGenerations.getCurrent(dataDir);
+		long generation = NogoGenerations.create(dataDir);
+		File dir = NogoGenerations.getDirectory(dataDir, generation);
+		try {
+			for (Map.Entry<String, List<File>> dataset : datasets.entrySet()) {
+				long start = System.currentTimeMillis();
+				if (dataset.getKey().equals(TIDE)) {
+					ingestTide(dataset.getValue(), new File(dir, NogoGenerations.TIDE_FILE));
+				} else {
+					ingestGrid(dataset.getValue(), new File(dir, dataset.getKey() + DepthGridFile.EXTENSION));
+				}
+				System.out.println("Ingested " + dataset.getKey() + " in " + (System.currentTimeMillis() - start)
+						+ " ms");
+			}
+
+			File[] previous = current == 0 ? null : NogoGenerations.getDirectory(dataDir, current).listFiles();
+			if (previous != null) {
+				for (File file : previous) {
+					File target = new File(dir, file.getName());
+					if (!target.exists()) {
+						copy(file, target);
+					}
+				}
+			}
+		} catch (IOException e) {
+			delete(dir);
+			throw e;
+		}
+
+		NogoGenerations.publish(dataDir, generation);
+		return generation;
+	}
+
+	/**
+	 * Parse depth files into a grid file, cells without a row being open water
+	 * as in {@link ArrayDepthGrid}
+	 */
+	void ingestGrid(List<File> files, File output) throws IOException {
+		List<Chunk> chunks = split(files);
+		Extent extent = scan(chunks, false);
+		if (extent.rows == 0) {
+			throw new IOException("No depth rows in " + files);
+		}
+
+		int nCount = extent.getNCount();
+		int mCount = extent.getMCount();
+		MappedByteBuffer buffer = create(output, DepthGridFile.HEADER_SIZE + (long) nCount * mCount * 4);
+		FloatBuffer depths = slice(buffer, DepthGridFile.HEADER_SIZE);
+		fill(depths, Float.NEGATIVE_INFINITY);
+
+		Coordinates coordinates = read(chunks, false, extent, depths);
+		double[] lats = coordinates.lats;
+		double[] lons = coordinates.lons;
+		DepthGridFile.writeHeader(buffer, extent.minN, extent.minM, nCount, mCount, lats[0], lons[0],
+				mCount > 1 ? (lats[mCount - 1] - lats[0]) / (mCount - 1) : 0,
+				nCount > 1 ? (lons[nCount - 1] - lons[0]) / (nCount - 1) : 0);
+		buffer.force();
+	}
+
+	/**
+	 * Parse tide files into a tide cube file
+	 */
+	void ingestTide(List<File> files, File output) throws IOException {
+		List<Chunk> chunks = split(files);
+		Extent extent = scan(chunks, true);
+		if (extent.rows == 0) {
+			throw new IOException("No tide rows in " + files);
+		}
+
+		int nCount = extent.getNCount();
+		int mCount = extent.getMCount();
+		int hours = extent.getHours();
+		MappedByteBuffer buffer = create(output, TideCubeFile.size(nCount, mCount, hours));
+		FloatBuffer levels = slice(buffer, (int) TideCubeFile.levelsOffset(nCount, mCount));
+		fill(levels, Float.NaN);
+
+		Coordinates coordinates = read(chunks, true, extent, levels);
+		for (int i = 0; i < mCount; i++) {
+			buffer.putDouble(TideCubeFile.HEADER_SIZE + i * 8, coordinates.lats[i]);
+		}
+		for (int i = 0; i < nCount; i++) {
+			buffer.putDouble(TideCubeFile.HEADER_SIZE + (mCount + i) * 8, coordinates.lons[i]);
+		}
+		TideCubeFile.writeHeader(buffer, extent.minN, extent.minM, nCount, mCount, hours, extent.minTime,
+				extent.maxTime, extent.rows);
+		buffer.force();
+	}
+
+	/**
+	 * Cut files into chunks ending at line ends
+	 */
+	private static List<Chunk> split(List<File> files) throws IOException {
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		for (File file : files) {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				long size = raf.length();
+				long start = 0;
+				while (start < size) {
+					long end = Math.min(size, start + CHUNK_SIZE);
+					raf.seek(end);
+					while (end < size && raf.read() != '\n') {
+						end++;
+					}
+					end = Math.min(size, end + 1);
+					chunks.add(new Chunk(file, start, (int) (end - start)));
+					start = end;
+				}
+			} finally {
+				raf.close();
+			}
+		}
+		return chunks;
+	}
+
+	/**
+	 * First pass, the extent of the rows of all chunks
+	 */
+	private Extent scan(List<Chunk> chunks, final boolean tide) throws IOException {
+		List<Callable<Extent>> tasks = new ArrayList<Callable<Extent>>();
+		for (final Chunk chunk : chunks) {
+			tasks.add(new Callable<Extent>() {
+				@Override
+				public Extent call() throws IOException {
+					Extent extent = new Extent();
+					RowParser parser = new RowParser(chunk, tide, true);
+					while (parser.next()) {
+						extent.add(parser.n, parser.m, parser.time);
+					}
+					return extent;
+				}
+			});
+		}
+
+		Extent extent = new Extent();
+		for (Extent part : runAll(tasks)) {
+			extent.add(part);
+		}
+		return extent;
+	}
+
+	/**
+	 * Second pass, put the value of each row at its cell, or at its hour of
+	 * the cell for tide
+	 */
+	private Coordinates read(List<Chunk> chunks, final boolean tide, final Extent extent, final FloatBuffer values)
+			throws IOException {
+		final int nCount = extent.getNCount();
+		final int mCount = extent.getMCount();
+		final int hours = tide ? extent.getHours() : 1;
+
+		List<Callable<Coordinates>> tasks = new ArrayList<Callable<Coordinates>>();
+		for (final Chunk chunk : chunks) {
+			tasks.add(new Callable<Coordinates>() {
+				@Override
+				public Coordinates call() throws IOException {
+					Coordinates coordinates = new Coordinates(nCount, mCount);
+					RowParser parser = new RowParser(chunk, tide, false);
+					while (parser.next()) {
+						int row = parser.m - extent.minM;
+						int col = parser.n - extent.minN;
+						int hour = tide ? (int) ((parser.time - extent.minTime) / HOUR) : 0;
+						values.put((row * nCount + col) * hours + hour, (float) parser.value);
+						if (!Double.isNaN(parser.lat)) {
+							coordinates.lats[row] = parser.lat;
+						}
+						if (!Double.isNaN(parser.lon)) {
+							coordinates.lons[col] = parser.lon;
+						}
+					}
+					return coordinates;
+				}
+			});
+		}
+
+		Coordinates coordinates = new Coordinates(nCount, mCount);
+		for (Coordinates part : runAll(tasks)) {
+			coordinates.add(part);
+		}
+		ArrayDepthGrid.fill(coordinates.lats);
+		ArrayDepthGrid.fill(coordinates.lons);
+		return coordinates;
+	}
+
+	/**
+	 * Fill a buffer in a slice per thread
+	 */
+	private void fill(final FloatBuffer values, final float value) throws IOException {
+		int capacity = values.capacity();
+		int part = (capacity + threads - 1) / threads;
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int start = 0; start < capacity; start += part) {
+			final int from = start;
+			final int to = Math.min(capacity, start + part);
+			tasks.add(new Callable<Object>() {
+				@Override
+				public Object call() {
+					for (int i = from; i < to; i++) {
+						values.put(i, value);
+					}
+					return null;
+				}
+			});
+		}
+		runAll(tasks);
+	}
+
+	private <T> List<T> runAll(List<Callable<T>> tasks) throws IOException {
+		try {
+			List<T> results = new ArrayList<T>(tasks.size());
+			for (Future<T> future : executor.invokeAll(tasks)) {
+				results.add(future.get());
+			}
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause().toString(), e.getCause());
+		}
+	}
+
+	private static MappedByteBuffer create(File file, long size) throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Too much data for " + file + ": " + size + " bytes");
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(size);
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static FloatBuffer slice(ByteBuffer buffer, int offset) {
+		ByteBuffer values = buffer.duplicate();
+		values.position(offset);
+		return values.slice().asFloatBuffer();
+	}
+
+	private static void copy(File source, File target) throws IOException {
+		FileChannel in = new FileInputStream(source).getChannel();
+		try {
+			FileChannel out = new FileOutputStream(target).getChannel();
+			try {
+				long position = 0;
+				long size = in.size();
+				while (position < size) {
+					position += in.transferTo(position, size - position, out);
+				}
+				out.force(true);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	private static class Chunk {
+
+		private final File file;
+		private final long offset;
+		private final int length;
+
+		Chunk(File file, long offset, int length) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+		}
+
+	}
+
+	/**
+	 * Bounds of the cells and times of rows
+	 */
+	private static class Extent {
+
+		private int minN = Integer.MAX_VALUE;
+		private int maxN = Integer.MIN_VALUE;
+		private int minM = Integer.MAX_VALUE;
+		private int maxM = Integer.MIN_VALUE;
+		private long minTime = Long.MAX_VALUE;
+		private long maxTime = Long.MIN_VALUE;
+		private long rows;
+
+		void add(int n, int m, long time) {
+			minN = Math.min(minN, n);
+			maxN = Math.max(maxN, n);
+			minM = Math.min(minM, m);
+			maxM = Math.max(maxM, m);
+			minTime = Math.min(minTime, time);
+			maxTime = Math.max(maxTime, time);
+			rows++;
+		}
+
+		void add(Extent other) {
+			minN = Math.min(minN, other.minN);
+			maxN = Math.max(maxN, other.maxN);
+			minM = Math.min(minM, other.minM);
+			maxM = Math.max(maxM, other.maxM);
+			minTime = Math.min(minTime, other.minTime);
+			maxTime = Math.max(maxTime, other.maxTime);
+			rows += other.rows;
+		}
+
+		int getNCount() {
+			return maxN - minN + 1;
+		}
+
+		int getMCount() {
+			return maxM - minM + 1;
+		}
+
+		int getHours() {
+			return (int) ((maxTime - minTime) / HOUR) + 1;
+		}
+
+	}
+
+	/**
+	 * Latitude of each m row and longitude of each n column found in rows
+	 */
+	private static class Coordinates {
+
+		private final double[] lats;
+		private final double[] lons;
+
+		Coordinates(int nCount, int mCount) {
+			lats = new double[mCount];
+			lons = new double[nCount];
+			Arrays.fill(lats, Double.NaN);
+			Arrays.fill(lons, Double.NaN);
+		}
+
+		void add(Coordinates other) {
+			for (int i = 0; i < lats.length; i++) {
+				if (Double.isNaN(lats[i])) {
+					lats[i] = other.lats[i];
+				}
+			}
+			for (int i = 0; i < lons.length; i++) {
+				if (Double.isNaN(lons[i])) {
+					lons[i] = other.lons[i];
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Rows of a chunk, parsed a field at a time from the mapped bytes without
+	 * creating strings. A line ends at a newline, which no field takes.
+	 */
+	private static class RowParser {
+
+		private static final double[] POWERS = new double[16];
+
+		static {
+			POWERS[0] = 1;
+			for (int i = 1; i < POWERS.length; i++) {
+				POWERS[i] = POWERS[i - 1] * 10;
+			}
+		}
+
+		private final Chunk chunk;
+		private final ByteBuffer bytes;
+		private final int end;
+		private final boolean tide;
+		private final boolean scan;
+		private int pos;
+
+		/**
+		 * Model output comes in time steps, so a time is converted once for
+		 * all the rows of its step
+		 */
+		private final Calendar calendar = Calendar.getInstance();
+		private long lastStamp = -1;
+		private long lastTime;
+
+		private int n;
+		private int m;
+		private double lat;
+		private double lon;
+		private long time;
+		private double value;
+
+		/**
+		 * @param scan
+		 *            only parse the cell and time of each row
+		 */
+		RowParser(Chunk chunk, boolean tide, boolean scan) throws IOException {
+			this.chunk = chunk;
+			this.end = chunk.length;
+			this.tide = tide;
+			this.scan = scan;
+			RandomAccessFile raf = new RandomAccessFile(chunk.file, "r");
+			try {
+				this.bytes = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, chunk.offset, chunk.length);
+			} finally {
+				raf.close();
+			}
+		}
+
+		/**
+		 * Parse the next row
+		 *
+		 * @return false at the end of the chunk
+		 */
+		boolean next() throws IOException {
+			while (pos < end) {
+				skipSeparators();
+				if (pos < end && (isDigit(bytes.get(pos)) || bytes.get(pos) == '-')) {
+					n = (int) parseLong();
+					m = (int) parseLong();
+					if (!scan) {
+						lat = parseDouble();
+						lon = parseDouble();
+						time = tide ? parseTime() : 0;
+						value = parseDouble();
+					} else if (tide) {
+						skipField();
+						skipField();
+						time = parseTime();
+					}
+					skipLine();
+					return true;
+				}
+				skipLine();
+			}
+			return false;
+		}
+
+		private long parseLong() throws IOException {
+			skipSeparators();
+			boolean negative = pos < end && bytes.get(pos) == '-';
+			if (negative) {
+				pos++;
+			}
+			long value = digits();
+			return negative ? -value : value;
+		}
+
+		/**
+		 * Parse a decimal number, exactly as the mantissa and the power of ten
+		 * are exact doubles. Exponents and longer numbers are left to
+		 * Double.parseDouble.
+		 *
+		 * @return the number or NaN for NaN, null or a missing value
+		 */
+		private double parseDouble() throws IOException {
+			skipSeparators();
+			if (atLineEnd()) {
+				return Double.NaN;
+			}
+			int start = pos;
+			byte c = bytes.get(pos);
+			if (c == 'N' || c == 'n') {
+				skipToken();
+				return Double.NaN;
+			}
+			boolean negative = c == '-';
+			if (negative || c == '+') {
+				pos++;
+			}
+
+			long mantissa = 0;
+			int digits = 0;
+			int decimals = -1;
+			while (pos < end) {
+				c = bytes.get(pos);
+				if (isDigit(c)) {
+					mantissa = mantissa * 10 + (c - '0');
+					digits++;
+					if (decimals >= 0) {
+						decimals++;
+					}
+				} else if (c == '.' && decimals < 0) {
+					decimals = 0;
+				} else {
+					break;
+				}
+				pos++;
+			}
+
+			if (digits == 0 || digits >= POWERS.length || (!atLineEnd() && !isSeparator(bytes.get(pos)))) {
+				pos = start;
+				skipToken();
+				byte[] token = new byte[pos - start];
+				for (int i = 0; i < token.length; i++) {
+					token[i] = bytes.get(start + i);
+				}
+				try {
+					return Double.parseDouble(new String(token, "US-ASCII"));
+				} catch (NumberFormatException e) {
+					throw invalid(start);
+				}
+			}
+
+			double value = decimals > 0 ? mantissa / POWERS[decimals] : mantissa;
+			return negative ? -value : value;
+		}
+
+		/**
+		 * Parse a time as millis or yyyy-MM-dd HH:mm:ss in local time, the
+		 * time of day and the seconds being optional
+		 */
+		private long parseTime() throws IOException {
+			skipSeparators();
+			long first = digits();
+			if (pos == end || bytes.get(pos) != '-') {
+				return first;
+			}
+			pos++;
+			int year = (int) first;
+			int month = (int) digits();
+			expect('-');
+			int day = (int) digits();
+
+			int hour = 0;
+			int minute = 0;
+			int second = 0;
+			if (pos + 1 < end && (bytes.get(pos) == ' ' || bytes.get(pos) == 'T') && isDigit(bytes.get(pos + 1))) {
+				int mark = pos;
+				pos++;
+				int value = (int) digits();
+				if (pos < end && bytes.get(pos) == ':') {
+					pos++;
+					hour = value;
+					minute = (int) digits();
+					if (pos < end && bytes.get(pos) == ':') {
+						pos++;
+						second = (int) digits();
+					}
+					// Fractions of a second as written by MySQL
+					if (pos < end && bytes.get(pos) == '.') {
+						skipToken();
+					}
+				} else {
+					// The next field, the time is a date only
+					pos = mark;
+				}
+			}
+
+			long stamp = ((((year * 13L + month) * 32 + day) * 24 + hour) * 60 + minute) * 60 + second;
+			if (stamp != lastStamp) {
+				calendar.clear();
+				calendar.set(year, month - 1, day, hour, minute, second);
+				lastTime = calendar.getTimeInMillis();
+				lastStamp = stamp;
+			}
+			return lastTime;
+		}
+
+		private long digits() throws IOException {
+			int start = pos;
+			long value = 0;
+			while (pos < end && isDigit(bytes.get(pos))) {
+				value = value * 10 + (bytes.get(pos) - '0');
+				pos++;
+			}
+			if (pos == start) {
+				throw invalid(start);
+			}
+			return value;
+		}
+
+		private void expect(char c) throws IOException {
+			if (pos == end || bytes.get(pos) != c) {
+				throw invalid(pos);
+			}
+			pos++;
+		}
+
+		private void skipSeparators() {
+			while (pos < end && isSeparator(bytes.get(pos))) {
+				pos++;
+			}
+		}
+
+		private void skipToken() {
+			while (!atLineEnd() && !isSeparator(bytes.get(pos))) {
+				pos++;
+			}
+		}
+
+		private void skipField() {
+			skipSeparators();
+			skipToken();
+		}
+
+		private void skipLine() {
+			while (pos < end) {
+				if (bytes.get(pos++) == '\n') {
+					return;
+				}
+			}
+		}
+
+		private boolean atLineEnd() {
+			return pos == end || bytes.get(pos) == '\n';
+		}
+
+		private IOException invalid(int at) {
+			return new IOException("Invalid row at byte " + (chunk.offset + at) + " of " + chunk.file);
+		}
+
+		private static boolean isDigit(byte c) {
+			return c >= '0' && c <= '9';
+		}
+
+		private static boolean isSeparator(byte c) {
+			return c == ',' || c == ';' || c == ' ' || c == '\t' || c == '\r';
+		}
+
+	}
+
+}
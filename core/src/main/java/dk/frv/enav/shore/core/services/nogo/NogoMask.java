@@ -0,0 +1,177 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.Arrays;
+
+/**
+ * No go cells of a box as a bitset per m row, bit n - minN of a row being set
+ * for a no go cell. The runs of no go cells are found a word at a time,
+ * skipping 64 cells of open water or no go per step.
+ */
+public class NogoMask {
+
+	private final int minN;
+	private final int minM;
+	private final int width;
+	private final int height;
+	private final int words;
+	private final long[] bits;
+
+	public NogoMask(int minN, int maxN, int minM, int maxM) {
+		this.minN = minN;
+		this.minM = minM;
+		this.width = Math.max(0, maxN - minN + 1);
+		this.height = Math.max(0, maxM - minM + 1);
+		this.words = (width + 63) >>> 6;
+		this.bits = new long[words * height];
+	}
+
+	/**
+	 * Classify the cells of a depth field for a ship with the given
+	 * (negative) draught
+	 *
+	 * @param field
+	 * @param draught
+	 * @return
+	 */
+	public static NogoMask create(DepthField field, double draught) {
+		NogoMask mask = new NogoMask(field.getMinN(), field.getMaxN(), field.getMinM(), field.getMaxM());
+		for (int j = 0; j < mask.height; j++) {
+			int m = mask.minM + j;
+			int base = j * mask.words;
+			long word = 0;
+			for (int i = 0; i < mask.width; i++) {
+				if (field.isNogo(mask.minN + i, m, draught)) {
+					word |= 1L << i;
+				}
+				if ((i & 63) == 63 || i == mask.width - 1) {
+					mask.bits[base + (i >>> 6)] = word;
+					word = 0;
+				}
+			}
+		}
+		return mask;
+	}
+
+	public void set(int n, int m) {
+		int i = n - minN;
+		bits[(m - minM) * words + (i >>> 6)] |= 1L << i;
+	}
+
+	public void clear(int n, int m) {
+		int i = n - minN;
+		bits[(m - minM) * words + (i >>> 6)] &= ~(1L << i);
+	}
+
+	/**
+	 * Set the cells from n1 to n2 of a row, a word at a time
+	 */
+	public void setRange(int n1, int n2, int m) {
+		int base = (m - minM) * words;
+		int from = n1 - minN;
+		int to = n2 - minN;
+		int first = from >>> 6;
+		int last = to >>> 6;
+		long firstMask = -1L << from;
+		long lastMask = -1L >>> (63 - (to & 63));
+		if (first == last) {
+			bits[base + first] |= firstMask & lastMask;
+			return;
+		}
+		bits[base + first] |= firstMask;
+		for (int w = first + 1; w < last; w++) {
+			bits[base + w] = -1L;
+		}
+		bits[base + last] |= lastMask;
+	}
+
+	public boolean isSet(int n, int m) {
+		int i = n - minN;
+		return (bits[(m - minM) * words + (i >>> 6)] & (1L << i)) != 0;
+	}
+
+	/**
+	 * Find the horizontal runs of no go cells
+	 *
+	 * @return m, first n and last n of each run, ordered by m and n
+	 */
+	public int[] findRuns() {
+		return findRuns(minM, minM + height - 1);
+	}
+
+	/**
+	 * Find the horizontal runs of no go cells in the rows from m1 to m2
+	 *
+	 * @return m, first n and last n of each run, ordered by m and n
+	 */
+	public int[] findRuns(int m1, int m2) {
+		int[] runs = new int[48];
+		int count = 0;
+		for (int j = Math.max(0, m1 - minM); j <= Math.min(height - 1, m2 - minM); j++) {
+			int base = j * words;
+			int i = nextSet(base, 0);
+			while (i != -1) {
+				int end = nextClear(base, i);
+				if (count * 3 == runs.length) {
+					runs = Arrays.copyOf(runs, runs.length * 2);
+				}
+				runs[count * 3] = minM + j;
+				runs[count * 3 + 1] = minN + i;
+				runs[count * 3 + 2] = minN + end - 1;
+				count++;
+				i = end < width ? nextSet(base, end) : -1;
+			}
+		}
+		return Arrays.copyOf(runs, count * 3);
+	}
+
+	/**
+	 * First set bit of a row at or after from, or -1
+	 */
+	private int nextSet(int base, int from) {
+		int w = from >>> 6;
+		if (w >= words) {
+			return -1;
+		}
+		long word = bits[base + w] & (-1L << from);
+		while (word == 0) {
+			if (++w == words) {
+				return -1;
+			}
+			word = bits[base + w];
+		}
+		return (w << 6) + Long.numberOfTrailingZeros(word);
+	}
+
+	/**
+	 * First clear bit of a row at or after from, or the width. The bits past
+	 * the width are never set, so the scan always ends in the last word.
+	 */
+	private int nextClear(int base, int from) {
+		int w = from >>> 6;
+		long word = ~bits[base + w] & (-1L << from);
+		while (word == 0) {
+			if (++w == words) {
+				return words << 6;
+			}
+			word = ~bits[base + w];
+		}
+		return (w << 6) + Long.numberOfTrailingZeros(word);
+	}
+
+	public int getMinN() {
+		return minN;
+	}
+
+	public int getMaxN() {
+		return minN + width - 1;
+	}
+
+	public int getMinM() {
+		return minM;
+	}
+
+	public int getMaxM() {
+		return minM + height - 1;
+	}
+
+}
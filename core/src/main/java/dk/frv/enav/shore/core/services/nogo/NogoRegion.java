@@ -0,0 +1,100 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import dk.frv.enav.shore.core.services.nogo.NogoServiceBean.DataType;
+
+/**
+ * A NoGo region with the extent it covers and how its depth points are turned
+ * into polygons
+ */
+public class NogoRegion {
+
+	private final String name;
+	private final DataType dataType;
+	private final double minLat;
+	private final double maxLat;
+	private final double minLon;
+	private final double maxLon;
+	private final double latOffset;
+	private final double lonOffset;
+	private final int priority;
+
+	/**
+	 * @param name
+	 *            unique name, also the name of the grid file of the region
+	 * @param dataType
+	 *            depth table of the region, null if the region only has a
+	 *            grid file
+	 * @param priority
+	 *            regions with a lower priority are preferred when regions
+	 *            overlap
+	 */
+	public NogoRegion(String name, DataType dataType, double minLat, double maxLat, double minLon, double maxLon,
+			double latOffset, double lonOffset, int priority) {
+		this.name = name;
+		this.dataType = dataType;
+		this.minLat = minLat;
+		this.maxLat = maxLat;
+		this.minLon = minLon;
+		this.maxLon = maxLon;
+		this.latOffset = latOffset;
+		this.lonOffset = lonOffset;
+		this.priority = priority;
+	}
+
+	/**
+	 * Is the position strictly inside the region
+	 */
+	public boolean contains(double lat, double lon) {
+		return lat > minLat && lat < maxLat && lon > minLon && lon < maxLon;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public DataType getDataType() {
+		return dataType;
+	}
+
+	public double getMinLat() {
+		return minLat;
+	}
+
+	public double getMaxLat() {
+		return maxLat;
+	}
+
+	public double getMinLon() {
+		return minLon;
+	}
+
+	public double getMaxLon() {
+		return maxLon;
+	}
+
+	/**
+	 * Latitude padding added above and below a run of cells when building
+	 * rectangles
+	 */
+	public double getLatOffset() {
+		return latOffset;
+	}
+
+	/**
+	 * Longitude padding added at the ends of a run of cells when building
+	 * rectangles
+	 */
+	public double getLonOffset() {
+		return lonOffset;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+}
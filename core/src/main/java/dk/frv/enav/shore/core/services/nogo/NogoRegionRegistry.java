@@ -0,0 +1,225 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+import dk.frv.enav.shore.core.services.nogo.NogoServiceBean.DataType;
+
+/**
+ * The NoGo regions with an index over their extents. The latitude axis is cut
+ * into slabs at every region boundary, and each slab holds the regions
+ * covering it ordered by priority. Finding the regions for a position is a
+ * binary search for the slab followed by a check of the few regions in it.
+ * 
+ * Regions are read from a properties file:
+ * 
+ * <pre>
+ * regions=sydkattegat,humber
+ * sydkattegat.datatype=SYDKATTEGAT
+ * sydkattegat.bounds=54.36294,56.36316,9.419409,13.149009
+ * sydkattegat.offset=0.00055500,0.00055504
+ * </pre>
+ * 
+ * The bounds are min lat, max lat, min lon, max lon and the offsets lat, lon.
+ * The datatype is optional for regions that only have a grid file. The order
+ * of the regions list gives the priority.
+ */
+public class NogoRegionRegistry {
+
+	private static Logger LOG = Logger.getLogger(NogoRegionRegistry.class);
+
+	private final List<NogoRegion> regions;
+	private final double[] slabLats;
+	private final NogoRegion[][] slabRegions;
+	private final File file;
+	private final long lastModified;
+
+	private NogoRegionRegistry(List<NogoRegion> regions, File file, long lastModified) {
+		this.regions = Collections.unmodifiableList(new ArrayList<NogoRegion>(regions));
+		this.file = file;
+		this.lastModified = lastModified;
+
+		TreeSet<Double> bounds = new TreeSet<Double>();
+		for (NogoRegion region : regions) {
+			bounds.add(region.getMinLat());
+			bounds.add(region.getMaxLat());
+		}
+		slabLats = new double[bounds.size()];
+		int i = 0;
+		for (Double lat : bounds) {
+			slabLats[i++] = lat;
+		}
+
+		List<NogoRegion> sorted = new ArrayList<NogoRegion>(regions);
+		Collections.sort(sorted, new Comparator<NogoRegion>() {
+			@Override
+			public int compare(NogoRegion r1, NogoRegion r2) {
+				return r1.getPriority() - r2.getPriority();
+			}
+		});
+
+		// Slab i is from slabLats[i] to slabLats[i + 1]
+		slabRegions = new NogoRegion[Math.max(0, slabLats.length - 1)][];
+		for (int s = 0; s < slabRegions.length; s++) {
+			List<NogoRegion> covering = new ArrayList<NogoRegion>();
+			for (NogoRegion region : sorted) {
+				if (region.getMinLat() <= slabLats[s] && region.getMaxLat() >= slabLats[s + 1]) {
+					covering.add(region);
+				}
+			}
+			slabRegions[s] = covering.toArray(new NogoRegion[covering.size()]);
+		}
+	}
+
+	/**
+	 * The regions that were hard coded before regions became configurable
+	 * 
+	 * @param file
+	 *            region file to watch for, may be null
+	 */
+	public static NogoRegionRegistry createDefault(File file) {
+		List<NogoRegion> regions = new ArrayList<NogoRegion>();
+		regions.add(new NogoRegion("sydkattegat", DataType.SYDKATTEGAT, 54.36294, 56.36316, 9.419409, 13.149009,
+				0.00055500, 0.00055504, 0));
+		regions.add(new NogoRegion("nordkattegat", DataType.NORDKATTEGAT, 56.34096, 58.26237, 9.403869, 12.148899,
+				0.00055504, 0.00055504, 1));
+		regions.add(new NogoRegion("sf_bay", DataType.SF_BAY, 37.17, 38.35, -123.21, -121.32, -0.00008, 0.000151883, 2));
+		regions.add(new NogoRegion("humber", DataType.HUMBER, 53.53, 53.742, -0.87, 0.25, 0.0000434, 0, 3));
+		return new NogoRegionRegistry(regions, file, file == null ? 0 : file.lastModified());
+	}
+
+	/**
+	 * Read the regions from a properties file
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 *             if the file can not be read or has an invalid region
+	 */
+	public static NogoRegionRegistry load(File file) throws IOException {
+		long lastModified = file.lastModified();
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+
+		List<NogoRegion> regions = new ArrayList<NogoRegion>();
+		String names = props.getProperty("regions", "");
+		int priority = 0;
+		for (String name : names.split(",")) {
+			name = name.trim();
+			if (name.length() == 0) {
+				continue;
+			}
+			try {
+				regions.add(parseRegion(props, name, priority++));
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Invalid NoGo region " + name + " in " + file + ": " + e.getMessage());
+			}
+		}
+
+		LOG.info("Loaded " + regions.size() + " NoGo regions from " + file);
+		return new NogoRegionRegistry(regions, file, lastModified);
+	}
+
+	private static NogoRegion parseRegion(Properties props, String name, int priority) {
+		double[] bounds = parseDoubles(props.getProperty(name + ".bounds"), 4);
+		double[] offset = parseDoubles(props.getProperty(name + ".offset", "0,0"), 2);
+		String dataType = props.getProperty(name + ".datatype");
+		if (bounds[0] >= bounds[1] || bounds[2] >= bounds[3]) {
+			throw new IllegalArgumentException("empty bounds");
+		}
+		return new NogoRegion(name, dataType == null ? null : DataType.valueOf(dataType.trim()), bounds[0], bounds[1],
+				bounds[2], bounds[3], offset[0], offset[1], priority);
+	}
+
+	private static double[] parseDoubles(String value, int count) {
+		if (value == null) {
+			throw new IllegalArgumentException("missing value");
+		}
+		String[] parts = value.split(",");
+		if (parts.length != count) {
+			throw new IllegalArgumentException("expected " + count + " values in " + value);
+		}
+		double[] values = new double[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = Double.parseDouble(parts[i].trim());
+		}
+		return values;
+	}
+
+	/**
+	 * Has the file the registry was read from changed
+	 */
+	public boolean isModified() {
+		return file != null && file.lastModified() != lastModified;
+	}
+
+	/**
+	 * All regions containing both corners of a box, best region first
+	 * 
+	 * @return
+	 */
+	public List<NogoRegion> findRegions(double lat1, double lon1, double lat2, double lon2) {
+		List<NogoRegion> found = new ArrayList<NogoRegion>();
+		int slab = findSlab(lat1);
+		if (slab < 0) {
+			return found;
+		}
+		for (NogoRegion region : slabRegions[slab]) {
+			if (region.contains(lat1, lon1) && region.contains(lat2, lon2)) {
+				found.add(region);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * The best region containing both corners of a box
+	 * 
+	 * @return the region or null if no region contains the box
+	 */
+	public NogoRegion findRegion(double lat1, double lon1, double lat2, double lon2) {
+		List<NogoRegion> found = findRegions(lat1, lon1, lat2, lon2);
+		return found.isEmpty() ? null : found.get(0);
+	}
+
+	private int findSlab(double lat) {
+		int index = Arrays.binarySearch(slabLats, lat);
+		if (index < 0) {
+			index = -index - 2;
+		}
+		if (index < 0 || index >= slabRegions.length) {
+			return -1;
+		}
+		return index;
+	}
+
+	public List<NogoRegion> getRegions() {
+		return regions;
+	}
+
+	public NogoRegion getRegion(String name) {
+		for (NogoRegion region : regions) {
+			if (region.getName().equals(name)) {
+				return region;
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,452 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import dk.frv.enav.common.xml.nogo.response.NogoResponse;
+import dk.frv.enav.common.xml.nogo.types.NogoPoint;
+import dk.frv.enav.common.xml.nogo.types.NogoPolygon;
+
+/**
+ * Bounded LRU cache of NoGo results with a time to live. Only the polygons
+ * and the error code are cached, the validity of the response is taken from
+ * each request. A result may carry the runs of grid cells it was built from,
+ * so tiles can be joined into the runs of a larger box.
+ * 
+ * Given a directory, results evicted from memory are written there instead
+ * of dropped, up to a second bound, and read back on a hit. Only the maps are
+ * kept under the lock of the cache, the files are written, read and deleted
+ * by the calling thread after releasing it. Each write goes to a file of its
+ * own, so writes of the same key never share a file and a file is only
+ * deleted by the thread that took it out of the maps.
+ */
+public class NogoResultCache {
+
+	private static Logger LOG = Logger.getLogger(NogoResultCache.class);
+
+	private final String name;
+	private final int maxSize;
+	private final long ttl;
+
+	private final LinkedHashMap<NogoCacheKey, Entry> entries;
+
+	private final File spillDir;
+	private final int maxSpilled;
+	private final LinkedHashMap<NogoCacheKey, File> spilled;
+
+	/**
+	 * Results evicted from memory and not yet on disk, the keys to write and
+	 * the files evicted from disk and not yet deleted
+	 */
+	private final Map<NogoCacheKey, Entry> spilling = new HashMap<NogoCacheKey, Entry>();
+	private final Set<NogoCacheKey> toSpill = new LinkedHashSet<NogoCacheKey>();
+	private final List<File> toDelete = new ArrayList<File>();
+
+	/**
+	 * Incremented on clear, so results read from disk across a clear are
+	 * dropped
+	 */
+	private long generation;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long diskHits;
+
+	/**
+	 * @param maxSize
+	 *            maximum number of results
+	 * @param ttl
+	 *            time to live in millis
+	 */
+	public NogoResultCache(int maxSize, long ttl) {
+		this("NOGO_CACHE", maxSize, ttl, null, 0);
+	}
+
+	/**
+	 * @param name
+	 *            prefix of the statistics
+	 * @param maxSize
+	 *            maximum number of results in memory
+	 * @param ttl
+	 *            time to live in millis
+	 * @param spillDir
+	 *            directory for results evicted from memory or null to drop
+	 *            them
+	 * @param maxSpilled
+	 *            maximum number of results on disk
+	 */
+	public NogoResultCache(String name, int maxSize, long ttl, File spillDir, int maxSpilled) {
+		this.name = name;
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		this.spillDir = spillDir;
+		this.maxSpilled = maxSpilled;
+		this.entries = new LinkedHashMap<NogoCacheKey, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<NogoCacheKey, Entry> eldest) {
+				if (size() > NogoResultCache.this.maxSize) {
+					evictions++;
+					Entry entry = eldest.getValue();
+					if (NogoResultCache.this.spillDir != null && NogoResultCache.this.maxSpilled > 0
+							&& entry.expires >= System.currentTimeMillis()) {
+						spilling.put(eldest.getKey(), entry);
+						toSpill.add(eldest.getKey());
+					}
+					return true;
+				}
+				return false;
+			}
+		};
+		this.spilled = new LinkedHashMap<NogoCacheKey, File>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<NogoCacheKey, File> eldest) {
+				if (size() > NogoResultCache.this.maxSpilled) {
+					toDelete.add(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+
+		if (spillDir != null) {
+			// Results left from an earlier run may be from other data
+			spillDir.mkdirs();
+			deleteSpilled();
+		}
+	}
+
+	/**
+	 * Get a copy of a cached result
+	 * 
+	 * @param key
+	 * @return the result or null if it is not cached or has expired
+	 */
+	public NogoResponse get(NogoCacheKey key) {
+		return get(key, null);
+	}
+
+	/**
+	 * Get a copy of a cached result and the runs it was built from
+	 * 
+	 * @param key
+	 * @param runs
+	 *            set to the runs of the result, or null if it has none
+	 * @return the result or null if it is not cached or has expired
+	 */
+	public NogoResponse get(NogoCacheKey key, int[][] runs) {
+		Entry entry;
+		File file = null;
+		long readIn;
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry == null) {
+				entry = spilling.get(key);
+			}
+			if (entry == null) {
+				file = spilled.remove(key);
+			}
+			readIn = generation;
+		}
+
+		if (file != null) {
+			entry = unspill(key, file);
+			if (entry != null) {
+				synchronized (this) {
+					diskHits++;
+					if (readIn == generation) {
+						entries.put(key, entry);
+					}
+				}
+				flush();
+			}
+		}
+
+		synchronized (this) {
+			if (entry != null && entry.expires < System.currentTimeMillis()) {
+				if (entries.get(key) == entry) {
+					entries.remove(key);
+				}
+				entry = null;
+			}
+			if (entry == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+		}
+		if (runs != null) {
+			runs[0] = entry.runs;
+		}
+		return entry.toResponse();
+	}
+
+	public void put(NogoCacheKey key, NogoResponse response) {
+		put(key, response, null);
+	}
+
+	/**
+	 * @param runs
+	 *            runs of grid cells the result was built from, or null
+	 */
+	public void put(NogoCacheKey key, NogoResponse response, int[] runs) {
+		if (maxSize <= 0) {
+			return;
+		}
+		Entry entry = new Entry(response, runs, System.currentTimeMillis() + ttl);
+		synchronized (this) {
+			entries.put(key, entry);
+		}
+		flush();
+	}
+
+	/**
+	 * Remove all results, e.g. when the tide data has changed
+	 */
+	public void clear() {
+		synchronized (this) {
+			generation++;
+			entries.clear();
+			spilling.clear();
+			toSpill.clear();
+			spilled.clear();
+			toDelete.clear();
+		}
+		if (spillDir != null) {
+			deleteSpilled();
+		}
+	}
+
+	/**
+	 * Write the results evicted from memory to disk and delete the files
+	 * evicted from disk. The files are written and deleted outside the lock,
+	 * a result being written is still found in memory until it is on disk.
+	 * When a key is written twice at once only the file of the newer result is
+	 * kept.
+	 */
+	private void flush() {
+		while (true) {
+			List<NogoCacheKey> keys;
+			List<Entry> writes;
+			List<File> deletes;
+			synchronized (this) {
+				if (toSpill.isEmpty() && toDelete.isEmpty()) {
+					return;
+				}
+				keys = new ArrayList<NogoCacheKey>(toSpill);
+				writes = new ArrayList<Entry>(keys.size());
+				for (NogoCacheKey key : keys) {
+					writes.add(spilling.get(key));
+				}
+				deletes = new ArrayList<File>(toDelete);
+				toSpill.clear();
+				toDelete.clear();
+			}
+
+			for (File file : deletes) {
+				file.delete();
+			}
+			for (int i = 0; i < keys.size(); i++) {
+				NogoCacheKey key = keys.get(i);
+				File file = spill(key, writes.get(i));
+				File replaced = null;
+				synchronized (this) {
+					// Only the newest result of the key is kept, a write
+					// overtaken by a newer eviction or a clear is dropped
+					if (spilling.get(key) == writes.get(i)) {
+						spilling.remove(key);
+						if (file != null) {
+							replaced = spilled.put(key, file);
+							file = null;
+						}
+					}
+				}
+				if (file != null) {
+					file.delete();
+				}
+				if (replaced != null) {
+					replaced.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write a result to a new file named after the key
+	 * 
+	 * @return the file or null if it could not be written
+	 */
+	private File spill(NogoCacheKey key, Entry entry) {
+		String name = key.toFileName();
+		File file = null;
+		try {
+			file = File.createTempFile(name.substring(0, name.length() - ".nogo".length()) + "_", ".nogo", spillDir);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			try {
+				out.writeUTF(key.toString());
+				out.writeLong(entry.expires);
+				out.writeInt(entry.errorCode);
+				writePolygons(out, entry.polygons);
+				writeRuns(out, entry.runs);
+			} finally {
+				out.close();
+			}
+			return file;
+		} catch (IOException e) {
+			LOG.error("Failed to write NoGo result " + name + ": " + e.getMessage());
+			if (file != null) {
+				file.delete();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Read a result back from disk, deleting the file
+	 */
+	private Entry unspill(NogoCacheKey key, File file) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (!in.readUTF().equals(key.toString())) {
+					return null;
+				}
+				long expires = in.readLong();
+				int errorCode = in.readInt();
+				List<NogoPolygon> polygons = readPolygons(in);
+				return new Entry(polygons, readRuns(in), errorCode, expires);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			LOG.error("Failed to read NoGo result " + file + ": " + e.getMessage());
+			return null;
+		} finally {
+			file.delete();
+		}
+	}
+
+	private void deleteSpilled() {
+		File[] files = spillDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (file.getName().endsWith(".nogo")) {
+				file.delete();
+			}
+		}
+	}
+
+	private static void writePolygons(DataOutputStream out, List<NogoPolygon> polygons) throws IOException {
+		out.writeInt(polygons.size());
+		for (NogoPolygon polygon : polygons) {
+			out.writeInt(polygon.getPolygon().size());
+			for (NogoPoint point : polygon.getPolygon()) {
+				out.writeDouble(point.getLat());
+				out.writeDouble(point.getLon());
+			}
+			writePolygons(out, polygon.getHoles());
+		}
+	}
+
+	private static List<NogoPolygon> readPolygons(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<NogoPolygon> polygons = new ArrayList<NogoPolygon>(count);
+		for (int i = 0; i < count; i++) {
+			NogoPolygon polygon = new NogoPolygon();
+			int points = in.readInt();
+			for (int k = 0; k < points; k++) {
+				polygon.getPolygon().add(new NogoPoint(in.readDouble(), in.readDouble()));
+			}
+			polygon.setHoles(readPolygons(in));
+			polygons.add(polygon);
+		}
+		return polygons;
+	}
+
+	private static void writeRuns(DataOutputStream out, int[] runs) throws IOException {
+		out.writeInt(runs == null ? -1 : runs.length);
+		if (runs != null) {
+			for (int value : runs) {
+				out.writeInt(value);
+			}
+		}
+	}
+
+	private static int[] readRuns(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		int[] runs = new int[length];
+		for (int i = 0; i < length; i++) {
+			runs[i] = in.readInt();
+		}
+		return runs;
+	}
+
+	public synchronized Map<String, String> getStatistics() {
+		Map<String, String> stats = new LinkedHashMap<String, String>();
+		stats.put(name + "_SIZE", entries.size() + "/" + maxSize);
+		stats.put(name + "_HITS", Long.toString(hits));
+		stats.put(name + "_MISSES", Long.toString(misses));
+		stats.put(name + "_EVICTIONS", Long.toString(evictions));
+		long requests = hits + misses;
+		stats.put(name + "_HIT_RATIO", (requests == 0 ? 0 : hits * 100 / requests) + "%");
+		if (spillDir != null) {
+			stats.put(name + "_SPILLED", spilled.size() + "/" + maxSpilled);
+			stats.put(name + "_DISK_HITS", Long.toString(diskHits));
+		}
+		return stats;
+	}
+
+	private static class Entry {
+
+		private final List<NogoPolygon> polygons;
+		private final int[] runs;
+		private final int errorCode;
+		private final long expires;
+
+		Entry(NogoResponse response, int[] runs, long expires) {
+			this(new ArrayList<NogoPolygon>(response.getPolygons()), runs, response.getNoGoErrorCode(), expires);
+		}
+
+		Entry(List<NogoPolygon> polygons, int[] runs, int errorCode, long expires) {
+			this.polygons = polygons;
+			this.runs = runs;
+			this.errorCode = errorCode;
+			this.expires = expires;
+		}
+
+		NogoResponse toResponse() {
+			NogoResponse response = new NogoResponse();
+			for (NogoPolygon polygon : polygons) {
+				response.addPolygon(polygon);
+			}
+			response.setNoGoErrorCode(errorCode);
+			return response;
+		}
+
+	}
+
+}
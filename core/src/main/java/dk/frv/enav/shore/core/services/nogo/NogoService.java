@@ -1,14 +1,12 @@
 package dk.frv.enav.shore.core.services.nogo;
 
-import java.util.List;
+import java.util.Map;
 
 import javax.ejb.Local;
 
 import dk.frv.enav.common.xml.nogo.request.NogoRequest;
 import dk.frv.enav.common.xml.nogo.response.NogoResponse;
-import dk.frv.enav.common.xml.nogo.types.NogoPolygon;
-import dk.frv.enav.shore.core.domain.DepthDenmark;
-import dk.frv.enav.shore.core.domain.TideDenmark;
+import dk.frv.enav.common.xml.nogo.types.NogoGeometry;
 import dk.frv.enav.shore.core.services.ServiceException;
 
 @Local
@@ -21,8 +19,27 @@ public interface NogoService {
 	 * @throws ServiceException
 	 */
 	NogoResponse nogoPoll(NogoRequest nogoRequest) throws ServiceException;
+
+	/**
+	 * Calculate the no go area of a web mercator tile
+	 * @param z
+	 * @param x
+	 * @param y
+	 * @param draught
+	 * @param hour
+	 *            hour of the day of the tide, the next time the clock reaches
+	 *            it
+	 * @param geometry
+	 * @return
+	 * @throws ServiceException
+	 */
+	NogoResponse nogoTile(int z, int x, int y, double draught, int hour, NogoGeometry geometry)
+			throws ServiceException;
 	
-	
-	List<NogoPolygon> parseResult(List<DepthDenmark> result, List<TideDenmark> resultTide, double depth);
+	/**
+	 * Get statistics on requests sharing a calculation
+	 * @return
+	 */
+	Map<String, String> getStatistics();
 	
 }
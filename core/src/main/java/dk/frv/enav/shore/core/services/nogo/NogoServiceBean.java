@@ -29,317 +29,274 @@
  */
 package dk.frv.enav.shore.core.services.nogo;
 
-import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
-
-import javax.ejb.Stateless;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
 
 import dk.frv.ais.geo.GeoLocation;
+import dk.frv.enav.common.jboss.JbossProperties;
 import dk.frv.enav.common.xml.nogo.request.NogoRequest;
 import dk.frv.enav.common.xml.nogo.response.NogoResponse;
 import dk.frv.enav.common.xml.nogo.types.BoundingBoxPoint;
-import dk.frv.enav.common.xml.nogo.types.NogoPoint;
+import dk.frv.enav.common.xml.nogo.types.NogoDraughtArea;
+import dk.frv.enav.common.xml.nogo.types.NogoGeometry;
 import dk.frv.enav.common.xml.nogo.types.NogoPolygon;
-import dk.frv.enav.shore.core.domain.DepthDenmark;
-import dk.frv.enav.shore.core.domain.TideDenmark;
+import dk.frv.enav.common.xml.nogo.types.NogoTimeStep;
 import dk.frv.enav.shore.core.services.Errorcodes;
 import dk.frv.enav.shore.core.services.ServiceException;
 
-@Stateless
+/**
+ * NoGo service. The bean holds no per-request state, all of it is kept in a
+ * {@link NogoContext} and the response, so a single instance serves all
+ * requests concurrently.
+ * 
+ * Results are cached on the region, the box in grid cells, the draught
+ * rounded down to nogo_draught_step meters and the tide hours. Regions without
+ * a grid have the box snapped to nogo_position_step degrees instead. Equal
+ * requests arriving while the result is being calculated wait for that
+ * calculation instead of starting their own.
+ * 
+ * NoGo areas can also be had as web mercator tiles, each tile being the cells
+ * of the grid within it. Tiles are cached on their own, and with nogo_tile_zoom
+ * set requests for a box are answered by the tiles covering it, so boxes
+ * panned across the same area share their calculations. The runs of no go
+ * cells of the tiles are joined before the polygons of the box are built, the
+ * answer is the same as calculated for the box directly.
+ * 
+ * All geometries hold the whole square of every no go cell. Rectangles reach
+ * the offsets of the region around the cell centers and outlines follow the
+ * cell edges. Contours are interpolated on the depth between the edge of a no
+ * go cell and the center of its neighbour, and are a quarter of a cell beyond
+ * the edge next to land, missing depths and the border of the box, so they
+ * take in up to half a cell more water than the outlines.
+ * 
+ * A request with a route and a corridor width is calculated for the cells
+ * along the route only, within the box around the corridor. A request with a
+ * list of draughts gets the area of each draught, calculated in one pass.
+ * A time series request gets the area hour by hour as changes from the hour
+ * before, only the cells that may cross the draught being looked at again.
+ * 
+ * The tide is subtracted from the depth unless nogo_apply_tide is false, which
+ * gives the static depth areas of earlier releases.
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
 public class NogoServiceBean implements NogoService {
 
+    private static Logger LOG = Logger.getLogger(NogoServiceBean.class);
+
     @PersistenceContext(unitName = "enav")
     private EntityManager entityManager;
 
-    public enum WorkerType {
-        DEPTHPOINT, TIDEPOINT, DEPTHDATA, TIDEDATA, MAXTIDE;
-    }
+    @Resource(mappedName = "java:/enavDS")
+    private DataSource dataSource;
 
-    public enum DataType {
-        SYDKATTEGAT, NORDKATTEGAT, SF_BAY, HUMBER;
-    }
+    @EJB
+    NogoDataService nogoDataService;
 
-    int errorCode = 0;
-    DataType type;
+    @EJB
+    NogoExecutor nogoExecutor;
 
-    double latOffset;
-    double lonOffset;
+    private static final long HOUR = 3600 * 1000L;
 
-    @SuppressWarnings("deprecation")
-    @Override
-    public NogoResponse nogoPoll(NogoRequest nogoRequest) throws ServiceException {
+    private NogoEngine nogoEngine;
 
-        // System.out.println("NoGo request recieved");
+    private double draughtStep;
+    private double positionStep;
 
-        // First identify which area we are searching in
+    private int tileZoom;
+    private int tileMinZoom;
+    private int tileMaxTiles;
 
-        GeoLocation northWest = new GeoLocation(nogoRequest.getNorthWestPointLat(), nogoRequest.getNorthWestPointLon());
-        GeoLocation SouthEast = new GeoLocation(nogoRequest.getSouthEastPointLat(), nogoRequest.getSouthEastPointLon());
-
-        // System.out.println("northWest " + northWest);
-        // System.out.println("southEAst " + SouthEast);
-
-        NogoWorker nogoWorkerFirstPointDepth = null;
-
-        NogoWorker nogoWorkerSecondPointDepth = null;
-
-        NogoWorker nogoWorkerFirstPointTide = null;
-
-        NogoWorker nogoWorkerSecondPointTide = null;
-
-        NogoWorker nogoWorkerDepthData = null;
-
-        NogoWorker nogoWorkerTideData = null;
-
-        // Sydkattegat data
-        if (northWest.getLatitude() > 54.36294 && northWest.getLatitude() < 56.36316 && northWest.getLongitude() > 9.419409
-                && northWest.getLongitude() < 13.149009 && SouthEast.getLatitude() > 54.36294 && SouthEast.getLatitude() < 56.36316
-                && SouthEast.getLongitude() > 9.419409 && SouthEast.getLongitude() < 13.149009) {
-
-            nogoWorkerFirstPointDepth = new NogoWorker(entityManager, WorkerType.DEPTHPOINT, DataType.SYDKATTEGAT);
-            nogoWorkerSecondPointDepth = new NogoWorker(entityManager, WorkerType.DEPTHPOINT, DataType.SYDKATTEGAT);
-            nogoWorkerFirstPointTide = new NogoWorker(entityManager, WorkerType.TIDEPOINT, DataType.SYDKATTEGAT);
-            nogoWorkerSecondPointTide = new NogoWorker(entityManager, WorkerType.TIDEPOINT, DataType.SYDKATTEGAT);
-
-            nogoWorkerDepthData = new NogoWorker(entityManager, WorkerType.DEPTHDATA, DataType.SYDKATTEGAT);
-            nogoWorkerTideData = new NogoWorker(entityManager, WorkerType.TIDEDATA, DataType.SYDKATTEGAT);
-
-            latOffset = 0.00055500;
-            lonOffset = 0.00055504;
-
-            type = DataType.SYDKATTEGAT;
-
-        } else {
-            // Nordkattegat data
-            if (northWest.getLatitude() > 56.34096 && northWest.getLatitude() < 58.26237 && northWest.getLongitude() > 9.403869
-                    && northWest.getLongitude() < 12.148899 && SouthEast.getLatitude() > 56.34096
-                    && SouthEast.getLatitude() < 58.26237 && SouthEast.getLongitude() > 9.403869
-                    && SouthEast.getLongitude() < 12.148899) {
-                // System.out.println("Valid nordkattegat point");
+    private int seriesMaxHours;
 
-                nogoWorkerFirstPointDepth = new NogoWorker(entityManager, WorkerType.DEPTHPOINT, DataType.NORDKATTEGAT);
-                nogoWorkerSecondPointDepth = new NogoWorker(entityManager, WorkerType.DEPTHPOINT, DataType.NORDKATTEGAT);
-                nogoWorkerFirstPointTide = new NogoWorker(entityManager, WorkerType.TIDEPOINT, DataType.NORDKATTEGAT);
-                nogoWorkerSecondPointTide = new NogoWorker(entityManager, WorkerType.TIDEPOINT, DataType.NORDKATTEGAT);
+    private boolean applyTide;
 
-                nogoWorkerDepthData = new NogoWorker(entityManager, WorkerType.DEPTHDATA, DataType.NORDKATTEGAT);
-                nogoWorkerTideData = new NogoWorker(entityManager, WorkerType.TIDEDATA, DataType.NORDKATTEGAT);
+    private final ConcurrentMap<NogoCacheKey, FutureTask<NogoResponse>> inFlight =
+            new ConcurrentHashMap<NogoCacheKey, FutureTask<NogoResponse>>();
+    private final AtomicLong coalesced = new AtomicLong();
 
-            }
+    public enum WorkerType {
+        DEPTHPOINT, DEPTHDATA;
+    }
 
-            latOffset = 0.00055504;
-            lonOffset = 0.00055504;
+    public enum DataType {
+        SYDKATTEGAT("DepthDenmark", "depth_denmark100m"), NORDKATTEGAT("DepthDenmarkNord", "depth_denmark100mNord"),
+        SF_BAY("sfBay", "sf_bay"), HUMBER("Humber", "humber_depth");
 
-            type = DataType.NORDKATTEGAT;
+        private final String depthEntity;
+        private final String depthTable;
 
+        private DataType(String depthEntity, String depthTable) {
+            this.depthEntity = depthEntity;
+            this.depthTable = depthTable;
         }
 
-        // SF Bay data
-        if (northWest.getLatitude() > 37.17 && northWest.getLatitude() < 38.35 && northWest.getLongitude() > -123.21
-                && northWest.getLongitude() < -121.32 && SouthEast.getLatitude() > 37.17 && SouthEast.getLatitude() < 38.35
-                && SouthEast.getLongitude() > -123.21 && SouthEast.getLongitude() < -121.32) {
-            // System.out.println("Valid nordkattegat point");
-
-            nogoWorkerFirstPointDepth = new NogoWorker(entityManager, WorkerType.DEPTHPOINT, DataType.SF_BAY);
-            nogoWorkerSecondPointDepth = new NogoWorker(entityManager, WorkerType.DEPTHPOINT, DataType.SF_BAY);
-            nogoWorkerFirstPointTide = new NogoWorker(entityManager, WorkerType.TIDEPOINT, DataType.SF_BAY);
-            nogoWorkerSecondPointTide = new NogoWorker(entityManager, WorkerType.TIDEPOINT, DataType.SF_BAY);
-
-            nogoWorkerDepthData = new NogoWorker(entityManager, WorkerType.DEPTHDATA, DataType.SF_BAY);
-            nogoWorkerTideData = new NogoWorker(entityManager, WorkerType.TIDEDATA, DataType.SF_BAY);
-
-            latOffset = -0.00008;
-            lonOffset = 0.000151883;
+        /**
+         * JPQL entity name of the depth table for the region
+         */
+        public String getDepthEntity() {
+            return depthEntity;
+        }
 
-            type = DataType.SF_BAY;
+        /**
+         * SQL table of the depth entity, for queries bypassing JPA
+         */
+        public String getDepthTable() {
+            return depthTable;
         }
+    }
 
-        // Humber Data
-        if (northWest.getLatitude() > 53.53 && northWest.getLatitude() < 53.742 && northWest.getLongitude() > -0.87
-                && northWest.getLongitude() < 0.25 && SouthEast.getLatitude() > 53.53 && SouthEast.getLatitude() < 53.742
-                && SouthEast.getLongitude() > -0.87 && SouthEast.getLongitude() < 0.25) {
-            System.out.println("Valid Humber point");
+    @PostConstruct
+    public void init() {
+        draughtStep = Double.parseDouble(JbossProperties.get("nogo_draught_step", "0.1"));
+        positionStep = Double.parseDouble(JbossProperties.get("nogo_position_step", "0.001"));
+        nogoEngine = new NogoEngine(Double.parseDouble(JbossProperties.get("nogo_simplify_tolerance", "1.0")),
+                nogoExecutor, Integer.parseInt(JbossProperties.get("nogo_engine_strips", "8")));
+        tileZoom = Integer.parseInt(JbossProperties.get("nogo_tile_zoom", "0"));
+        tileMinZoom = Integer.parseInt(JbossProperties.get("nogo_tile_min_zoom", "10"));
+        tileMaxTiles = Integer.parseInt(JbossProperties.get("nogo_tile_max_tiles", "16"));
+        seriesMaxHours = Integer.parseInt(JbossProperties.get("nogo_series_max_hours", "24"));
+        applyTide = Boolean.parseBoolean(JbossProperties.get("nogo_apply_tide", "true"));
+    }
 
-            nogoWorkerFirstPointDepth = new NogoWorker(entityManager, WorkerType.DEPTHPOINT, DataType.HUMBER);
-            nogoWorkerSecondPointDepth = new NogoWorker(entityManager, WorkerType.DEPTHPOINT, DataType.HUMBER);
-            nogoWorkerFirstPointTide = new NogoWorker(entityManager, WorkerType.TIDEPOINT, DataType.HUMBER);
-            nogoWorkerSecondPointTide = new NogoWorker(entityManager, WorkerType.TIDEPOINT, DataType.HUMBER);
+    @SuppressWarnings("deprecation")
+    @Override
+    public NogoResponse nogoPoll(NogoRequest nogoRequest) throws ServiceException {
 
-            nogoWorkerDepthData = new NogoWorker(entityManager, WorkerType.DEPTHDATA, DataType.HUMBER);
-            nogoWorkerTideData = new NogoWorker(entityManager, WorkerType.TIDEDATA, DataType.HUMBER);
+        long deadline = System.currentTimeMillis() + nogoExecutor.getTimeout();
 
-            // latOffset = 0.0000418;
+        // First identify which area we are searching in
 
-            // latOffset = 0.0000868125;
-            // lonOffset = 0.000151883;
-            latOffset = 0.0000434;
-            lonOffset = 0;
+        GeoLocation northWest = new GeoLocation(nogoRequest.getNorthWestPointLat(), nogoRequest.getNorthWestPointLon());
+        GeoLocation SouthEast = new GeoLocation(nogoRequest.getSouthEastPointLat(), nogoRequest.getSouthEastPointLon());
 
-            type = DataType.HUMBER;
+        // Along a route the box is the one around the corridor
+        NogoCorridor corridor = null;
+        String corridorKey = null;
+        if (nogoRequest.getWaypoints() != null && nogoRequest.getWaypoints().size() > 0
+                && nogoRequest.getCorridorWidth() != null && nogoRequest.getCorridorWidth() > 0) {
+            corridor = new NogoCorridor(nogoRequest.getWaypoints(), nogoRequest.getCorridorWidth());
+            corridorKey = corridor.getKey(positionStep);
+            northWest = new GeoLocation(corridor.getNorth(), corridor.getWest());
+            SouthEast = new GeoLocation(corridor.getSouth(), corridor.getEast());
         }
 
-        // Is the points outside our area?
-
-        if ((northWest.getLatitude() > 58.26237 || northWest.getLatitude() < 54.36294 || northWest.getLongitude() > 13.149009
-                || northWest.getLongitude() < 9.403869
-
-                || SouthEast.getLatitude() > 58.26237 || SouthEast.getLatitude() < 54.36294 || SouthEast.getLongitude() > 13.149009 || SouthEast
-                .getLongitude() < 9.403869)
-
-                && (northWest.getLatitude() > 38.35 || northWest.getLatitude() < 37.16 || northWest.getLongitude() > -121.32
-                        || northWest.getLongitude() < -123.21
+        NogoRegion region = nogoDataService.getRegionRegistry().findRegion(northWest.getLatitude(),
+                northWest.getLongitude(), SouthEast.getLatitude(), SouthEast.getLongitude());
 
-                        || SouthEast.getLatitude() > 38.35 || SouthEast.getLatitude() < 37.16 || SouthEast.getLongitude() > -121.32 || SouthEast
-                        .getLongitude() < -123.21)
+        // Grids and tide are taken from one dataset, and the grid from the
+        // pyramid, so all are from the same load
+        NogoDataset dataset = nogoDataService.getDataset();
+        DepthPyramid depthPyramid = region == null ? null : dataset.getDepthPyramid(region);
+        DepthGrid depthGrid = depthPyramid == null ? null : depthPyramid.getGrid();
 
-                && (northWest.getLatitude() < 53.53 || northWest.getLatitude() > 53.742 || northWest.getLongitude() < -0.87
-                        || northWest.getLongitude() > 0.25 || SouthEast.getLatitude() < 53.53 || SouthEast.getLatitude() > 53.742
-                        || SouthEast.getLongitude() < -0.87 || SouthEast.getLongitude() > 0.25)
-
-        ) {
-            System.out.println("No data available");
+        // Is the points outside our area?
+        if (region == null || (depthGrid == null && region.getDataType() == null)) {
+            LOG.debug("No data available");
 
             NogoResponse res = new NogoResponse();
 
             res.setNoGoErrorCode(17);
             res.setNoGoMessage(Errorcodes.getErrorMessage(17));
 
-            // System.out.println("Returning empty res");
-
             return res;
         }
 
-        // NogoWorker nogoWorkerThirdMaxTide = new NogoWorker(entityManager,
-        // WorkerType.MAXTIDE);
-
-        nogoWorkerFirstPointDepth.setPos(new GeoLocation(nogoRequest.getNorthWestPointLat(), nogoRequest.getNorthWestPointLon()));
-
-        nogoWorkerSecondPointDepth.setPos(new GeoLocation(nogoRequest.getSouthEastPointLat(), nogoRequest.getSouthEastPointLon()));
-
-        nogoWorkerFirstPointTide.setPos(new GeoLocation(nogoRequest.getNorthWestPointLat(), nogoRequest.getNorthWestPointLon()));
-
-        nogoWorkerSecondPointTide.setPos(new GeoLocation(nogoRequest.getSouthEastPointLat(), nogoRequest.getSouthEastPointLon()));
-
-        // firstPos = getArea(55.070, 11.668);
-        // secondPos = getArea(55.170, 11.868)
-
-        // Testing stuff
-        // nogoWorkerFirstPointDepth.setPos(new GeoLocation(55.070, 11.668));
-        //
-        // nogoWorkerSecondPointDepth.setPos(new GeoLocation(55.170, 11.868));
-        //
-        // nogoWorkerFirstPointTide.setPos(new GeoLocation(55.070, 11.668));
-        //
-        // nogoWorkerSecondPointTide.setPos(new GeoLocation(55.170, 11.868));
-
-        // Get the grid position of the data in the depth database
-        nogoWorkerFirstPointDepth.start();
-        nogoWorkerSecondPointDepth.start();
-
-        // Get the grid position of the data in the tide database
-        nogoWorkerFirstPointTide.start();
-        nogoWorkerSecondPointTide.start();
-
-        // Find max change in depth database - not needed anymore
-        // nogoWorkerThirdMaxTide.start();
-
-        // nogoRequest.getStartDate();
-
-        try {
-            nogoWorkerFirstPointDepth.join();
-            System.out.println("First depth point found");
-            nogoWorkerSecondPointDepth.join();
-            System.out.println("Second depth point found");
-            // nogoWorkerThirdMaxTide.join();
-            // System.out.println("MaxTide found");
-
-            nogoWorkerFirstPointTide.join();
-            // System.out.println("First tide point found");
-            nogoWorkerSecondPointTide.join();
-            // System.out.println("Second tide point found");
-
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        // The start is counted back from the mapped end, so a window across
+        // midnight keeps its length in the tide table
+        Date timeEnd = tideTime(dataset.getTideSource(), nogoRequest.getEndDate());
+        Date timeStart = new Date(timeEnd.getTime()
+                - (nogoRequest.getEndDate().getTime() / HOUR - nogoRequest.getStartDate().getTime() / HOUR) * HOUR);
+
+        // Round the draught down, a deeper draught gives the larger and safe
+        // no go area
+        long draughtSteps = (long) Math.floor(nogoRequest.getDraught() / draughtStep);
+        double draught = draughtSteps * draughtStep;
+
+        // Contours need a grid and a box, otherwise rectangles are given
+        // instead
+        NogoGeometry geometry = NogoGeometry.RECTANGLES;
+        if (nogoRequest.getGeometry() == NogoGeometry.CONTOURS && depthGrid != null && corridor == null
+                || nogoRequest.getGeometry() == NogoGeometry.OUTLINES) {
+            geometry = nogoRequest.getGeometry();
         }
 
-        BoundingBoxPoint firstPosDepth = nogoWorkerFirstPointDepth.getPoint();
-        BoundingBoxPoint secondPosDepth = nogoWorkerSecondPointDepth.getPoint();
-
-        // System.out.println("depth points are " +
-        // nogoWorkerFirstPointDepth.getPoint() + ", "
-        // + nogoWorkerSecondPointDepth.getPoint());
-
-        BoundingBoxPoint firstPosTide = nogoWorkerFirstPointTide.getPoint();
-        BoundingBoxPoint secondPosTide = nogoWorkerSecondPointTide.getPoint();
-
-        // System.out.println("tide points are " +
-        // nogoWorkerFirstPointTide.getPoint() + ", "
-        // + nogoWorkerSecondPointTide.getPoint());
-
-        List<NogoPolygon> polyArea = new ArrayList<NogoPolygon>();
-
-        if (firstPosDepth != null && secondPosDepth != null) {
-            // System.out.println("Bounding Box found - requesting data");
-
-            nogoWorkerDepthData.setFirstPos(firstPosDepth);
-            nogoWorkerDepthData.setSecondPos(secondPosDepth);
-
-            nogoWorkerDepthData.setDraught(nogoRequest.getDraught());
-
-            // Testing
-            // nogoWorkerDepthData.setDraught(-7);
-
-            nogoWorkerTideData.setFirstPos(firstPosTide);
-            nogoWorkerTideData.setSecondPos(secondPosTide);
-
-            // Use 01-05 until we get better database setup
-            // 2012-01-05 22:00:00
-            java.sql.Timestamp timeStart = new Timestamp(112, 0, 5, 0, 0, 0, 0);
-            java.sql.Timestamp timeEnd = new Timestamp(112, 0, 5, 0, 0, 0, 0);
-
-            timeStart.setHours(nogoRequest.getStartDate().getHours());
-            timeEnd.setHours(nogoRequest.getEndDate().getHours());
-
-            nogoWorkerTideData.setTimeStart(timeStart);
-            nogoWorkerTideData.setTimeEnd(timeEnd);
-
-            // System.out.println("StartTime is: " + timeStart);
-            //
-            // System.out.println("EndTime is: " + timeEnd);
-
-            nogoWorkerDepthData.start();
-
-            nogoWorkerTideData.start();
-
-            try {
-                nogoWorkerDepthData.join();
-                System.out.println("Depth data thread joined");
-                nogoWorkerTideData.join();
-                System.out.println("Tide data thread joined");
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            System.out.println("Depth database size: " + nogoWorkerDepthData.getDepthDatabaseResult().size());
-
-            if (nogoWorkerDepthData.getDepthDatabaseResult().size() != 0) {
+        NogoCacheKey key;
+        NogoContext context;
+        BoundingBoxPoint firstPosDepth = null;
+        BoundingBoxPoint secondPosDepth = null;
+        if (depthGrid != null) {
+            // The grid position is computed from the georeferenced grids, no
+            // need to search the database
+            GridDescriptor depthDescriptor = depthGrid.getDescriptor();
+            firstPosDepth = depthDescriptor.locate(northWest, depthGrid);
+            secondPosDepth = depthDescriptor.locate(SouthEast, depthGrid);
+
+            key = new NogoCacheKey(dataset.getVersion(), region.getName(), firstPosDepth == null ? -1
+                    : firstPosDepth.getN(), firstPosDepth == null ? -1 : firstPosDepth.getM(), secondPosDepth == null
+                    ? -1 : secondPosDepth.getN(), secondPosDepth == null ? -1 : secondPosDepth.getM(), draughtSteps,
+                    timeStart.getTime() / HOUR, timeEnd.getTime() / HOUR, geometry, corridorKey);
+            context = new NogoContext(dataset, region, northWest, SouthEast, draught, timeStart, timeEnd, deadline,
+                    geometry, corridor);
+        } else {
+            long lat1 = Math.round(northWest.getLatitude() / positionStep);
+            long lon1 = Math.round(northWest.getLongitude() / positionStep);
+            long lat2 = Math.round(SouthEast.getLatitude() / positionStep);
+            long lon2 = Math.round(SouthEast.getLongitude() / positionStep);
+
+            key = new NogoCacheKey(dataset.getVersion(), region.getName(), lat1, lon1, lat2, lon2, draughtSteps,
+                    timeStart.getTime() / HOUR, timeEnd.getTime() / HOUR, geometry, corridorKey);
+            context = new NogoContext(dataset, region, new GeoLocation(lat1 * positionStep, lon1 * positionStep),
+                    new GeoLocation(lat2 * positionStep, lon2 * positionStep), draught, timeStart, timeEnd, deadline,
+                    geometry, corridor);
+        }
 
-                System.out.println("Begin parsing");
-                polyArea = parseResult(nogoWorkerDepthData.getDepthDatabaseResult(), nogoWorkerTideData.getTideDatabaseResult(),
-                        nogoRequest.getDraught());
-            }
-            // polyArea = getNogoArea(firstPos, secondPos, -7);
-            System.out.println("Data recieved and parsed");
+        NogoResponse res = null;
+        if (Boolean.TRUE.equals(nogoRequest.getTimeSeries()) && depthPyramid != null) {
+            res = pollSeries(nogoRequest.getStartDate(), nogoRequest.getEndDate(), nogoRequest.getGeometry(),
+                    context, depthPyramid, firstPosDepth, secondPosDepth);
+        } else if (nogoRequest.getDraughts() != null && nogoRequest.getDraughts().size() > 0) {
+            res = pollDraughts(nogoRequest.getDraughts(), key, context, depthPyramid, firstPosDepth, secondPosDepth);
+        } else {
+            res = nogoDataService.getResultCache().get(key);
         }
 
-        NogoResponse res = new NogoResponse();
+        if (res == null && depthGrid != null && corridor == null && tileZoom > 0
+                && geometry != NogoGeometry.CONTOURS) {
+            res = assembleTiles(dataset, region, depthPyramid, context, firstPosDepth, secondPosDepth,
+                    draughtSteps);
+        }
 
-        for (int i = 0; i < polyArea.size(); i++) {
-            res.addPolygon(polyArea.get(i));
+        if (res == null) {
+            res = calculateOnce(nogoDataService.getResultCache(), key, context, depthPyramid, firstPosDepth,
+                    secondPosDepth, false);
         }
 
         Date requestStart = nogoRequest.getStartDate();
@@ -350,448 +307,565 @@ public class NogoServiceBean implements NogoService {
         requestEnd.setMinutes(0);
         requestEnd.setSeconds(0);
 
-        // Date currentDate = new Date();
-        // long futureDate = currentDate.getTime() + 7200000;
-
         res.setValidFrom(requestStart);
         res.setValidTo(requestEnd);
 
-        res.setNoGoErrorCode(errorCode);
-        res.setNoGoMessage(Errorcodes.getErrorMessage(errorCode));
+        res.setNoGoMessage(Errorcodes.getErrorMessage(res.getNoGoErrorCode()));
 
-        errorCode = 0;
-
-        System.out.println("Sending data");
+        LOG.debug("Sending data");
         return res;
     }
 
-    @SuppressWarnings("unused")
     @Override
-    public List<NogoPolygon> parseResult(List<DepthDenmark> result, List<TideDenmark> resultTide, double depth) {
-
-        // System.out.println("Query executed! - parsing");
-
-        // This is where we store our result
-        List<NogoPolygon> res = new ArrayList<NogoPolygon>();
-
-        // Seperate it into lines - depth
-        List<List<DepthDenmark>> lines = new ArrayList<List<DepthDenmark>>();
-        int m = -1;
-        List<DepthDenmark> line = null;
-        for (DepthDenmark depthDenmark : result) {
-            // What is the index, n
-            if (depthDenmark.getM() > m) {
-                line = new ArrayList<DepthDenmark>();
-                lines.add(line);
-                m = depthDenmark.getM();
+    public NogoResponse nogoTile(int z, int x, int y, double draught, int hour, NogoGeometry geometry)
+            throws ServiceException {
+        long deadline = System.currentTimeMillis() + nogoExecutor.getTimeout();
+
+        NogoResponse res;
+        if (!NogoTiles.isValid(z, x, y) || z < tileMinZoom || hour < 0 || hour > 23) {
+            res = new NogoResponse();
+            res.setNoGoErrorCode(Errorcodes.NOGO_INVALID_TILE);
+        } else {
+            // Tiles are cut from the grids only, the region is the one holding
+            // the center of the tile
+            double lat = (NogoTiles.toLat(z, y) + NogoTiles.toLat(z, y + 1)) / 2;
+            double lon = (NogoTiles.toLon(z, x) + NogoTiles.toLon(z, x + 1)) / 2;
+            NogoRegion region = nogoDataService.getRegionRegistry().findRegion(lat, lon, lat, lon);
+            NogoDataset dataset = nogoDataService.getDataset();
+            DepthPyramid depthPyramid = region == null ? null : dataset.getDepthPyramid(region);
+
+            long draughtSteps = (long) Math.floor(draught / draughtStep);
+            Date time = tideTime(dataset.getTideSource(), nextOccurrence(hour));
+            res = depthPyramid == null ? null : calculateTile(dataset, region, depthPyramid, z, x, y, draughtSteps,
+                    time, time, geometry == null ? NogoGeometry.RECTANGLES : geometry, deadline, null);
+            if (res == null) {
+                res = new NogoResponse();
+                res.setNoGoErrorCode(Errorcodes.NOGO_NO_DATA);
             }
-            line.add(depthDenmark);
-        }
-
-        if (resultTide == null) {
-            errorCode = 18;
         }
 
-        // Seperate it into lines - tide - if we got em
-        if (resultTide != null) {
-
-            // Disable tide for now
-            if (true) {
-                // if (resultTide.size() == 0){
-                // System.out.println("No tide");
-                // errorCode = 18;
-            } else {
-
-                List<List<TideDenmark>> linesTide = new ArrayList<List<TideDenmark>>();
-                int mT = -1;
-                List<TideDenmark> lineTide = null;
-                for (TideDenmark tideDenmark : resultTide) {
-                    // What is the index, n
-                    if (tideDenmark.getM() > mT) {
-                        lineTide = new ArrayList<TideDenmark>();
-                        linesTide.add(lineTide);
-                        mT = tideDenmark.getM();
-                    }
-                    lineTide.add(tideDenmark);
-
-                }
-
-                // Identify how many similar we have
-                int n = linesTide.get(0).get(0).getN();
-                int nCount = 0;
-                for (int j = 0; j < linesTide.get(0).size(); j++) {
+        res.setNoGoMessage(Errorcodes.getErrorMessage(res.getNoGoErrorCode()));
+        return res;
+    }
 
-                    if (n != -1 && linesTide.get(0).get(j).getN() != n) {
-                        break;
-                    }
-                    nCount++;
+    /**
+     * Answer a request for a box from the tiles covering it at nogo_tile_zoom.
+     * The runs of no go cells the tiles were built from are joined across the
+     * tile edges and cut at the box before the polygons are built, so the
+     * answer is the one calculated for the box itself.
+     * 
+     * @return the response or null if the box needs more than
+     *         nogo_tile_max_tiles tiles or a tile has no runs to join
+     */
+    private NogoResponse assembleTiles(NogoDataset dataset, NogoRegion region, DepthPyramid depthPyramid,
+            NogoContext context, BoundingBoxPoint firstPosDepth, BoundingBoxPoint secondPosDepth, long draughtSteps)
+            throws ServiceException {
+        if (firstPosDepth == null || secondPosDepth == null) {
+            return null;
+        }
+        GeoLocation northWest = context.getNorthWest();
+        GeoLocation southEast = context.getSouthEast();
+        double north = Math.max(northWest.getLatitude(), southEast.getLatitude());
+        double south = Math.min(northWest.getLatitude(), southEast.getLatitude());
+        double west = Math.min(northWest.getLongitude(), southEast.getLongitude());
+        double east = Math.max(northWest.getLongitude(), southEast.getLongitude());
+
+        int x1 = NogoTiles.toX(tileZoom, west);
+        int x2 = NogoTiles.toX(tileZoom, east);
+        int y1 = NogoTiles.toY(tileZoom, north);
+        int y2 = NogoTiles.toY(tileZoom, south);
+        if ((long) (x2 - x1 + 1) * (y2 - y1 + 1) > tileMaxTiles) {
+            return null;
+        }
 
+        NogoResponse res = new NogoResponse();
+        res.setNoGoErrorCode(Errorcodes.OK);
+        List<int[]> parts = new ArrayList<int[]>();
+        for (int y = y1; y <= y2; y++) {
+            for (int x = x1; x <= x2; x++) {
+                int[][] runs = new int[1][];
+                NogoResponse tile = calculateTile(dataset, region, depthPyramid, tileZoom, x, y, draughtSteps,
+                        context.getTimeStart(), context.getTimeEnd(), context.getGeometry(), context.getDeadline(),
+                        runs);
+                if (tile == null) {
+                    continue;
                 }
-
-                // System.out.println("We have: " + nCount + " that are equal");
-                // System.out.println("The size of linesTide first line is: " +
-                // linesTide.get(0).size());
-                // We have a broad time spand
-                if (nCount != 1) {
-                    List<List<TideDenmark>> linesTideParsed = new ArrayList<List<TideDenmark>>();
-                    // We need to take nCount out and compare, and return the
-                    // highest
-                    for (int i = 0; i < linesTide.size(); i++) {
-                        List<TideDenmark> parsedLine = compareTideLines(linesTide.get(i), nCount);
-                        linesTideParsed.add(parsedLine);
-                    }
-                    // Overwrite the old one
-                    linesTide = linesTideParsed;
+                mergeErrorCode(res, tile.getNoGoErrorCode());
+                if (isTransient(tile.getNoGoErrorCode())) {
+                    return res;
                 }
-
-                // System.out.println("The size of linesTideParsed first line is: "
-                // + linesTide.get(0).size());
-
-                // Combine the two into one result
-                int j = 0;
-                for (int i = 0; i < linesTide.size(); i++) {
-                    List<TideDenmark> currentTideLine = linesTide.get(i);
-                    combineVertical(currentTideLine, lines, j);
-                    j = j + 5;
+                if (runs[0] == null) {
+                    return null;
                 }
-
+                parts.add(runs[0]);
             }
         }
 
-        List<List<DepthDenmark>> parsedLines = new ArrayList<List<DepthDenmark>>();
-
-        // Remove invalid positions
-        for (int i = 0; i < lines.size(); i++) {
-            parsedLines.add(new ArrayList<DepthDenmark>());
-            for (int k = 0; k < lines.get(i).size(); k++) {
-                if (lines.get(i).get(k).getDepth() == null || lines.get(i).get(k).getDepth() > depth) {
-                    // System.out.println("Current line depth is: " + lines.get(i).get(k).getDepth());
-          
-                    parsedLines.get(i).add(lines.get(i).get(k));
-                }
-
-            }
-
+        int[] runs = NogoEngine.joinRuns(parts, firstPosDepth, secondPosDepth);
+        if (runs == null) {
+            return null;
         }
-
-        lines = parsedLines;
-
-        // System.out.println("Parsing Query");
-
-        ParseData parseData = new ParseData();
-
-        // System.out.println("Lines is: " + lines.size());
-
-        List<List<DepthDenmark>> parsed = parseData.getParsed(lines);
-
-        // System.out.println("Parsed is: " + parsed.size());
-
-        // parsed = lines;
-
-        // System.out.println(lines.size());
-        // System.out.println(parsed.size());
-        //
-        // for (int j = 0; j < parsed.size(); j++) {
-        // System.out.println(parsed.get(j).size());
-        // }
-
-        // All the line component are split into sections, ie. all on same index m are put in a list together
-        List<List<List<DepthDenmark>>> lineSection = new ArrayList<List<List<DepthDenmark>>>();
-        List<List<DepthDenmark>> tempLine = new ArrayList<List<DepthDenmark>>();
-
-        m = parsed.get(0).get(0).getM();
-
-        // Split the list based on the m index - note the index is opposite of the longitude coordinates
-        for (List<DepthDenmark> splittedLines : parsed) {
-            if ((splittedLines.get(0).getM()) > m) {
-                // System.out.println("New line detected");
-                lineSection.add(tempLine);
-                tempLine = new ArrayList<List<DepthDenmark>>();
-                tempLine.add(splittedLines);
-                m = splittedLines.get(0).getM();
-            } else {
-                tempLine.add(splittedLines);
-            }
+        try {
+            addPolygons(res, nogoEngine.gridPolygons(runs, depthPyramid.getGrid(), context));
+        } catch (ServiceException e) {
+            res.setNoGoErrorCode(e.getErrorCode());
         }
-        lineSection.add(tempLine);
-
-        // Reverse the list
-        Collections.reverse(lineSection);
-
-        // Seperate? Find all the required connection things
-
-        List<NogoPolygon> allNeighboursLine = new ArrayList<NogoPolygon>();
-
-        for (int i = 0; i < lineSection.size(); i++) {
-
-            for (int j = 0; j < lineSection.get(i).size(); j++) {
-
-                List<NogoPolygon> neighbours = new ArrayList<NogoPolygon>();
+        return res;
+    }
 
-                // It has a next line
-                if (i != lineSection.size() - 1) {
-                    neighbours = connectNeighbourLines
-                            .connectFindValidNeighbours(lineSection.get(i).get(j), lineSection.get(i + 1));
+    /**
+     * Get a tile from the tile cache or calculate it from the grid. The runs
+     * of no go cells of a tile are cached along with its polygons.
+     * 
+     * @param runs
+     *            set to the runs of the tile if not null, left null if the
+     *            tile has none cached, e.g. for contours
+     * @return the tile or null if it holds no cells of the grid
+     */
+    private NogoResponse calculateTile(NogoDataset dataset, NogoRegion region, DepthPyramid depthPyramid, int z,
+            int x, int y, long draughtSteps, Date timeStart, Date timeEnd, NogoGeometry geometry, long deadline,
+            int[][] runs) throws ServiceException {
+        DepthGrid depthGrid = depthPyramid.getGrid();
+        GridDescriptor descriptor = depthGrid.getDescriptor();
+        int[] cells = NogoTiles.toCells(descriptor, z, x, y);
+        if (cells == null) {
+            return null;
+        }
 
-                    allNeighboursLine.addAll(neighbours);
+        NogoCacheKey key = new NogoCacheKey(dataset.getVersion(), region.getName(), cells[0], cells[2], cells[1],
+                cells[3], draughtSteps, timeStart.getTime() / HOUR, timeEnd.getTime() / HOUR, geometry);
+        NogoResponse res = nogoDataService.getTileCache().get(key, runs);
+        if (res != null) {
+            return res;
+        }
 
-                    //
-                    // if (neighbours.size() != 0){
-                    // for (int k = 0; k < neighbours.size(); k++) {
-                    //
-                    // //Check for overlap, first between line + 1 and the triangles
-                    // if (!connectNeighbourLines.doesOverlap(neighbours.get(k), lineSection.get(i+1))){
-                    // res.add(neighbours.get(k));
-                    // }
-                    //
-                    // //Then for each triangle with the other triangles
-                    //
-                    // //If no overlap, add it
-                    //
-                    //
-                    // }
-                    // }
-                }
+        GeoLocation first = new GeoLocation(descriptor.getLat(cells[2]), descriptor.getLon(cells[0]));
+        GeoLocation second = new GeoLocation(descriptor.getLat(cells[3]), descriptor.getLon(cells[1]));
+        NogoContext context = new NogoContext(dataset, region, first, second, draughtSteps * draughtStep, timeStart,
+                timeEnd, deadline, geometry);
+        res = calculateOnce(nogoDataService.getTileCache(), key, context, depthPyramid, new BoundingBoxPoint(
+                cells[0], cells[2]), new BoundingBoxPoint(cells[1], cells[3]), true);
+
+        // The runs are shared through the cache, also with requests that
+        // waited for the calculation of another
+        if (runs != null && !isTransient(res.getNoGoErrorCode())) {
+            nogoDataService.getTileCache().get(key, runs);
+        }
+        return res;
+    }
 
+    /**
+     * Answer a request for several draughts. Draughts found in the cache are
+     * taken from there, the rest are calculated together in one pass over the
+     * depth and tide data and cached one by one.
+     */
+    private NogoResponse pollDraughts(List<Double> requested, NogoCacheKey key, NogoContext context,
+            DepthPyramid depthPyramid, BoundingBoxPoint firstPosDepth, BoundingBoxPoint secondPosDepth) {
+        NogoResultCache cache = nogoDataService.getResultCache();
+
+        // Rounded down like single draughts, the deepest first
+        SortedMap<Long, NogoResponse> results = new TreeMap<Long, NogoResponse>();
+        for (Double draught : requested) {
+            long steps = (long) Math.floor(draught / draughtStep);
+            if (!results.containsKey(steps)) {
+                results.put(steps, cache.get(key.withDraught(steps)));
             }
-
-            // System.out.println(allNeighboursLine.size());
-
-            // List<NogoPolygon> neighbours = connectNeighbourLines.connectFindValidNeighbours(lineSection.get(0).get(i),
-            // lineSection.get(1));
-
         }
 
-        // We found our neighbours, make sure they don't clash together
-
-        if (type != DataType.SF_BAY || type != DataType.HUMBER) {
-
-            List<NogoPolygon> finalNeighbours = connectNeighbourLines.triangleOverlap(allNeighboursLine);
-
-            for (int k = 0; k < finalNeighbours.size(); k++) {
-                res.add(finalNeighbours.get(k));
+        List<Long> missing = new ArrayList<Long>();
+        for (Map.Entry<Long, NogoResponse> entry : results.entrySet()) {
+            if (entry.getValue() == null) {
+                missing.add(entry.getKey());
             }
-
         }
 
-        // List<List<DepthDenmark>> neighbours = connectNeighbourLines.connectFindValidNeighbours(lineSection.get(0).get(0),
-        // lineSection.get(1));
-        // System.out.println(neighbours.size() + " neighbours found");
-        //
-        // neighbours = connectNeighbourLines.connectFindValidNeighbours(lineSection.get(1).get(0), lineSection.get(2));
-        // System.out.println(neighbours.size() + " neighbours found");
-
-        NogoPolygon polygon;
-        NogoPolygon temp;
-
-//        System.out.println("splitted lines is: " + parsed.size());
-
-        // double lonOffset = 0.0007854;
-        // The difference between each point / 2. This is used in calculating
-        // the polygons surrounding the lines
-
-        // 100m spacing
-        // double latOffset = 0.00055504;
-        // // double latOffset = 0.0;
-        //
-        // double lonOffset = 0.00055504;
-        // double lonOffset = 0.0;
-
-        // 50m spacing
-        // double latOffset = 0.000290;
-
-        for (List<DepthDenmark> splittedLines : parsed) {
-
-            // Singleton
-            if (splittedLines.size() == 1) {
-
-                NogoPoint point = new NogoPoint(splittedLines.get(0).getLat(), splittedLines.get(0).getLon());
-                temp = new NogoPolygon();
-                temp.getPolygon().add(point);
-                temp.getPolygon().add(point);
+        if (!missing.isEmpty()) {
+            double[] draughts = new double[missing.size()];
+            NogoResponse[] calculated = new NogoResponse[missing.size()];
+            for (int i = 0; i < draughts.length; i++) {
+                draughts[i] = missing.get(i) * draughtStep;
+                calculated[i] = new NogoResponse();
+                calculated[i].setNoGoErrorCode(Errorcodes.OK);
+            }
 
+            if (depthPyramid != null) {
+                queryGrid(context, draughts, depthPyramid, firstPosDepth, secondPosDepth, calculated, null);
             } else {
-                temp = new NogoPolygon();
-                for (DepthDenmark dataEntries : splittedLines) {
-                    NogoPoint point = new NogoPoint(dataEntries.getLat(), dataEntries.getLon());
-                    temp.getPolygon().add(point);
-                }
-
-                /** Add to draw singletons **/
-                // }
-
-                NogoPoint westPoint = new NogoPoint(temp.getPolygon().get(0).getLat(), temp.getPolygon().get(0).getLon()
-                        - lonOffset);
-                NogoPoint eastPoint = new NogoPoint(temp.getPolygon().get(1).getLat(), temp.getPolygon().get(1).getLon()
-                        + lonOffset);
-
-                NogoPoint northWest = new NogoPoint(westPoint.getLat() + latOffset, westPoint.getLon());
-
-                NogoPoint northEast = new NogoPoint(eastPoint.getLat() + latOffset, eastPoint.getLon());
-
-                NogoPoint southWest = new NogoPoint(westPoint.getLat() - latOffset, westPoint.getLon());
-
-                NogoPoint southEast = new NogoPoint(eastPoint.getLat() - latOffset, eastPoint.getLon());
-
-                polygon = new NogoPolygon();
-
-                polygon.getPolygon().add(northWest);
-                polygon.getPolygon().add(southWest);
-                polygon.getPolygon().add(southEast);
-                polygon.getPolygon().add(northEast);
-
-                res.add(polygon);
-
-                /** Remove to draw singletons **/
-                // }
+                queryDatabase(context, draughts, calculated);
+            }
 
+            for (int i = 0; i < draughts.length; i++) {
+                if (!isTransient(calculated[i].getNoGoErrorCode())) {
+                    cache.put(key.withDraught(missing.get(i)), calculated[i]);
+                }
+                results.put(missing.get(i), calculated[i]);
             }
         }
-        // System.out.println(res.size());
 
+        NogoResponse res = new NogoResponse();
+        res.setNoGoErrorCode(Errorcodes.OK);
+        for (Double draught : requested) {
+            NogoResponse result = results.get((long) Math.floor(draught / draughtStep));
+            NogoDraughtArea area = new NogoDraughtArea();
+            area.setDraught(draught);
+            area.setPolygons(new ArrayList<NogoPolygon>(result.getPolygons()));
+            res.addDraughtArea(area);
+            mergeErrorCode(res, result.getNoGoErrorCode());
+        }
         return res;
     }
 
-    private List<TideDenmark> compareTideLines(List<TideDenmark> list, int nCount) {
+    /**
+     * Answer a time series request: the area of the first hour of the window
+     * in full and the cells added and removed each later hour, for at most
+     * nogo_series_max_hours hours. The steps are calculated together in one
+     * pass and not cached. The added and removed cells are runs, so only
+     * rectangles are given and other geometries answer NOGO_INVALID_GEOMETRY.
+     */
+    private NogoResponse pollSeries(Date start, Date end, NogoGeometry geometry, NogoContext context,
+            DepthPyramid depthPyramid, BoundingBoxPoint firstPosDepth, BoundingBoxPoint secondPosDepth) {
+        NogoResponse res = new NogoResponse();
+        res.setNoGoErrorCode(Errorcodes.OK);
+        if (geometry != null && geometry != NogoGeometry.RECTANGLES) {
+            res.setNoGoErrorCode(Errorcodes.NOGO_INVALID_GEOMETRY);
+            return res;
+        }
+        if (firstPosDepth == null || secondPosDepth == null) {
+            return res;
+        }
 
-        List<TideDenmark> parsedList = new ArrayList<TideDenmark>();
-        // Take nCount out
-        // Compare them
-        for (int i = 0; i < list.size(); i = i + nCount) {
+        long firstHour = start.getTime() / HOUR;
+        int count = (int) Math.max(1, Math.min(seriesMaxHours, end.getTime() / HOUR - firstHour + 1));
+        Date[] times = new Date[count];
+        TideWindow[] hours = new TideWindow[count];
+        // Only the last hour is mapped to the tide data and the others counted
+        // back from it, so steps across midnight follow on in the tide table
+        // instead of wrapping onto the same day
+        long lastTide = tideTime(context.getDataset().getTideSource(), new Date((firstHour + count - 1) * HOUR))
+                .getTime();
+        for (int h = 0; h < count; h++) {
+            times[h] = new Date((firstHour + h) * HOUR);
+            Date time = new Date(lastTide - (count - 1 - h) * HOUR);
+            hours[h] = findTideWindow(context, time, time);
+        }
+        if (hours[0] == null && applyTide) {
+            res.setNoGoErrorCode(Errorcodes.NOGO_NO_TIDE);
+        }
 
-            // take all the elements
-            List<TideDenmark> tempList = new ArrayList<TideDenmark>();
-            for (int j = 0; j < nCount; j++) {
-                tempList.add(list.get(j + i));
-            }
+        List<NogoTimeStep> steps;
+        try {
+            steps = nogoEngine.parseSeries(depthPyramid, firstPosDepth, secondPosDepth, hours, context);
+        } catch (ServiceException e) {
+            res.setNoGoErrorCode(e.getErrorCode());
+            return res;
+        }
+        for (NogoPolygon polygon : steps.get(0).getAdded()) {
+            res.addPolygon(polygon);
+        }
+        for (int h = 1; h < count; h++) {
+            steps.get(h).setTime(times[h]);
+            res.addTimeStep(steps.get(h));
+        }
+        return res;
+    }
+
+    /**
+     * The next time the clock reaches an hour of the day, the start of the
+     * current hour if it is that hour now
+     */
+    private static Date nextOccurrence(int hour) {
+        Calendar calendar = Calendar.getInstance();
+        if (calendar.get(Calendar.HOUR_OF_DAY) > hour) {
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        calendar.set(Calendar.HOUR_OF_DAY, hour);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTime();
+    }
 
-            // find lowest in tempList
-            TideDenmark lowestTide = getLowestTide(tempList);
-            // add it to parsedList
-            parsedList.add(lowestTide);
+    /**
+     * Map a time to the tide data, the hour itself for predicted tide and the
+     * same hour of the day for the tide table, on the newest day of the tide
+     * cube that has the hour
+     */
+    private static Date tideTime(TideSource tideSource, Date time) {
+        if (tideSource instanceof HarmonicTides) {
+            return new Date(time.getTime() / HOUR * HOUR);
+        }
+        if (!(tideSource instanceof TideCube)) {
+            return time;
         }
 
-        return parsedList;
+        TideCube cube = (TideCube) tideSource;
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(time);
+        int hour = calendar.get(Calendar.HOUR_OF_DAY);
+        calendar.setTimeInMillis(cube.getStartTime() + (cube.getHours() - 1) * HOUR);
+        if (calendar.get(Calendar.HOUR_OF_DAY) < hour) {
+            calendar.add(Calendar.DAY_OF_MONTH, -1);
+        }
+        calendar.set(Calendar.HOUR_OF_DAY, hour);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        if (calendar.getTimeInMillis() < cube.getStartTime()) {
+            LOG.warn("Tide time " + calendar.getTime() + " for " + time + " is before the tide cube starting at "
+                    + new Date(cube.getStartTime()));
+        }
+        return calendar.getTime();
     }
 
-    private TideDenmark getLowestTide(List<TideDenmark> tempList) {
-        TideDenmark current = tempList.get(0);
+    /**
+     * Calculate the result for a request, or wait for the calculation of an
+     * equal request if one is already running and share its result
+     * 
+     * @param keepRuns
+     *            cache the runs of no go cells along with the polygons
+     */
+    private NogoResponse calculateOnce(final NogoResultCache cache, final NogoCacheKey key,
+            final NogoContext context, final DepthPyramid depthPyramid, final BoundingBoxPoint firstPosDepth,
+            final BoundingBoxPoint secondPosDepth, final boolean keepRuns) throws ServiceException {
+        FutureTask<NogoResponse> task = new FutureTask<NogoResponse>(new Callable<NogoResponse>() {
+            @Override
+            public NogoResponse call() {
+                NogoResponse res = new NogoResponse();
+                res.setNoGoErrorCode(Errorcodes.OK);
+
+                double[] draughts = { context.getDraught() };
+                NogoResponse[] results = { res };
+                int[][] runs = keepRuns ? new int[1][] : null;
+                if (depthPyramid != null) {
+                    queryGrid(context, draughts, depthPyramid, firstPosDepth, secondPosDepth, results, runs);
+                } else {
+                    queryDatabase(context, draughts, results);
+                }
 
-        for (int i = 0; i < tempList.size(); i++) {
-            if (current.getDepth() != null && tempList.get(i).getDepth() != null) {
-                // Take the lowest
-                if (current.getDepth() > tempList.get(i).getDepth()) {
-                    current = tempList.get(i);
+                // A timeout or a full pool says nothing about the result of
+                // the next request
+                if (!isTransient(res.getNoGoErrorCode())) {
+                    cache.put(key, res, runs == null ? null : runs[0]);
                 }
+                return res;
             }
-            // if current is null and the other isn't, take the none null one.
-            // Is this the correct approach?
-            if (current.getDepth() == null && tempList.get(i).getDepth() != null) {
-                // System.out.println("Strangeness");
-                current = tempList.get(i);
+        });
+
+        FutureTask<NogoResponse> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
             }
+            running = task;
+        } else {
+            coalesced.incrementAndGet();
+        }
 
+        NogoResponse shared;
+        try {
+            shared = running.get(Math.max(0, context.getDeadline() - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            shared = new NogoResponse();
+            shared.setNoGoErrorCode(Errorcodes.NOGO_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            shared = new NogoResponse();
+            shared.setNoGoErrorCode(Errorcodes.NOGO_TIMEOUT);
+        } catch (ExecutionException e) {
+            throw new ServiceException("NoGo calculation failed: " + e.getCause());
         }
 
-        return current;
+        // Each request gets its own response to set the validity on
+        NogoResponse res = new NogoResponse();
+        addPolygons(res, shared.getPolygons());
+        res.setNoGoErrorCode(shared.getNoGoErrorCode());
+        return res;
     }
 
-    private void combineVertical(List<TideDenmark> currentTideLine, List<List<DepthDenmark>> lines, int k) {
-
-        // How many entries does lines has, is k + 5 > than lines.size then
-        // treat then special - end of shit
+    @Override
+    public Map<String, String> getStatistics() {
+        Map<String, String> stats = new LinkedHashMap<String, String>();
+        stats.put("NOGO_IN_FLIGHT", Integer.toString(inFlight.size()));
+        stats.put("NOGO_COALESCED", Long.toString(coalesced.get()));
+        return stats;
+    }
 
-        if (k + 5 > lines.size() - 1) {
+    /**
+     * Find the NoGo areas of some draughts from the in-memory depth grid and
+     * tide cube
+     * 
+     * @param draughts
+     *            draughts in increasing order
+     * @param res
+     *            response of each draught
+     * @param runs
+     *            set to the runs of no go cells of each draught if not null,
+     *            left null for contours
+     */
+    private void queryGrid(NogoContext context, double[] draughts, DepthPyramid depthPyramid,
+            BoundingBoxPoint firstPosDepth, BoundingBoxPoint secondPosDepth, NogoResponse[] res, int[][] runs) {
+        if (firstPosDepth == null || secondPosDepth == null) {
+            return;
+        }
 
-            for (int i = k + 1; i < lines.size(); i++) {
-                // System.out.println("We must work on " + k);
-                combineHorizontal(currentTideLine, lines.get(k));
+        try {
+            TideWindow tideWindow = findTideWindow(context, context.getTimeStart(), context.getTimeEnd());
+            if (tideWindow == null && applyTide) {
+                setErrorCode(res, Errorcodes.NOGO_NO_TIDE);
             }
-            // System.out.println("Do something else");
-
-        } else {
 
-            // We have the line, work on the depth database part
-            for (int j = 0; j < 4; j++) {
-                // Five lines has to use the currentTideLine
-                // Each line now has to iterate through the tideline
-                combineHorizontal(currentTideLine, lines.get(k + j));
-                // System.out.println("Currently working on: " + (k+j));
+            if (context.getGeometry() == NogoGeometry.CONTOURS) {
+                addPolygons(res, nogoEngine.contourGrid(depthPyramid.getGrid(), firstPosDepth, secondPosDepth,
+                        tideWindow, context, draughts));
+                return;
             }
 
+            // Static depth, cut from the precomputed isobaths if they are
+            // built for this grid and the request is for a box
+            int[][] found = null;
+            IsobathLadder ladder = nogoDataService.getIsobathLadder(context.getRegion());
+            if (tideWindow == null && ladder != null && ladder.getPyramid() == depthPyramid
+                    && context.getCorridor() == null) {
+                found = nogoEngine.clipRuns(ladder, firstPosDepth, secondPosDepth, draughts);
+            }
+            if (found == null) {
+                found = nogoEngine.findRuns(depthPyramid, firstPosDepth, secondPosDepth, tideWindow, context,
+                        draughts);
+            }
+            for (int t = 0; t < draughts.length; t++) {
+                addPolygons(res[t], nogoEngine.gridPolygons(found[t], depthPyramid.getGrid(), context));
+            }
+            if (runs != null) {
+                System.arraycopy(found, 0, runs, 0, found.length);
+            }
+        } catch (ServiceException e) {
+            // The calculation passed its deadline or failed, the response is
+            // left without polygons
+            setErrorCode(res, e.getErrorCode());
         }
-
     }
 
-    private void combineHorizontal(List<TideDenmark> currentTideLine, List<DepthDenmark> currentDepthList) {
+    /**
+     * Find the window of the tide source over the box of a request, one tide
+     * cell wider on each side so the levels at the edges of the box are
+     * interpolated as they are inside a larger box
+     * 
+     * @return the window or null if there is no tide data for the box or tide
+     *         is not applied
+     */
+    private TideWindow findTideWindow(NogoContext context, Date timeStart, Date timeEnd) {
+        TideSource tideSource = context.getDataset().getTideSource();
+        if (tideSource == null || !applyTide) {
+            return null;
+        }
+        GridDescriptor tideDescriptor = tideSource.getDescriptor();
+        BoundingBoxPoint firstPosTide = tideDescriptor.locate(context.getNorthWest(), tideSource);
+        BoundingBoxPoint secondPosTide = tideDescriptor.locate(context.getSouthEast(), tideSource);
+        if (firstPosTide == null || secondPosTide == null) {
+            return null;
+        }
+        return tideSource.getWindow(Math.min(firstPosTide.getN(), secondPosTide.getN()) - 1,
+                Math.min(firstPosTide.getM(), secondPosTide.getM()) - 1,
+                Math.max(firstPosTide.getN(), secondPosTide.getN()) + 1,
+                Math.max(firstPosTide.getM(), secondPosTide.getM()) + 1, timeStart, timeEnd);
+    }
 
-        // Gets two lines - depth and tide
-        int j = 0;
+    /**
+     * Find the NoGo area from the depth table of the region, used when the
+     * region has no grid in memory. The depth of the box is streamed into a
+     * grid of its own, once for all draughts, and calculated as from an
+     * in-memory grid with the tide of the dataset. The queries run on the
+     * shared NoGo pool, if they do not finish before the deadline the error
+     * code is set to NOGO_TIMEOUT, and to NOGO_BUSY if the pool is full.
+     */
+    private void queryDatabase(NogoContext context, double[] draughts, NogoResponse[] res) {
+        DataType type = context.getDataType();
+        long deadline = context.getDeadline();
+
+        NogoWorker nogoWorkerFirstPointDepth = new NogoWorker(entityManager, WorkerType.DEPTHPOINT, type);
+        NogoWorker nogoWorkerSecondPointDepth = new NogoWorker(entityManager, WorkerType.DEPTHPOINT, type);
+        NogoWorker nogoWorkerDepthData = new NogoWorker(entityManager, WorkerType.DEPTHDATA, type);
+
+        for (NogoWorker worker : Arrays.asList(nogoWorkerFirstPointDepth, nogoWorkerSecondPointDepth,
+                nogoWorkerDepthData)) {
+            worker.setDeadline(deadline);
+        }
 
-        // For each tidePoint, apply it's depth to all element in the depth
-        for (int i = 0; i < currentTideLine.size(); i++) {
-            // System.out.println("Current tide size is: "
-            // + currentTideLine.size());
-            // Apply this depth to some elements - 8 f them
-            double currentDepth = 0;
+        nogoWorkerFirstPointDepth.setPos(context.getNorthWest());
+        nogoWorkerSecondPointDepth.setPos(context.getSouthEast());
 
-            if (currentTideLine.get(i).getDepth() != null) {
-                currentDepth = currentTideLine.get(i).getDepth();
-            }
-            // System.out.println("currentDepth is: " + currentDepth);
+        // Get the grid position of the data in the depth database
+        int errorCode = nogoExecutor.runAll(Arrays.asList(nogoWorkerFirstPointDepth, nogoWorkerSecondPointDepth),
+                deadline);
+        if (errorCode != Errorcodes.OK) {
+            setErrorCode(res, errorCode);
+            return;
+        }
 
-            // System.out.println("Depth something is: " +
-            // currentTideLine.get(0).getId());
+        BoundingBoxPoint firstPosDepth = nogoWorkerFirstPointDepth.getPoint();
+        BoundingBoxPoint secondPosDepth = nogoWorkerSecondPointDepth.getPoint();
 
-            combineDepth(currentDepth, currentDepthList, j);
+        if (firstPosDepth == null || secondPosDepth == null) {
+            return;
+        }
 
-            // Take element from
+        nogoWorkerDepthData.setFirstPos(firstPosDepth);
+        nogoWorkerDepthData.setSecondPos(secondPosDepth);
+        nogoWorkerDepthData.setDataSource(dataSource);
 
-            j += 8;
+        errorCode = nogoExecutor.runAll(Arrays.asList(nogoWorkerDepthData), deadline);
+        if (errorCode != Errorcodes.OK) {
+            setErrorCode(res, errorCode);
+            return;
         }
 
+        ArrayDepthGrid depthGrid = nogoWorkerDepthData.getDepthGrid();
+        if (depthGrid != null) {
+            queryGrid(context, draughts, new DepthPyramid(depthGrid), firstPosDepth, secondPosDepth, res, null);
+        }
     }
 
-    private void combineDepth(double currentDepth, List<DepthDenmark> currentDepthList, int j) {
-
-        if (j + 8 > currentDepthList.size() - 1) {
-
-            for (int i = j + 1; i < currentDepthList.size(); i++) {
-
-                // It's null, screw it
-                if (currentDepthList.get(i).getDepth() != null) {
-                    double newDepth = currentDepthList.get(i).getDepth() - currentDepth;
-                    currentDepthList.get(i).setDepth(newDepth);
-                    // System.out.println("Depth is: " +
-                    // currentDepthList.get(i+j).getDepth());
-                }
-
-                // System.out.println("We must work on " + i);
-
-            }
-            // System.out.println("Do something else");
-
+    private static void addPolygons(NogoResponse res, List<NogoPolygon> polyArea) {
+        for (int i = 0; i < polyArea.size(); i++) {
+            res.addPolygon(polyArea.get(i));
         }
+    }
 
-        if (j + 8 > currentDepthList.size() - 1) {
-            // System.out.println("Do something else - depth line version");
-        } else {
-
-            // j is the current position, so we need to take that + 7
-            for (int i = 0; i < 7; i++) {
+    private static void addPolygons(NogoResponse[] res, List<List<NogoPolygon>> polyAreas) {
+        for (int i = 0; i < res.length; i++) {
+            addPolygons(res[i], polyAreas.get(i));
+        }
+    }
 
-                // It's null, screw it
-                if (currentDepthList.get(i + j).getDepth() != null) {
-                    double newDepth = currentDepthList.get(i + j).getDepth() - currentDepth;
-                    currentDepthList.get(i + j).setDepth(newDepth);
-                    // System.out.println("Depth is: " +
-                    // currentDepthList.get(i+j).getDepth());
-                }
+    private static void setErrorCode(NogoResponse[] res, int errorCode) {
+        for (NogoResponse response : res) {
+            response.setNoGoErrorCode(errorCode);
+        }
+    }
 
+    /**
+     * Combine the error code of a part into a response, a timeout or a full
+     * pool taking precedence over other errors
+     */
+    private static void mergeErrorCode(NogoResponse res, int errorCode) {
+        if (isTransient(errorCode)) {
+            if (!isTransient(res.getNoGoErrorCode())) {
+                res.setNoGoErrorCode(errorCode);
             }
-
+        } else if (errorCode != Errorcodes.OK && res.getNoGoErrorCode() == Errorcodes.OK) {
+            res.setNoGoErrorCode(errorCode);
         }
+    }
 
+    /**
+     * Errors of the load on the service or of a failed calculation rather
+     * than of the request, results with them are not cached
+     */
+    private static boolean isTransient(int errorCode) {
+        return errorCode == Errorcodes.NOGO_TIMEOUT || errorCode == Errorcodes.NOGO_BUSY
+                || errorCode == Errorcodes.SYSTEM_ERROR;
     }
 
 }
@@ -0,0 +1,83 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+/**
+ * Web mercator tile addressing, as used by slippy maps. Tile (x, y) at zoom z
+ * is one of 2^z by 2^z tiles, x counting east from 180W and y south from
+ * 85.05N.
+ *
+ * A tile is mapped to the cells of a grid whose centers fall within it, so
+ * neighbouring tiles never share a cell.
+ */
+final class NogoTiles {
+
+	private NogoTiles() {
+	}
+
+	static boolean isValid(int z, int x, int y) {
+		return z >= 0 && z <= 30 && x >= 0 && y >= 0 && x < (1 << z) && y < (1 << z);
+	}
+
+	static double toLon(int z, int x) {
+		return x * 360.0 / (1 << z) - 180;
+	}
+
+	static double toLat(int z, int y) {
+		double t = Math.PI * (1 - 2.0 * y / (1 << z));
+		return Math.toDegrees(Math.atan(Math.sinh(t)));
+	}
+
+	/**
+	 * Column of the tile holding a longitude
+	 */
+	static int toX(int z, double lon) {
+		int x = (int) Math.floor((lon + 180) / 360 * (1 << z));
+		return Math.max(0, Math.min((1 << z) - 1, x));
+	}
+
+	/**
+	 * Row of the tile holding a latitude
+	 */
+	static int toY(int z, double lat) {
+		double rad = Math.toRadians(lat);
+		double t = Math.log(Math.tan(rad) + 1 / Math.cos(rad));
+		int y = (int) Math.floor((1 - t / Math.PI) / 2 * (1 << z));
+		return Math.max(0, Math.min((1 << z) - 1, y));
+	}
+
+	/**
+	 * Find the cells of a grid within a tile
+	 *
+	 * @param descriptor
+	 * @param z
+	 * @param x
+	 * @param y
+	 * @return first n, last n, first m and last m, or null if the tile holds
+	 *         no cells of the grid
+	 */
+	static int[] toCells(GridDescriptor descriptor, int z, int x, int y) {
+		int[] n = toRange(descriptor.fractionalN(toLon(z, x)), descriptor.fractionalN(toLon(z, x + 1)),
+				descriptor.getMinN(), descriptor.getMaxN());
+		int[] m = toRange(descriptor.fractionalM(toLat(z, y + 1)), descriptor.fractionalM(toLat(z, y)),
+				descriptor.getMinM(), descriptor.getMaxM());
+		if (n == null || m == null) {
+			return null;
+		}
+		return new int[] { n[0], n[1], m[0], m[1] };
+	}
+
+	/**
+	 * Whole coordinates from a up to b, half open so the next range starts
+	 * where this one ends, clamped to min and max
+	 */
+	private static int[] toRange(double a, double b, int min, int max) {
+		int first = (int) Math.ceil(Math.min(a, b));
+		int last = (int) Math.ceil(Math.max(a, b)) - 1;
+		first = Math.max(first, min);
+		last = Math.min(last, max);
+		if (first > last) {
+			return null;
+		}
+		return new int[] { first, last };
+	}
+
+}
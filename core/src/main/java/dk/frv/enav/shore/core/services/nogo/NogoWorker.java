@@ -29,24 +29,22 @@
  */
 package dk.frv.enav.shore.core.services.nogo;
 
-import java.sql.Timestamp;
-import java.util.ArrayList;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.List;
 
 import javax.persistence.EntityManager;
 import javax.persistence.Query;
+import javax.sql.DataSource;
 
 import dk.frv.ais.geo.GeoLocation;
 import dk.frv.enav.common.xml.nogo.types.BoundingBoxPoint;
-import dk.frv.enav.shore.core.domain.DepthDenmark;
-import dk.frv.enav.shore.core.domain.DepthDenmarkNord;
-import dk.frv.enav.shore.core.domain.Humber;
-import dk.frv.enav.shore.core.domain.TideDenmark;
-import dk.frv.enav.shore.core.domain.sfBay;
 import dk.frv.enav.shore.core.services.nogo.NogoServiceBean.DataType;
 import dk.frv.enav.shore.core.services.nogo.NogoServiceBean.WorkerType;
 
-public class NogoWorker extends Thread {
+public class NogoWorker implements Runnable {
     public final static int THREADPASS = 0;
     public final static int THREADFAIL = 1;
     int _status;
@@ -54,25 +52,14 @@ public class NogoWorker extends Thread {
     private GeoLocation pos;
     private BoundingBoxPoint point;
     private WorkerType workerType;
-    private double maxDepth;
-    private List<DepthDenmark> depthDatabaseResult;
-    private List<TideDenmark> tideDatabaseResult;
+    private ArrayDepthGrid depthGrid;
     private EntityManager entityManager;
 
     private BoundingBoxPoint firstPos;
     private BoundingBoxPoint secondPos;
-    private double draught;
-    private Timestamp timeStart;
-    private Timestamp timeEnd;
     private DataType dataType;
-
-    public void setTimeStart(Timestamp timeStart) {
-        this.timeStart = timeStart;
-    }
-
-    public void setTimeEnd(Timestamp timeEnd) {
-        this.timeEnd = timeEnd;
-    }
+    private long deadline;
+    private DataSource dataSource;
 
     public NogoWorker(EntityManager entityManager, WorkerType workerType, DataType dataType) {
         this.entityManager = entityManager;
@@ -81,28 +68,34 @@ public class NogoWorker extends Thread {
         _status = THREADFAIL;
     }
 
-    public void setFirstPos(BoundingBoxPoint firstPos) {
-        this.firstPos = firstPos;
-    }
-
-    public void setSecondPos(BoundingBoxPoint secondPos) {
-        this.secondPos = secondPos;
+    /**
+     * Data source the depth data is streamed from
+     */
+    public void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
     }
 
-    public void setDraught(double draught) {
-        this.draught = draught;
+    /**
+     * Time in millis since the epoch after which the result is no longer
+     * needed, used as timeout for the queries
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
     }
 
-    public List<DepthDenmark> getDepthDatabaseResult() {
-        return depthDatabaseResult;
+    public void setFirstPos(BoundingBoxPoint firstPos) {
+        this.firstPos = firstPos;
     }
 
-    public List<TideDenmark> getTideDatabaseResult() {
-        return tideDatabaseResult;
+    public void setSecondPos(BoundingBoxPoint secondPos) {
+        this.secondPos = secondPos;
     }
 
-    public double getMaxDepth() {
-        return maxDepth;
+    /**
+     * @return the depth data as a grid over the box
+     */
+    public ArrayDepthGrid getDepthGrid() {
+        return depthGrid;
     }
 
     public int status() {
@@ -121,6 +114,12 @@ public class NogoWorker extends Thread {
         return this.point;
     }
 
+    private void applyDeadline(Query query) {
+        if (deadline > 0) {
+            query.setHint("javax.persistence.query.timeout", (int) Math.max(1, deadline - System.currentTimeMillis()));
+        }
+    }
+
     public void run() {
         // System.out.print("Thread " + getName() + ": Entered\n");
         // System.out.print("Thread " + getName() + ": Working\n");
@@ -133,35 +132,13 @@ public class NogoWorker extends Thread {
             }
         }
 
-        if (workerType == WorkerType.TIDEPOINT) {
-            // System.out.println("Thread " + getName() + " i'm a tidePoint worker");
-            if (pos != null) {
-                point = getAreaTideDenmark();
-            }
-        }
-
-        if (workerType == WorkerType.MAXTIDE) {
-            // System.out.println("Thread " + getName() + " i'm a maxTide worker");
-            maxDepth = maxTideDepth();
-        }
-
         if (workerType == WorkerType.DEPTHDATA) {
             // System.out.println("Thread " + getName() + " i'm a depthData worker");
             if (firstPos != null && secondPos != null) {
-                depthDatabaseResult = getNogoArea(firstPos, secondPos, draught);
-            } else {
-                depthDatabaseResult = null;
+                depthGrid = getNogoGrid(firstPos, secondPos);
             }
         }
 
-        if (workerType == WorkerType.TIDEDATA) {
-            // System.out.println("Thread " + getName() + " i'm a tideData worker");
-            if (firstPos != null && secondPos != null) {
-                tideDatabaseResult = getTideArea(firstPos, secondPos);
-            }
-
-        }
-
         // System.out.print("Thread " + getName() + ": Done with work\n");
         _status = THREADPASS;
     }
@@ -212,6 +189,8 @@ public class NogoWorker extends Thread {
             }
         }
 
+        applyDeadline(query);
+
         List<Object[]> lines = query.getResultList();
 
 //        System.out.println("How many possible point matches did we get: " + lines.size());
@@ -222,6 +201,8 @@ public class NogoWorker extends Thread {
             query.setParameter("lon1", pos.getLongitude());
             query.setParameter("lon1range", pos.getLongitude() + 0.001);
 
+            applyDeadline(query);
+
             lines = query.getResultList();
         }
 
@@ -256,226 +237,79 @@ public class NogoWorker extends Thread {
         return null;
     }
 
-    @SuppressWarnings("unchecked")
-    public BoundingBoxPoint getAreaTideDenmark() {
-
-        // GeoLocation pos1 = new GeoLocation(lat, lon);
-
-        Query query = entityManager.createQuery("SELECT DISTINCT td.n, td.m, td.lat, td.lon " + "FROM TideDenmark td "
-                + "where td.lat between :lat1 AND :lat1range " + "AND " + "td.lon between :lon1 AND :lon1range");
-
-        query.setParameter("lat1", pos.getLatitude());
-        query.setParameter("lat1range", pos.getLatitude() + 0.01);
-
-        query.setParameter("lon1", pos.getLongitude());
-        query.setParameter("lon1range", pos.getLongitude() + 0.01);
-
-        List<Object[]> lines = query.getResultList();
-
-        if (lines.size() != 0) {
-            double distance = 9999999;
-
-            Object[] bestMatch = null;
-
-            for (Object[] objects : lines) {
-                // Minimum distance
-                GeoLocation pos = new GeoLocation((Double) objects[2], (Double) objects[3]);
-                double distancePoint = pos.getGeodesicDistance(pos);
-                // System.out.println(distancePoint + " for " + (Integer)
-                // objects[0] + " , " + (Integer) objects[1] + " at " + pos);
-                if (distancePoint < distance) {
-                    distance = distancePoint;
-                    bestMatch = objects;
+    /**
+     * Read the depth of a box of cells into a grid. Only n, m and depth are
+     * selected and the rows are streamed from the driver straight into the
+     * float array of the grid, so no entities or row objects are held
+     * however large the box is. The coordinates are taken from the two
+     * corner cells and interpolated in between.
+     */
+    public ArrayDepthGrid getNogoGrid(BoundingBoxPoint firstPos, BoundingBoxPoint secondPos) {
+        int n1 = Math.min(firstPos.getN(), secondPos.getN());
+        int n2 = Math.max(firstPos.getN(), secondPos.getN());
+        int m1 = Math.min(firstPos.getM(), secondPos.getM());
+        int m2 = Math.max(firstPos.getM(), secondPos.getM());
+        ArrayDepthGrid grid = new ArrayDepthGrid(n1, n2, m1, m2);
+        String table = dataType.getDepthTable();
+
+        try {
+            Connection conn = dataSource.getConnection();
+            try {
+                PreparedStatement stmt = conn.prepareStatement("SELECT n, m, lat, lon FROM " + table
+                        + " WHERE (n = ? AND m = ?) OR (n = ? AND m = ?)");
+                try {
+                    stmt.setInt(1, firstPos.getN());
+                    stmt.setInt(2, firstPos.getM());
+                    stmt.setInt(3, secondPos.getN());
+                    stmt.setInt(4, secondPos.getM());
+                    applyDeadline(stmt);
+                    ResultSet rs = stmt.executeQuery();
+                    while (rs.next()) {
+                        grid.setCoordinates(rs.getInt(1), rs.getInt(2), rs.getDouble(3), rs.getDouble(4));
+                    }
+                    rs.close();
+                } finally {
+                    stmt.close();
                 }
-            }
-            // System.out.println("The point we're looking for is at " +
-            // bestMatch[0] +" , " + bestMatch[1]);
-            BoundingBoxPoint point = new BoundingBoxPoint((Integer) bestMatch[0], (Integer) bestMatch[1]);
-
-            return point;
 
-        }
-        return null;
-    }
-
-    public double maxTideDepth() {
-
-        Double maxDepth = 0.0;
-
-        Query query = entityManager.createQuery("SELECT max(td.depth) " + "FROM TideDenmark td ");
-
-        Object queryResult = query.getSingleResult();
-
-        if (queryResult != null) {
-            maxDepth = (Double) queryResult;
-            // System.out.println("Max depth is now: " + maxDepth);
-        }
-
-        return maxDepth;
-    }
-
-    @SuppressWarnings("unchecked")
-    public List<DepthDenmark> getNogoArea(BoundingBoxPoint firstPos, BoundingBoxPoint secondPos, double draught) {
-
-        int n1 = 0;
-        int m1 = 0;
-
-        int n2 = 0;
-        int m2 = 0;
-
-        if (firstPos.getN() < secondPos.getN()) {
-            // firstPos n is at the top
-            n1 = firstPos.getN();
-            n2 = secondPos.getN();
-        } else {
-            n1 = secondPos.getN();
-            n2 = firstPos.getN();
-        }
-
-        if (firstPos.getM() < secondPos.getM()) {
-            // firstPos m is to the far left
-            m1 = firstPos.getM();
-            m2 = secondPos.getM();
-        } else {
-            m1 = secondPos.getM();
-            m2 = firstPos.getM();
-        }
-
-        Query query = null;
-
-        if (dataType == DataType.SYDKATTEGAT) {
-            query = entityManager.createQuery("SELECT dd " + "FROM DepthDenmark dd " + "WHERE dd.n between :n1 AND :n2 "
-                    + "AND dd.m between :m1 AND :m2 " + "ORDER BY M, N");
-        }
-
-        if (dataType == DataType.NORDKATTEGAT) {
-            query = entityManager.createQuery("SELECT dd " + "FROM DepthDenmarkNord dd " + "WHERE dd.n between :n1 AND :n2 "
-                    + "AND dd.m between :m1 AND :m2 " + "ORDER BY M, N");
-        }
-
-        if (dataType == DataType.SF_BAY) {
-            query = entityManager.createQuery("SELECT dd " + "FROM sfBay dd " + "WHERE dd.n between :n1 AND :n2 "
-                    + "AND dd.m between :m1 AND :m2 " + "ORDER BY M, N");
-        }
-        if (dataType == DataType.HUMBER) {
-            query = entityManager.createQuery("SELECT dd " + "FROM Humber dd " + "WHERE dd.n between :n1 AND :n2 "
-                    + "AND dd.m between :m1 AND :m2 " + "ORDER BY M, N");
-        }
-
-        query.setParameter("n1", n1);
-        query.setParameter("n2", n2);
-        query.setParameter("m1", m1);
-        query.setParameter("m2", m2);
-        // query.setParameter("d1", draught);
-
-        List<DepthDenmark> result = null;
-
-        if (dataType == DataType.SYDKATTEGAT) {
-            result = query.getResultList();
-        }
-
-        if (dataType == DataType.NORDKATTEGAT) {
-            List<DepthDenmarkNord> resultNord = query.getResultList();
-            result = new ArrayList<DepthDenmark>();
-
-            for (int i = 0; i < resultNord.size(); i++) {
-                DepthDenmarkNord currentNord = resultNord.get(i);
-                DepthDenmark converted = new DepthDenmark();
-                converted.setId(currentNord.getId());
-                converted.setLat(currentNord.getLat());
-                converted.setLon(currentNord.getLon());
-                converted.setN(currentNord.getN());
-                converted.setM(currentNord.getM());
-                converted.setDepth(currentNord.getDepth());
-                result.add(converted);
-            }
-        }
-
-        if (dataType == DataType.SF_BAY) {
-            List<sfBay> resultSf = query.getResultList();
-            result = new ArrayList<DepthDenmark>();
-
-            for (int i = 0; i < resultSf.size(); i++) {
-                sfBay currentSf = resultSf.get(i);
-                DepthDenmark converted = new DepthDenmark();
-                converted.setId(currentSf.getId());
-                converted.setLat(currentSf.getLat());
-                converted.setLon(currentSf.getLon());
-                converted.setN(currentSf.getN());
-                converted.setM(currentSf.getM());
-                converted.setDepth(currentSf.getDepth());
-                result.add(converted);
-            }
-        }
-
-        if (dataType == DataType.HUMBER) {
-            System.out.println("Retrieving Humber");
-            List<Humber> resultHumber = query.getResultList();
-            result = new ArrayList<DepthDenmark>();
-            System.out.println("Retrieving Humber " + result.size());
-            for (int i = 0; i < resultHumber.size(); i++) {
-                Humber currentSf = resultHumber.get(i);
-                DepthDenmark converted = new DepthDenmark();
-                converted.setId(currentSf.getId());
-                converted.setLat(currentSf.getLat());
-                converted.setLon(currentSf.getLon());
-                converted.setN(currentSf.getN());
-                converted.setM(currentSf.getM());
-                converted.setDepth(currentSf.getDepth());
-                result.add(converted);
+                stmt = conn.prepareStatement("SELECT n, m, depth FROM " + table
+                        + " WHERE n BETWEEN ? AND ? AND m BETWEEN ? AND ?", ResultSet.TYPE_FORWARD_ONLY,
+                        ResultSet.CONCUR_READ_ONLY);
+                try {
+                    // Stream the rows instead of buffering the result in the
+                    // driver. A fetch size of Integer.MIN_VALUE on a forward
+                    // only, read only statement is how MySQL Connector/J is
+                    // told to stream, other drivers may reject it
+                    stmt.setFetchSize(Integer.MIN_VALUE);
+                    stmt.setInt(1, n1);
+                    stmt.setInt(2, n2);
+                    stmt.setInt(3, m1);
+                    stmt.setInt(4, m2);
+                    applyDeadline(stmt);
+                    ResultSet rs = stmt.executeQuery();
+                    while (rs.next()) {
+                        float depth = rs.getFloat(3);
+                        grid.setDepth(rs.getInt(1), rs.getInt(2), rs.wasNull() ? Float.NaN : depth);
+                    }
+                    rs.close();
+                } finally {
+                    stmt.close();
+                }
+            } finally {
+                conn.close();
             }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to read depth from " + table, e);
         }
 
-        // List<DepthDenmarkNord>
-
-//        System.out.println("Results generated");
-        return result;
+        grid.fillCoordinates();
+        return grid;
     }
 
-    @SuppressWarnings("unchecked")
-    public List<TideDenmark> getTideArea(BoundingBoxPoint firstPos, BoundingBoxPoint secondPos) {
-
-        int n1 = 0;
-        int m1 = 0;
-
-        int n2 = 0;
-        int m2 = 0;
-
-        if (firstPos.getN() < secondPos.getN()) {
-            // firstPos n is at the top
-            n1 = firstPos.getN();
-            n2 = secondPos.getN();
-        } else {
-            n1 = secondPos.getN();
-            n2 = firstPos.getN();
+    private void applyDeadline(PreparedStatement stmt) throws SQLException {
+        if (deadline > 0) {
+            stmt.setQueryTimeout((int) Math.max(1, (deadline - System.currentTimeMillis() + 999) / 1000));
         }
-
-        if (firstPos.getM() < secondPos.getM()) {
-            // firstPos m is to the far left
-            m1 = firstPos.getM();
-            m2 = secondPos.getM();
-        } else {
-            m1 = secondPos.getM();
-            m2 = firstPos.getM();
-        }
-
-        Query query = entityManager.createQuery("SELECT td " + "FROM TideDenmark td " + "WHERE td.n between :n1 AND :n2 "
-                + "AND td.m between :m1 AND :m2 "
-                // + "AND td.depth is NOT NULL "
-                // +
-                // "AND td.time between '2012-01-05 22:00:00'  and '2012-01-05 23:00:00' "
-                + "AND td.time between :t1  and :t2 " + "ORDER BY M, N");
-
-        query.setParameter("n1", n1);
-        query.setParameter("n2", n2);
-        query.setParameter("m1", m1);
-        query.setParameter("m2", m2);
-        query.setParameter("t1", timeStart);
-        query.setParameter("t2", timeEnd);
-
-        List<TideDenmark> result = query.getResultList();
-
-        return result;
     }
 
 }
@@ -0,0 +1,512 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merges the horizontal runs of no go cells into rectilinear outlines along
+ * the cell edges, so runs stacked on top of each other become one polygon
+ * instead of a rectangle each.
+ *
+ * Corners are addressed on the lattice of cell edges, corner (x, y) being the
+ * lower left corner of cell (x, y). Where two no go cells only touch at a
+ * corner the outline turns towards the cell it came along, so the cells end
+ * up in separate outlines.
+ *
+ * Rings are returned in (n, m) coordinates with the no go area on the left,
+ * so outer rings run counter clockwise and holes clockwise, as from
+ * {@link MarchingSquares}.
+ */
+class RunOutline {
+
+	private static final int UP = 0;
+	private static final int DOWN = 1;
+	private static final int EAST = 2;
+	private static final int WEST = 3;
+
+	/**
+	 * m, first n and last n of each run, ordered by m and n
+	 */
+	private final int[] runs;
+	private final int count;
+
+	/**
+	 * End x of the horizontal edges by their start corner
+	 */
+	private final Map<Long, Integer> east = new HashMap<Long, Integer>();
+	private final Map<Long, Integer> west = new HashMap<Long, Integer>();
+
+	/**
+	 * Start corners of the vertical edges
+	 */
+	private final Set<Long> up = new HashSet<Long>();
+	private final Set<Long> down = new HashSet<Long>();
+
+	/**
+	 * @param runs
+	 *            m, first n and last n of each run, ordered by m and n
+	 * @param count
+	 *            number of runs
+	 */
+	RunOutline(int[] runs, int count) {
+		this.runs = runs;
+		this.count = count;
+	}
+
+	/**
+	 * Trace the outlines of the runs
+	 *
+	 * @return rings as n, m pairs, without repeating the first point
+	 */
+	List<double[]> trace() {
+		int previousStart = 0;
+		int previousEnd = 0;
+		int previousM = Integer.MIN_VALUE;
+
+		int start = 0;
+		while (start < count) {
+			int m = runs[start * 3];
+			int end = start;
+			while (end < count && runs[end * 3] == m) {
+				end++;
+			}
+
+			if (previousM != m - 1) {
+				// The row below is empty, and so is the row above the previous
+				horizontalEdges(previousStart, previousEnd, end, end, previousM + 1);
+				previousStart = start;
+				previousEnd = start;
+			}
+			horizontalEdges(previousStart, previousEnd, start, end, m);
+
+			for (int r = start; r < end; r++) {
+				down.add(key(runs[r * 3 + 1], m + 1));
+				up.add(key(runs[r * 3 + 2] + 1, m));
+			}
+
+			previousStart = start;
+			previousEnd = end;
+			previousM = m;
+			start = end;
+		}
+		horizontalEdges(previousStart, previousEnd, count, count, previousM + 1);
+
+		List<double[]> rings = new ArrayList<double[]>();
+		for (int r = 0; r < count; r++) {
+			int x = runs[r * 3 + 2] + 1;
+			int y = runs[r * 3];
+			if (up.remove(key(x, y))) {
+				rings.add(walk(x, y));
+			}
+		}
+		return rings;
+	}
+
+	/**
+	 * Add the edges at height y between the runs below to belowEnd of the
+	 * lower row and above to aboveEnd of the upper row. The bottom of the
+	 * upper cells is walked east and the top of the lower cells west.
+	 */
+	private void horizontalEdges(int below, int belowEnd, int above, int aboveEnd, int y) {
+		List<int[]> bottoms = subtract(above, aboveEnd, below, belowEnd);
+		for (int[] edge : bottoms) {
+			east.put(key(edge[0], y), edge[1] + 1);
+		}
+		List<int[]> tops = subtract(below, belowEnd, above, aboveEnd);
+		for (int[] edge : tops) {
+			west.put(key(edge[1] + 1, y), edge[0]);
+		}
+	}
+
+	/**
+	 * The n intervals of the runs a to aEnd not covered by the runs b to bEnd
+	 */
+	private List<int[]> subtract(int a, int aEnd, int b, int bEnd) {
+		List<int[]> result = new ArrayList<int[]>();
+		for (int i = a; i < aEnd; i++) {
+			int from = runs[i * 3 + 1];
+			int to = runs[i * 3 + 2];
+			while (b < bEnd && runs[b * 3 + 2] < from) {
+				b++;
+			}
+			int j = b;
+			while (from <= to) {
+				if (j == bEnd || runs[j * 3 + 1] > to) {
+					result.add(new int[] { from, to });
+					break;
+				}
+				if (runs[j * 3 + 1] > from) {
+					result.add(new int[] { from, runs[j * 3 + 1] - 1 });
+				}
+				from = Math.max(from, runs[j * 3 + 2] + 1);
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Walk a ring from the start of an up edge, always preferring the left
+	 * turn, until the start edge is reached again. The start edge must be the
+	 * lowest of the up edges above each other, so the ring turns there.
+	 */
+	private double[] walk(int startX, int startY) {
+		List<Integer> corners = new ArrayList<Integer>();
+		corners.add(startX);
+		corners.add(startY);
+		int x = startX;
+		int y = startY;
+		int dir = UP;
+
+		while (true) {
+			switch (dir) {
+			case UP:
+				y++;
+				break;
+			case DOWN:
+				y--;
+				break;
+			case EAST:
+				x = east.remove(key(x, y));
+				break;
+			default:
+				x = west.remove(key(x, y));
+				break;
+			}
+
+			long corner = key(x, y);
+			int next;
+			if (dir == UP || dir == DOWN) {
+				// Vertical edges of runs with the same end continue straight,
+				// horizontal edges never do as runs are joined
+				int left = dir == UP ? WEST : EAST;
+				int right = dir == UP ? EAST : WEST;
+				if ((left == WEST ? west : east).containsKey(corner)) {
+					next = left;
+				} else if ((dir == UP ? up : down).remove(corner)) {
+					next = dir;
+				} else {
+					next = right;
+				}
+			} else {
+				int left = dir == EAST ? UP : DOWN;
+				int right = dir == EAST ? DOWN : UP;
+				if (x == startX && y == startY && (left == UP || !down.contains(corner))) {
+					break;
+				}
+				next = (left == UP ? up : down).remove(corner) ? left : right;
+				if (next == right) {
+					(right == UP ? up : down).remove(corner);
+				}
+			}
+
+			if (next != dir) {
+				corners.add(x);
+				corners.add(y);
+			}
+			dir = next;
+		}
+
+		double[] ring = new double[corners.size()];
+		for (int k = 0; k < ring.length; k++) {
+			ring[k] = corners.get(k) - 0.5;
+		}
+		return ring;
+	}
+
+	/**
+	 * Split runs into the groups of runs joined by shared edges. Each group is
+	 * traced into its outline and holes independently of the others, as runs
+	 * only touching at a corner are never in the same outline.
+	 *
+	 * @param runs
+	 *            m, first n and last n of each run, ordered by m and n
+	 * @return the runs of each group, ordered by m and n
+	 */
+	static List<int[]> components(int[] runs) {
+		int count = runs.length / 3;
+		int[] parent = new int[count];
+		for (int r = 0; r < count; r++) {
+			parent[r] = r;
+		}
+
+		int previous = 0;
+		int start = 0;
+		while (start < count) {
+			int m = runs[start * 3];
+			int end = start;
+			while (end < count && runs[end * 3] == m) {
+				end++;
+			}
+			if (start > 0 && runs[previous * 3] == m - 1) {
+				int b = previous;
+				for (int a = start; a < end; a++) {
+					while (b < start && runs[b * 3 + 2] < runs[a * 3 + 1]) {
+						b++;
+					}
+					for (int k = b; k < start && runs[k * 3 + 1] <= runs[a * 3 + 2]; k++) {
+						union(parent, a, k);
+					}
+				}
+			}
+			previous = start;
+			start = end;
+		}
+
+		// Groups in the order of their first run
+		int[] group = new int[count];
+		int[] sizes = new int[count];
+		int groups = 0;
+		for (int r = 0; r < count; r++) {
+			int root = find(parent, r);
+			group[r] = root == r ? groups++ : group[root];
+			sizes[group[r]]++;
+		}
+		List<int[]> result = new ArrayList<int[]>(groups);
+		for (int g = 0; g < groups; g++) {
+			result.add(new int[sizes[g] * 3]);
+		}
+		int[] filled = new int[groups];
+		for (int r = 0; r < count; r++) {
+			int[] target = result.get(group[r]);
+			System.arraycopy(runs, r * 3, target, filled[group[r]]++ * 3, 3);
+		}
+		return result;
+	}
+
+	/**
+	 * Whether the chord from point first to point last, index size being the
+	 * first point again, crosses an edge of the ring outside the points it
+	 * replaces
+	 */
+	private static boolean crosses(double[] ring, int size, int first, int last) {
+		double an = ring[first * 2];
+		double am = ring[first * 2 + 1];
+		double bn = ring[(last % size) * 2];
+		double bm = ring[(last % size) * 2 + 1];
+		double minN = Math.min(an, bn);
+		double maxN = Math.max(an, bn);
+		double minM = Math.min(am, bm);
+		double maxM = Math.max(am, bm);
+		for (int k = last; k < first + size; k++) {
+			int i = k % size;
+			int j = (k + 1) % size;
+			double cn = ring[i * 2];
+			double cm = ring[i * 2 + 1];
+			double dn = ring[j * 2];
+			double dm = ring[j * 2 + 1];
+			if (Math.max(cn, dn) < minN || Math.min(cn, dn) > maxN || Math.max(cm, dm) < minM
+					|| Math.min(cm, dm) > maxM) {
+				continue;
+			}
+			double c = side(an, am, bn, bm, cn, cm);
+			double d = side(an, am, bn, bm, dn, dm);
+			double a = side(cn, cm, dn, dm, an, am);
+			double b = side(cn, cm, dn, dm, bn, bm);
+			// Edges sharing an end with the chord only cross it if their other
+			// end lies on it
+			boolean touchesA = i == first || j == first;
+			boolean touchesB = i == last % size || j == last % size;
+			if (touchesA && touchesB) {
+				continue;
+			}
+			if (touchesA || touchesB) {
+				boolean shared = i == first || i == last % size;
+				double pn = shared ? dn : cn;
+				double pm = shared ? dm : cm;
+				if ((shared ? d : c) == 0 && pn >= minN && pn <= maxN && pm >= minM && pm <= maxM) {
+					return true;
+				}
+				continue;
+			}
+			if (c * d <= 0 && a * b <= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Twice the signed area of the triangle a, b, p, positive if p is left of
+	 * the line from a to b
+	 */
+	private static double side(double an, double am, double bn, double bm, double pn, double pm) {
+		return (bn - an) * (pm - am) - (bm - am) * (pn - an);
+	}
+
+	/**
+	 * Whether every point inside a ring is within a distance of the ring,
+	 * with the cells scaled as for simplify
+	 */
+	static boolean within(double[] ring, double distance, double scaleN, double scaleM) {
+		double minN = Double.MAX_VALUE;
+		double maxN = -Double.MAX_VALUE;
+		double minM = Double.MAX_VALUE;
+		double maxM = -Double.MAX_VALUE;
+		for (int k = 0; k < ring.length; k += 2) {
+			minN = Math.min(minN, ring[k]);
+			maxN = Math.max(maxN, ring[k]);
+			minM = Math.min(minM, ring[k + 1]);
+			maxM = Math.max(maxM, ring[k + 1]);
+		}
+		return Math.min((maxN - minN) * scaleN, (maxM - minM) * scaleM) <= 2 * distance;
+	}
+
+	private static int find(int[] parent, int r) {
+		while (parent[r] != r) {
+			parent[r] = parent[parent[r]];
+			r = parent[r];
+		}
+		return r;
+	}
+
+	/**
+	 * Join two groups under the lower of their roots, so the root of a group
+	 * is its first run
+	 */
+	private static void union(int[] parent, int a, int b) {
+		int ra = find(parent, a);
+		int rb = find(parent, b);
+		if (ra < rb) {
+			parent[rb] = ra;
+		} else if (rb < ra) {
+			parent[ra] = rb;
+		}
+	}
+
+	private static long key(int x, int y) {
+		return ((long) x << 32) | (y & 0xffffffffL);
+	}
+
+	/**
+	 * Simplify a ring by Douglas-Peucker. The ring is split at its first
+	 * point and the point farthest from it, and both halves are simplified.
+	 * Points are only dropped when the simplified ring passes on their outer
+	 * side, to the right, so the no go area can grow but never shrink.
+	 * Distances are measured with the cells scaled to their size on the
+	 * ground, so the tolerance is the same in both directions.
+	 *
+	 * @param ring
+	 *            n, m pairs with the no go area on the left
+	 * @param tolerance
+	 *            largest distance of a dropped point from the simplified ring
+	 * @param scaleN
+	 *            width of a cell along n in the unit of the tolerance
+	 * @param scaleM
+	 *            height of a cell along m in the unit of the tolerance
+	 * @return the simplified ring, or the ring itself if it would get less
+	 *         than three points
+	 */
+	static double[] simplify(double[] ring, double tolerance, double scaleN, double scaleM) {
+		int size = ring.length / 2;
+		if (size <= 3 || tolerance <= 0) {
+			return ring;
+		}
+
+		double[] scaled = new double[ring.length];
+		for (int k = 0; k < ring.length; k += 2) {
+			scaled[k] = ring[k] * scaleN;
+			scaled[k + 1] = ring[k + 1] * scaleM;
+		}
+
+		int far = 0;
+		double farDistance = -1;
+		for (int k = 1; k < size; k++) {
+			double dn = scaled[k * 2] - scaled[0];
+			double dm = scaled[k * 2 + 1] - scaled[1];
+			double distance = dn * dn + dm * dm;
+			if (distance > farDistance) {
+				far = k;
+				farDistance = distance;
+			}
+		}
+
+		boolean[] keep = new boolean[size + 1];
+		keep[0] = true;
+		keep[far] = true;
+		keep[size] = true;
+		simplify(scaled, size, 0, far, tolerance, keep);
+		simplify(scaled, size, far, size, tolerance, keep);
+
+		int kept = 0;
+		for (int k = 0; k < size; k++) {
+			if (keep[k]) {
+				kept++;
+			}
+		}
+		if (kept < 3) {
+			return ring;
+		}
+
+		double[] result = new double[kept * 2];
+		int i = 0;
+		for (int k = 0; k < size; k++) {
+			if (keep[k]) {
+				result[i++] = ring[k * 2];
+				result[i++] = ring[k * 2 + 1];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Mark the points to keep between first and last, index size being the
+	 * first point again
+	 */
+	private static void simplify(double[] ring, int size, int first, int last, double tolerance, boolean[] keep) {
+		if (last - first < 2) {
+			return;
+		}
+		double an = ring[first * 2];
+		double am = ring[first * 2 + 1];
+		double bn = ring[(last % size) * 2];
+		double bm = ring[(last % size) * 2 + 1];
+		double dn = bn - an;
+		double dm = bm - am;
+		double length = Math.sqrt(dn * dn + dm * dm);
+
+		int worst = -1;
+		double worstDistance = tolerance;
+		int farthest = first + 1;
+		double farthestDistance = -1;
+		for (int k = first + 1; k < last; k++) {
+			double pn = ring[k * 2] - an;
+			double pm = ring[k * 2 + 1] - am;
+			double distance;
+			if (length == 0) {
+				distance = Math.sqrt(pn * pn + pm * pm);
+			} else {
+				// Points right of the chord would be cut off the no go area
+				distance = (dn * pm - dm * pn) / length;
+				if (distance < -1e-9) {
+					distance = tolerance - distance;
+				}
+			}
+			if (distance > worstDistance) {
+				worst = k;
+				worstDistance = distance;
+			}
+			if (distance > farthestDistance) {
+				farthest = k;
+				farthestDistance = distance;
+			}
+		}
+
+		// A chord across another part of the ring would fold the outline over
+		// itself, it is split like a chord too far from the points it drops
+		if (worst == -1 && crosses(ring, size, first, last)) {
+			worst = farthest;
+		}
+
+		if (worst != -1) {
+			keep[worst] = true;
+			simplify(ring, size, first, worst, tolerance, keep);
+			simplify(ring, size, worst, last, tolerance, keep);
+		}
+	}
+
+}
@@ -0,0 +1,472 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hourly sea levels of the tide table held off-heap in an (n, m, hour) cube.
+ * The hours of a cell are stored next to each other, so a time window of a
+ * cell is a contiguous slice and a single hour across cells is strided by the
+ * number of hours.
+ * 
+ * The hours are split into blocks of a day. For each hour the lowest level
+ * from the start of its block and to the end of its block is kept, and a
+ * sparse table over the minimums of the blocks. The lowest level of a cell
+ * over a window spanning blocks is then found with four lookups whatever the
+ * length of the window, a window inside a block that touches neither of its
+ * ends is scanned. This costs twice the levels plus log2(days) minimums a
+ * day.
+ * 
+ * A cube is loaded from the newest hours of the tide table, or mapped from a
+ * {@link TideCubeFile} written by the {@link NogoIngester}. The levels and
+ * each of the minimums are held in a single buffer, a cube they do not
+ * fit is refused.
+ */
+public class TideCube implements TideSource {
+
+	private static Logger LOG = Logger.getLogger(TideCube.class);
+
+	private static final long HOUR = 3600 * 1000L;
+
+	/**
+	 * Number of m rows fetched per query while loading
+	 */
+	private static final int LOAD_ROWS = 10;
+
+	/**
+	 * Number of hours covered by a block minimum
+	 */
+	private static final int BLOCK = 24;
+
+	private final int minN;
+	private final int minM;
+	private final int nCount;
+	private final int mCount;
+	private final int hours;
+	private final long startTime;
+
+	private final double[] lats;
+	private final double[] lons;
+
+	private GridDescriptor descriptor;
+
+	private final FloatBuffer levels;
+
+	/**
+	 * Lowest level of a cell from the start of the block of an hour up to the
+	 * hour, and from the hour to the end of its block, indexed as the levels
+	 */
+	private FloatBuffer prefixMin;
+	private FloatBuffer suffixMin;
+
+	/**
+	 * Minimum of the levels of blocks b to b + 2^k - 1 at
+	 * (k * cells + cell) * blocks + b, for k from 0 up to log2(blocks)
+	 */
+	private FloatBuffer blockMin;
+	private int blocks;
+	private int blockLevels;
+
+	/**
+	 * Time of the newest sample and the number of samples the cube was built
+	 * from, used to detect new tide data
+	 */
+	private final long lastTime;
+	private final long sampleCount;
+
+	TideCube(int minN, int maxN, int minM, int maxM, long startTime, long lastTime, long sampleCount) {
+		this.minN = minN;
+		this.minM = minM;
+		this.nCount = maxN - minN + 1;
+		this.mCount = maxM - minM + 1;
+		this.startTime = startTime;
+		this.lastTime = lastTime;
+		this.sampleCount = sampleCount;
+		long span = (lastTime - startTime) / HOUR + 1;
+		if (span > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Tide cube of " + span + " hours is too large");
+		}
+		this.hours = (int) span;
+
+		this.levels = ByteBuffer.allocateDirect(bufferSize("Tide levels", (long) nCount * mCount * hours))
+				.asFloatBuffer();
+		for (int i = 0; i < levels.capacity(); i++) {
+			levels.put(i, Float.NaN);
+		}
+
+		this.lats = new double[mCount];
+		this.lons = new double[nCount];
+		Arrays.fill(lats, Double.NaN);
+		Arrays.fill(lons, Double.NaN);
+	}
+
+	private TideCube(ByteBuffer header, double[] lats, double[] lons, FloatBuffer levels) {
+		this.minN = header.getInt(8);
+		this.minM = header.getInt(12);
+		this.nCount = header.getInt(16);
+		this.mCount = header.getInt(20);
+		this.hours = header.getInt(24);
+		this.startTime = header.getLong(32);
+		this.lastTime = header.getLong(40);
+		this.sampleCount = header.getLong(48);
+		this.lats = lats;
+		this.lons = lons;
+		this.levels = levels;
+	}
+
+	/**
+	 * Load the newest hours of the tide table into a new cube, up to the
+	 * newest sample
+	 *
+	 * @param entityManager
+	 * @param windowHours
+	 *            number of hours to load
+	 * @return the cube or null if the table is empty
+	 * @throws IllegalStateException
+	 *             if the cube is too large for a buffer
+	 */
+	@SuppressWarnings("unchecked")
+	public static TideCube load(EntityManager entityManager, int windowHours) {
+		Object[] stamp = (Object[]) entityManager.createQuery("SELECT max(td.time), count(td) FROM TideDenmark td")
+				.getSingleResult();
+		if (stamp == null || stamp[0] == null) {
+			return null;
+		}
+		long lastTime = ((Date) stamp[0]).getTime();
+		Timestamp from = new Timestamp(lastTime / HOUR * HOUR - (Math.max(1, windowHours) - 1) * HOUR);
+
+		Query boundsQuery = entityManager.createQuery(
+				"SELECT min(td.n), max(td.n), min(td.m), max(td.m), min(td.time), count(td) "
+						+ "FROM TideDenmark td WHERE td.time >= :from");
+		boundsQuery.setParameter("from", from);
+		Object[] bounds = (Object[]) boundsQuery.getSingleResult();
+
+		// The sample count of the whole table is kept to detect new data
+		int maxM = (Integer) bounds[3];
+		TideCube cube = new TideCube((Integer) bounds[0], (Integer) bounds[1], (Integer) bounds[2], maxM,
+				((Date) bounds[4]).getTime(), lastTime, (Long) stamp[1]);
+
+		Query query = entityManager.createQuery("SELECT td.n, td.m, td.lat, td.lon, td.time, td.depth "
+				+ "FROM TideDenmark td WHERE td.m between :m1 AND :m2 AND td.time >= :from");
+		query.setParameter("from", from);
+
+		for (int m = cube.minM; m <= maxM; m += LOAD_ROWS) {
+			query.setParameter("m1", m);
+			query.setParameter("m2", Math.min(m + LOAD_ROWS - 1, maxM));
+
+			List<Object[]> rows = query.getResultList();
+			for (Object[] row : rows) {
+				cube.set((Integer) row[0], (Integer) row[1], (Double) row[2], (Double) row[3], (Date) row[4],
+						(Double) row[5]);
+			}
+		}
+
+		cube.complete();
+
+		LOG.info("Loaded " + bounds[5] + " tide samples since " + from + " into a " + cube.nCount + "x"
+				+ cube.mCount + "x" + cube.hours + " cube");
+
+		return cube;
+	}
+
+	/**
+	 * Map a tide cube file into memory. The levels stay in the OS page cache,
+	 * the minimums are built off-heap as for a loaded cube.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 *             if the file can not be read or is not a valid tide cube file
+	 */
+	public static TideCube open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Tide cube file too large to map: " + file);
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buffer.capacity() < TideCubeFile.HEADER_SIZE || buffer.getInt(0) != TideCubeFile.MAGIC) {
+				throw new IOException("Not a tide cube file: " + file);
+			}
+			if (buffer.getInt(4) != TideCubeFile.VERSION) {
+				throw new IOException("Unsupported tide cube version " + buffer.getInt(4) + " in " + file);
+			}
+
+			int nCount = buffer.getInt(16);
+			int mCount = buffer.getInt(20);
+			int hours = buffer.getInt(24);
+			if (buffer.capacity() < TideCubeFile.size(nCount, mCount, hours)) {
+				throw new IOException("Truncated tide cube file: " + file);
+			}
+			if (blockMinLength(nCount * (long) mCount, hours) * 4 > Integer.MAX_VALUE
+					|| nCount * (long) mCount * hours * 4 > Integer.MAX_VALUE) {
+				throw new IOException("Minimums of " + file + " too large for a buffer");
+			}
+
+			double[] lats = new double[mCount];
+			double[] lons = new double[nCount];
+			for (int i = 0; i < mCount; i++) {
+				lats[i] = buffer.getDouble(TideCubeFile.HEADER_SIZE + i * 8);
+			}
+			for (int i = 0; i < nCount; i++) {
+				lons[i] = buffer.getDouble(TideCubeFile.HEADER_SIZE + (mCount + i) * 8);
+			}
+
+			buffer.position((int) TideCubeFile.levelsOffset(nCount, mCount));
+			TideCube cube = new TideCube(buffer, lats, lons, buffer.slice().asFloatBuffer());
+			cube.complete();
+
+			LOG.info("Mapped " + cube.sampleCount + " tide samples into a " + cube.nCount + "x" + cube.mCount + "x"
+					+ cube.hours + " cube from " + file);
+
+			return cube;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Check if the tide table has changed since this cube was loaded
+	 *
+	 * @param entityManager
+	 * @return
+	 */
+	public boolean isStale(EntityManager entityManager) {
+		Object[] stamp = (Object[]) entityManager.createQuery("SELECT max(td.time), count(td) FROM TideDenmark td")
+				.getSingleResult();
+		if (stamp == null || stamp[0] == null) {
+			return true;
+		}
+		return ((Date) stamp[0]).getTime() != lastTime || (Long) stamp[1] != sampleCount;
+	}
+
+	void set(int n, int m, double lat, double lon, Date time, Double level) {
+		int row = m - minM;
+		int col = n - minN;
+		int hour = (int) ((time.getTime() - startTime) / HOUR);
+		levels.put(index(row * (long) nCount + col, hour), level == null ? Float.NaN : level.floatValue());
+		lats[row] = lat;
+		lons[col] = lon;
+	}
+
+	/**
+	 * Index of an hour of a cell in the levels
+	 */
+	private int index(long cell, int hour) {
+		return (int) (cell * hours + hour);
+	}
+
+	/**
+	 * Size in bytes of a buffer of a cube holding length floats
+	 *
+	 * @throws IllegalStateException
+	 *             if the buffer would be larger than Integer.MAX_VALUE bytes
+	 */
+	private static int bufferSize(String name, long length) {
+		if (length * 4 > Integer.MAX_VALUE) {
+			throw new IllegalStateException(name + " of " + length * 4 + " bytes too large for a buffer");
+		}
+		return (int) length * 4;
+	}
+
+	/**
+	 * Number of entries of the sparse table of block minimums of a cube
+	 */
+	private static long blockMinLength(long cells, int hours) {
+		int blocks = (hours + BLOCK - 1) / BLOCK;
+		return cells * blocks * (32 - Integer.numberOfLeadingZeros(blocks));
+	}
+
+	/**
+	 * Finish a cube after all samples are set: fill in the positions of rows
+	 * and columns without samples, georeference the cube and build the
+	 * minimums
+	 */
+	void complete() {
+		ArrayDepthGrid.fill(lats);
+		ArrayDepthGrid.fill(lons);
+		descriptor = GridDescriptor.fromCorners(this);
+		buildBlockMin();
+	}
+
+	/**
+	 * Build the running minimums within the blocks and the sparse table of
+	 * block minimums from the levels
+	 */
+	void buildBlockMin() {
+		long cells = nCount * (long) mCount;
+		blocks = (hours + BLOCK - 1) / BLOCK;
+		blockLevels = 32 - Integer.numberOfLeadingZeros(blocks);
+		prefixMin = ByteBuffer.allocateDirect(Math.max(4, bufferSize("Tide prefix minimums", cells * hours)))
+				.asFloatBuffer();
+		suffixMin = ByteBuffer.allocateDirect(Math.max(4, bufferSize("Tide suffix minimums", cells * hours)))
+				.asFloatBuffer();
+		blockMin = ByteBuffer.allocateDirect(Math.max(4, bufferSize("Tide block minimums", blockMinLength(cells,
+				hours)))).asFloatBuffer();
+
+		for (long cell = 0; cell < cells; cell++) {
+			int base = index(cell, 0);
+			int target = (int) (cell * blocks);
+			for (int b = 0; b < blocks; b++) {
+				int start = b * BLOCK;
+				int end = Math.min(hours, start + BLOCK) - 1;
+				float lowest = Float.NaN;
+				for (int i = start; i <= end; i++) {
+					lowest = min(lowest, levels.get(base + i));
+					prefixMin.put(base + i, lowest);
+				}
+				lowest = Float.NaN;
+				for (int i = end; i >= start; i--) {
+					lowest = min(lowest, levels.get(base + i));
+					suffixMin.put(base + i, lowest);
+				}
+				blockMin.put(target + b, lowest);
+			}
+		}
+
+		for (int k = 1; k < blockLevels; k++) {
+			int half = 1 << (k - 1);
+			for (long cell = 0; cell < cells; cell++) {
+				int source = (int) (((k - 1) * cells + cell) * blocks);
+				int target = (int) ((k * cells + cell) * blocks);
+				for (int b = 0; b + (1 << k) <= blocks; b++) {
+					blockMin.put(target + b, min(blockMin.get(source + b), blockMin.get(source + b + half)));
+				}
+			}
+		}
+	}
+
+	@Override
+	public float getLowest(int n, int m, int first, int last) {
+		long cell = (m - minM) * (long) nCount + (n - minN);
+		int base = index(cell, 0);
+		int firstBlock = first / BLOCK;
+		int lastBlock = last / BLOCK;
+		if (firstBlock == lastBlock) {
+			if (first == firstBlock * BLOCK) {
+				return prefixMin.get(base + last);
+			}
+			if (last == Math.min(hours, (lastBlock + 1) * BLOCK) - 1) {
+				return suffixMin.get(base + first);
+			}
+			return scan(base, first, last);
+		}
+
+		float lowest = min(suffixMin.get(base + first), prefixMin.get(base + last));
+		if (lastBlock - firstBlock > 1) {
+			int from = firstBlock + 1;
+			int to = lastBlock - 1;
+			int k = 31 - Integer.numberOfLeadingZeros(to - from + 1);
+			int offset = (int) ((k * (long) nCount * mCount + cell) * blocks);
+			lowest = min(lowest, min(blockMin.get(offset + from), blockMin.get(offset + to - (1 << k) + 1)));
+		}
+		return lowest;
+	}
+
+	/**
+	 * Lowest level from hour first to hour last of the cell starting at base,
+	 * NaN if the span is empty or has no levels
+	 */
+	private float scan(int base, int first, int last) {
+		float lowest = Float.NaN;
+		for (int i = first; i <= last; i++) {
+			lowest = min(lowest, levels.get(base + i));
+		}
+		return lowest;
+	}
+
+	private static float min(float a, float b) {
+		if (Float.isNaN(a)) {
+			return b;
+		}
+		if (Float.isNaN(b)) {
+			return a;
+		}
+		return a < b ? a : b;
+	}
+
+	@Override
+	public TideWindow getWindow(int n1, int m1, int n2, int m2, Date start, Date end) {
+		int h1 = (int) Math.max(0, (start.getTime() - startTime) / HOUR);
+		int h2 = (int) Math.min(hours - 1, (end.getTime() - startTime) / HOUR);
+		if (h2 < h1) {
+			return null;
+		}
+
+		int nMin = Math.max(Math.min(n1, n2), minN);
+		int nMax = Math.min(Math.max(n1, n2), getMaxN());
+		int mMin = Math.max(Math.min(m1, m2), minM);
+		int mMax = Math.min(Math.max(m1, m2), getMaxM());
+		if (nMax < nMin || mMax < mMin) {
+			return null;
+		}
+
+		return new TideWindow(this, nMin, nMax, mMin, mMax, h1, h2);
+	}
+
+	@Override
+	public float getLevel(int n, int m, int hour) {
+		return levels.get(index((m - minM) * (long) nCount + (n - minN), hour));
+	}
+
+	@Override
+	public long getStartTime() {
+		return startTime;
+	}
+
+	@Override
+	public int getMinN() {
+		return minN;
+	}
+
+	@Override
+	public int getMaxN() {
+		return minN + nCount - 1;
+	}
+
+	@Override
+	public int getMinM() {
+		return minM;
+	}
+
+	@Override
+	public int getMaxM() {
+		return minM + mCount - 1;
+	}
+
+	public int getHours() {
+		return hours;
+	}
+
+	@Override
+	public double getLat(int n, int m) {
+		return lats[m - minM];
+	}
+
+	@Override
+	public double getLon(int n, int m) {
+		return lons[n - minN];
+	}
+
+	@Override
+	public GridDescriptor getDescriptor() {
+		return descriptor;
+	}
+
+}
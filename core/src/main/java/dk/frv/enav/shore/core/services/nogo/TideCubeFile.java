@@ -0,0 +1,72 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary file format for tide cubes. All values are big endian.
+ *
+ * <pre>
+ * offset  type      field
+ *  0      int       magic "TIDE"
+ *  4      int       version
+ *  8      int       min n
+ * 12      int       min m
+ * 16      int       n count
+ * 20      int       m count
+ * 24      int       hours
+ * 28      4 bytes   reserved
+ * 32      long      time of the first hour, millis since the epoch
+ * 40      long      time of the last sample
+ * 48      long      number of samples
+ * 56      8 bytes   reserved
+ * 64      double[]  latitude of each m row
+ *         double[]  longitude of each n column
+ *         float[]   levels, the hours of each cell in m rows of n count
+ *                   cells, NaN where there is no sample
+ * </pre>
+ */
+public final class TideCubeFile {
+
+	public static final int MAGIC = 0x54494445;
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 64;
+
+	public static final String EXTENSION = ".tide";
+
+	private TideCubeFile() {
+	}
+
+	/**
+	 * Offset of the levels in a file
+	 */
+	public static long levelsOffset(int nCount, int mCount) {
+		return HEADER_SIZE + (long) (mCount + nCount) * 8;
+	}
+
+	/**
+	 * Size of a file
+	 */
+	public static long size(int nCount, int mCount, int hours) {
+		return levelsOffset(nCount, mCount) + (long) nCount * mCount * hours * 4;
+	}
+
+	/**
+	 * Write the header at the start of a buffer
+	 */
+	public static void writeHeader(ByteBuffer buffer, int minN, int minM, int nCount, int mCount, int hours,
+			long startTime, long lastTime, long sampleCount) {
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putInt(8, minN);
+		buffer.putInt(12, minM);
+		buffer.putInt(16, nCount);
+		buffer.putInt(20, mCount);
+		buffer.putInt(24, hours);
+		buffer.putInt(28, 0);
+		buffer.putLong(32, startTime);
+		buffer.putLong(40, lastTime);
+		buffer.putLong(48, sampleCount);
+		buffer.putLong(56, 0);
+	}
+
+}
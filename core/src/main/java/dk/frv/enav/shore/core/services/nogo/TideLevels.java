@@ -0,0 +1,216 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+/**
+ * Lowest sea level in the time window at each depth cell of a box,
+ * interpolated bilinearly between the centers of the four tide cells around
+ * it. Tide cells without data count as level 0, and past the outer tide cell
+ * centers the level of the outer cells is held.
+ * 
+ * Whole rows are filled by blending the two tide rows around the depth row
+ * once per tide column and filling each stretch of depth cells between two
+ * tide columns in a plain loop over primitive arrays, which the JIT can
+ * unroll and vectorize.
+ */
+public class TideLevels {
+
+	private final int n1;
+	private final int m1;
+	private final int tideWidth;
+	private final float[] lowest;
+	private float min = Float.POSITIVE_INFINITY;
+	private float max = Float.NEGATIVE_INFINITY;
+
+	/**
+	 * Offset in lowest of the tide rows above and below each depth row, and
+	 * the weight of the row below
+	 */
+	private final int[] rowOffset0;
+	private final int[] rowOffset1;
+	private final float[] rowWeight;
+
+	/**
+	 * Tide columns left and right of each depth column, the weight of the
+	 * right column and the last depth column between the same tide columns
+	 */
+	private final int[] col0;
+	private final int[] col1;
+	private final float[] colWeight;
+	private final int[] stretchEnd;
+
+	/**
+	 * @param grid
+	 *            depth grid the box is in
+	 * @param n1
+	 * @param n2
+	 * @param m1
+	 * @param m2
+	 * @param tide
+	 */
+	public TideLevels(DepthGrid grid, int n1, int n2, int m1, int m2, TideWindow tide) {
+		this.n1 = n1;
+		this.m1 = m1;
+		this.tideWidth = tide.getMaxN() - tide.getMinN() + 1;
+
+		lowest = new float[tideWidth * (tide.getMaxM() - tide.getMinM() + 1)];
+		for (int tm = tide.getMinM(); tm <= tide.getMaxM(); tm++) {
+			for (int tn = tide.getMinN(); tn <= tide.getMaxN(); tn++) {
+				float level = tide.getLowest(tn, tm);
+				// No tide data, use the depth as it is
+				if (Float.isNaN(level)) {
+					level = 0;
+				}
+				lowest[(tm - tide.getMinM()) * tideWidth + tn - tide.getMinN()] = level;
+				min = Math.min(min, level);
+				max = Math.max(max, level);
+			}
+		}
+
+		int height = Math.max(0, m2 - m1 + 1);
+		rowOffset0 = new int[height];
+		rowOffset1 = new int[height];
+		rowWeight = new float[height];
+		int[] row = new int[2];
+		for (int j = 0; j < height; j++) {
+			rowWeight[j] = locate(tide.fractionalM(grid.getLat(n1, m1 + j)), tide.getMinM(), tide.getMaxM(), row);
+			rowOffset0[j] = row[0] * tideWidth;
+			rowOffset1[j] = row[1] * tideWidth;
+		}
+
+		int width = Math.max(0, n2 - n1 + 1);
+		col0 = new int[width];
+		col1 = new int[width];
+		colWeight = new float[width];
+		int[] col = new int[2];
+		for (int i = 0; i < width; i++) {
+			colWeight[i] = locate(tide.fractionalN(grid.getLon(n1 + i, m1)), tide.getMinN(), tide.getMaxN(), col);
+			col0[i] = col[0];
+			col1[i] = col[1];
+		}
+		stretchEnd = new int[width];
+		for (int i = width - 1; i >= 0; i--) {
+			stretchEnd[i] = i < width - 1 && col0[i + 1] == col0[i] && col1[i + 1] == col1[i] ? stretchEnd[i + 1]
+					: i;
+		}
+	}
+
+	/**
+	 * Find the tide cells on either side of a fractional coordinate, relative
+	 * to min, and the weight of the second
+	 */
+	private static float locate(double f, int min, int max, int[] cells) {
+		if (!(f > min)) {
+			cells[0] = 0;
+			cells[1] = 0;
+			return 0;
+		}
+		if (f >= max) {
+			cells[0] = max - min;
+			cells[1] = max - min;
+			return 0;
+		}
+		int first = (int) Math.floor(f);
+		cells[0] = first - min;
+		cells[1] = first + 1 - min;
+		return (float) (f - first);
+	}
+
+	/**
+	 * Lowest level at a depth cell in the box
+	 */
+	public float get(int n, int m) {
+		int j = m - m1;
+		int i = n - n1;
+		int offset0 = rowOffset0[j];
+		int offset1 = rowOffset1[j];
+		float weight = rowWeight[j];
+		float a = lowest[offset0 + col0[i]] + weight * (lowest[offset1 + col0[i]] - lowest[offset0 + col0[i]]);
+		float b = lowest[offset0 + col1[i]] + weight * (lowest[offset1 + col1[i]] - lowest[offset0 + col1[i]]);
+		return a + colWeight[i] * (b - a);
+	}
+
+	/**
+	 * Lowest levels at the depth cells from n1 to n2 of a row, equal to those
+	 * of {@link #get(int, int)}
+	 * 
+	 * @param m
+	 * @param from
+	 *            first n
+	 * @param to
+	 *            last n
+	 * @param levels
+	 *            array to put the levels in
+	 * @param offset
+	 *            index in levels of the level of the first n
+	 */
+	public void getRow(int m, int from, int to, float[] levels, int offset) {
+		int j = m - m1;
+		int offset0 = rowOffset0[j];
+		int offset1 = rowOffset1[j];
+		float weight = rowWeight[j];
+		int shift = offset - (from - n1);
+		int last = to - n1;
+		for (int i = from - n1; i <= last;) {
+			int end = Math.min(stretchEnd[i], last);
+			float a = lowest[offset0 + col0[i]] + weight * (lowest[offset1 + col0[i]] - lowest[offset0 + col0[i]]);
+			float b = lowest[offset0 + col1[i]] + weight * (lowest[offset1 + col1[i]] - lowest[offset0 + col1[i]]);
+			float step = b - a;
+			for (int k = i; k <= end; k++) {
+				levels[k + shift] = a + colWeight[k] * step;
+			}
+			i = end + 1;
+		}
+	}
+
+	/**
+	 * Range of the levels of the tide cells under the depth cells from n1 to
+	 * n2 and m1 to m2, in this and another tide of the same box and tide
+	 * cells, if any of them differ between the two
+	 * 
+	 * @param other
+	 * @param n1
+	 * @param n2
+	 * @param m1
+	 * @param m2
+	 * @param range
+	 *            set to the lowest and highest of the levels of both tides
+	 * @return false if no tide cell under the depth cells differs
+	 */
+	public boolean changeRange(TideLevels other, int n1, int n2, int m1, int m2, float[] range) {
+		// The tide cells around a depth cell move monotonically with n and m
+		int r1 = Math.min(rowOffset0[m1 - this.m1], rowOffset0[m2 - this.m1]) / tideWidth;
+		int r2 = Math.max(rowOffset1[m1 - this.m1], rowOffset1[m2 - this.m1]) / tideWidth;
+		int c1 = Math.min(col0[n1 - this.n1], col0[n2 - this.n1]);
+		int c2 = Math.max(col1[n1 - this.n1], col1[n2 - this.n1]);
+
+		float low = Float.POSITIVE_INFINITY;
+		float high = Float.NEGATIVE_INFINITY;
+		boolean changed = false;
+		for (int r = r1; r <= r2; r++) {
+			for (int c = c1; c <= c2; c++) {
+				float a = lowest[r * tideWidth + c];
+				float b = other.lowest[r * tideWidth + c];
+				changed |= a != b;
+				low = Math.min(low, Math.min(a, b));
+				high = Math.max(high, Math.max(a, b));
+			}
+		}
+		range[0] = low;
+		range[1] = high;
+		return changed;
+	}
+
+	/**
+	 * Lowest of the levels in the box
+	 */
+	public float getMin() {
+		return min;
+	}
+
+	/**
+	 * Highest of the levels in the box
+	 */
+	public float getMax() {
+		return max;
+	}
+
+}
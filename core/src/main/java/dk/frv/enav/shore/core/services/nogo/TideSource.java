@@ -0,0 +1,46 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+import java.util.Date;
+
+/**
+ * Sea levels of a grid of tide cells hour by hour, from the tide table or
+ * predicted. Hours are counted from a time of the source's own choosing, the
+ * same for all its windows.
+ */
+public interface TideSource extends GeoGrid {
+
+	/**
+	 * Get a view of the source for a box of cells and a time window
+	 *
+	 * @param n1
+	 * @param m1
+	 * @param n2
+	 * @param m2
+	 * @param start
+	 * @param end
+	 * @return the window or null if no part of the box or the time window is
+	 *         covered
+	 */
+	TideWindow getWindow(int n1, int m1, int n2, int m2, Date start, Date end);
+
+	/**
+	 * Sea level of a cell at an hour
+	 *
+	 * @return the level or NaN if there is none
+	 */
+	float getLevel(int n, int m, int hour);
+
+	/**
+	 * Lowest level of a cell from hour first to last, both included, ignoring
+	 * missing levels
+	 *
+	 * @return the level or NaN if there are no levels
+	 */
+	float getLowest(int n, int m, int first, int last);
+
+	/**
+	 * Time of hour 0
+	 */
+	long getStartTime();
+
+}
@@ -0,0 +1,101 @@
+package dk.frv.enav.shore.core.services.nogo;
+
+/**
+ * View of a {@link TideSource} limited to a box of cells and a window of
+ * hours. Nothing is copied, the levels are read from the source on demand.
+ */
+public class TideWindow {
+
+	private final TideSource source;
+	private final int minN;
+	private final int maxN;
+	private final int minM;
+	private final int maxM;
+	private final int firstHour;
+	private final int lastHour;
+
+	TideWindow(TideSource source, int minN, int maxN, int minM, int maxM, int firstHour, int lastHour) {
+		this.source = source;
+		this.minN = minN;
+		this.maxN = maxN;
+		this.minM = minM;
+		this.maxM = maxM;
+		this.firstHour = firstHour;
+		this.lastHour = lastHour;
+	}
+
+	/**
+	 * Sea level of a cell at an hour of the window
+	 *
+	 * @param n
+	 * @param m
+	 * @param hour
+	 *            hour relative to the start of the window
+	 * @return the level or NaN if there is no sample
+	 */
+	public float getLevel(int n, int m, int hour) {
+		return source.getLevel(n, m, firstHour + hour);
+	}
+
+	/**
+	 * Lowest sea level of a cell in the window, ignoring missing samples. For a
+	 * tide cube this takes constant time regardless of the length of the
+	 * window, predicted tide is evaluated hour by hour.
+	 *
+	 * @param n
+	 * @param m
+	 * @return the level or NaN if the cell has no samples in the window
+	 */
+	public float getLowest(int n, int m) {
+		return source.getLowest(n, m, firstHour, lastHour);
+	}
+
+	/**
+	 * Fractional m coordinate of a latitude, not clamped to the window
+	 */
+	public double fractionalM(double lat) {
+		return source.getDescriptor().fractionalM(lat);
+	}
+
+	/**
+	 * Fractional n coordinate of a longitude, not clamped to the window
+	 */
+	public double fractionalN(double lon) {
+		return source.getDescriptor().fractionalN(lon);
+	}
+
+	/**
+	 * Nearest m row of the window for a latitude
+	 */
+	public int toM(double lat) {
+		return Math.max(minM, Math.min(maxM, source.getDescriptor().toM(lat)));
+	}
+
+	/**
+	 * Nearest n column of the window for a longitude
+	 */
+	public int toN(double lon) {
+		return Math.max(minN, Math.min(maxN, source.getDescriptor().toN(lon)));
+	}
+
+	public int getMinN() {
+		return minN;
+	}
+
+	public int getMaxN() {
+		return maxN;
+	}
+
+	public int getMinM() {
+		return minM;
+	}
+
+	public int getMaxM() {
+		return maxM;
+	}
+
+	public int getHours() {
+		return lastHour - firstHour + 1;
+	}
+
+}
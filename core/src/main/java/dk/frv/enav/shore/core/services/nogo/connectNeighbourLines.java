@@ -1,7 +1,11 @@
 package dk.frv.enav.shore.core.services.nogo;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import dk.frv.enav.common.xml.nogo.types.NogoPoint;
 import dk.frv.enav.common.xml.nogo.types.NogoPolygon;
@@ -9,399 +13,202 @@ import dk.frv.enav.shore.core.domain.DepthDenmark;
 
 public class connectNeighbourLines {
 
-	static List<NogoPolygon> connectFindValidNeighbours(List<DepthDenmark> line, List<List<DepthDenmark>> nextLines) {
+	/**
+	 * Triangles connecting the ends of a run of no go cells to the ends of
+	 * the runs in the row below it. Runs are triples of m, first n and last n,
+	 * and the points are placed at the coordinates of the cells in the grid.
+	 * Single cell runs below get no triangles.
+	 * 
+	 * @param grid
+	 * @param runs
+	 * @param run
+	 *            index of the run to connect
+	 * @param from
+	 *            index of the first run of the row below
+	 * @param to
+	 *            index after the last run of the row below
+	 * @return
+	 */
+	static List<NogoPolygon> connectFindValidNeighbours(GeoGrid grid, int[] runs, int run, int from, int to) {
 
 		double latOffset = 0.00055504;
 		double lonOffset = 0.00055504;
-		
-		boolean singletonSelf = false;
-		
-		boolean singletonOther = false;
 
-		double selfLeft;
-		double selfRight;
+		int m = runs[run];
+		int selfLeft = runs[run + 1];
+		int selfRight = runs[run + 2];
+
+		double leftLat = grid.getLat(selfLeft, m);
+		double leftLon = grid.getLon(selfLeft, m);
+		double rightLat = grid.getLat(selfRight, m);
+		double rightLon = grid.getLon(selfRight, m);
 
-		double leftPoint;
-		double rightPoint;
-		
 		List<NogoPolygon> polygon = new ArrayList<NogoPolygon>();
 
-		if (line.size() == 1) {
-//			System.out.println("singleton shit");
-			singletonSelf = true;
-			selfLeft = line.get(0).getN();
-			selfRight = line.get(0).getN();
-			
-			
-		} else {
-			singletonSelf = false;
-			selfLeft = line.get(0).getN();
-			selfRight = line.get(1).getN();
-		}
-			
-//			System.out.println("left end point is: " + selfLeft + " lon is: " + line.get(0).getLon() + " lat is: "
-//					+ line.get(0).getLat());
-//			System.out.println("right end point is: " + selfRight + " lon is: " + line.get(1).getLon() + " lat is: "
-//					+ line.get(1).getLat());
-
-			// Look at each of the lines in the nextLines list
-			for (int i = 0; i < nextLines.size(); i++) {
-				// System.out.println("Investigating the line: " +
-				// nextLines.get(i));
-
-				if (nextLines.get(i).size() == 1) {
-//					System.out.println("singleton shit");
-					singletonOther = true;
-					leftPoint = nextLines.get(i).get(0).getN();
-					rightPoint = nextLines.get(i).get(0).getN();
-				} else {
-					singletonOther = false;
-					leftPoint = nextLines.get(i).get(0).getN();
-					rightPoint = nextLines.get(i).get(1).getN();
-//
-//					System.out.println("left end point investigated: " + leftPoint + " lon is: "
-//							+ nextLines.get(i).get(0).getLon() + " lat is: " + nextLines.get(i).get(0).getLat());
-//					System.out.println("right end point investigated: " + rightPoint + " lon is: "
-//							+ nextLines.get(i).get(1).getLon() + " lat is: " + nextLines.get(i).get(0).getLat());
-
-					// Outward left
-					if (leftPoint < selfLeft
-							&& ((rightPoint < selfRight && rightPoint >= selfLeft) || rightPoint >= selfLeft)) {
-						// System.out.println("Outward left neighbour");
-
-						NogoPolygon triangle = new NogoPolygon();
-
-						
-						
-						// Three nogo points make a triangle
-						NogoPoint rightTop = new NogoPoint(line.get(0).getLat() + latOffset, line.get(0).getLon()
-								- lonOffset);
-						NogoPoint rightBottom = new NogoPoint(nextLines.get(i).get(0).getLat() + latOffset, line.get(0)
-								.getLon() - lonOffset);
-
-						NogoPoint leftBottom = new NogoPoint(nextLines.get(i).get(0).getLat() + latOffset, nextLines
-								.get(i).get(0).getLon()
-								- lonOffset);
-
-						
-						
-						triangle.getPolygon().add(rightTop);
-						triangle.getPolygon().add(rightBottom);
-						triangle.getPolygon().add(leftBottom);
-
-						polygon.add(triangle);
-
-						// Create the needed polygon triangle thingy?
-
-						// Create the data points, add them seperately?
-
-						// Connet to m +/-1
-
-						// Change nogopoints type to include n, m
-
-					}
-
-					// Inward left
-
-					if (leftPoint > selfLeft && leftPoint < selfRight) {
-						// System.out.println("Inwarde left neighbour");
-
-						NogoPolygon triangle = new NogoPolygon();
-
-						// Three nogo points make a triangle
-
-						NogoPoint leftTop = new NogoPoint(line.get(0).getLat() - latOffset, line.get(0).getLon()
-								- lonOffset);
-						NogoPoint rightTop = new NogoPoint(line.get(0).getLat() - latOffset, nextLines.get(i).get(0)
-								.getLon()
-								- lonOffset);
-						NogoPoint rightBottom = new NogoPoint(nextLines.get(i).get(0).getLat() - latOffset, nextLines
-								.get(i).get(0).getLon()
-								- lonOffset);
-//						NogoPoint middlePoint = new NogoPoint(line.get(0).getLat() - (1.5) * latOffset, nextLines
-//								.get(i).get(0).getLon()
-//								- (1.5) * lonOffset);
-
-						// triangle.getPolygon().add(middlePoint);
-						triangle.getPolygon().add(leftTop);
-						triangle.getPolygon().add(rightTop);
-						triangle.getPolygon().add(rightBottom);
-
-						polygon.add(triangle);
-
-					}
-
-					// Outward right
-					if (rightPoint > selfRight
-							&& ((leftPoint < selfLeft && leftPoint <= selfRight) || leftPoint <= selfRight)) {
-//						System.out.println("Outward right neighbour");
-
-						NogoPolygon triangle = new NogoPolygon();
-						// Three nogo points make a triangle
-						
-						NogoPoint leftTop = null;
-						NogoPoint leftBottom = null;
-						NogoPoint rightBottom = null;
-						
-						if (!singletonSelf && !singletonOther){
-							leftTop = new NogoPoint(line.get(1).getLat() + latOffset, line.get(1).getLon()
-									+ lonOffset);
-							
-							leftBottom = new NogoPoint(nextLines.get(i).get(1).getLat() + latOffset, line.get(1)
-									.getLon() + lonOffset);
-							
-							rightBottom = new NogoPoint(nextLines.get(i).get(1).getLat() + latOffset, nextLines
-									.get(i).get(1).getLon()
-									+ lonOffset);
-						}
-						
-						if (singletonSelf && singletonOther){
-							leftTop = new NogoPoint(line.get(0).getLat() + latOffset, line.get(0).getLon()
-									+ lonOffset);
-							
-							leftBottom = new NogoPoint(nextLines.get(i).get(0).getLat() + latOffset, line.get(0)
-									.getLon() + lonOffset);
-							
-							rightBottom = new NogoPoint(nextLines.get(i).get(0).getLat() + latOffset, nextLines
-									.get(i).get(0).getLon()
-									+ lonOffset);
-						}
-						
-						if (singletonSelf && !singletonOther){
-							leftTop = new NogoPoint(line.get(0).getLat() + latOffset, line.get(0).getLon()
-									+ lonOffset);
-							
-							leftBottom = new NogoPoint(nextLines.get(i).get(1).getLat() + latOffset, line.get(0)
-									.getLon() + lonOffset);
-							
-							rightBottom = new NogoPoint(nextLines.get(i).get(1).getLat() + latOffset, nextLines
-									.get(i).get(1).getLon()
-									+ lonOffset);
-						}
-
-						
-												
-						if (!singletonSelf && singletonOther){
-							leftTop = new NogoPoint(line.get(1).getLat() + latOffset, line.get(1).getLon()
-									+ lonOffset);
-							
-							leftBottom = new NogoPoint(nextLines.get(i).get(0).getLat() + latOffset, line.get(1)
-									.getLon() + lonOffset);
-							
-							rightBottom = new NogoPoint(nextLines.get(i).get(1).getLat() + latOffset, nextLines
-									.get(i).get(0).getLon()
-									+ lonOffset);
-						}
-						
-
-
-						
-	
-						triangle.getPolygon().add(leftTop);
-						triangle.getPolygon().add(leftBottom);
-						triangle.getPolygon().add(rightBottom);
-
-						polygon.add(triangle);
-
-					}
-
-					// Inward right
-
-					if (rightPoint < selfRight && rightPoint > selfLeft) {
-
-						NogoPolygon triangle = new NogoPolygon();
-
-						// Three nogo points make a triangle
-						
-						NogoPoint leftTop = null;
-						NogoPoint rightTop = null;
-						NogoPoint rightBottom = null;
-						
-						
-
-						if (!singletonSelf && !singletonOther){
-							leftTop = new NogoPoint(line.get(1).getLat() - latOffset, line.get(1).getLon()
-									+ lonOffset);
-							rightTop = new NogoPoint(line.get(1).getLat() - latOffset, nextLines.get(i).get(1)
-									.getLon()
-									+ lonOffset);
-							rightBottom = new NogoPoint(nextLines.get(i).get(1).getLat() - latOffset, nextLines
-									.get(i).get(1).getLon()
-									+ lonOffset);
-						}
-						
-						if (singletonSelf && singletonOther){
-							leftTop = new NogoPoint(line.get(0).getLat() - latOffset, line.get(0).getLon()
-									+ lonOffset);
-							rightTop = new NogoPoint(line.get(0).getLat() - latOffset, nextLines.get(i).get(0)
-									.getLon()
-									+ lonOffset);
-							rightBottom = new NogoPoint(nextLines.get(i).get(0).getLat() - latOffset, nextLines
-									.get(i).get(0).getLon()
-									+ lonOffset);
-						}
-						
-						if (!singletonSelf && singletonOther){
-							leftTop = new NogoPoint(line.get(1).getLat() - latOffset, line.get(1).getLon()
-									+ lonOffset);
-							rightTop = new NogoPoint(line.get(1).getLat() - latOffset, nextLines.get(i).get(0)
-									.getLon()
-									+ lonOffset);
-							rightBottom = new NogoPoint(nextLines.get(i).get(0).getLat() - latOffset, nextLines
-									.get(i).get(0).getLon()
-									+ lonOffset);
-						}
-						
-						if (singletonSelf && !singletonOther){
-							leftTop = new NogoPoint(line.get(0).getLat() - latOffset, line.get(0).getLon()
-									+ lonOffset);
-							rightTop = new NogoPoint(line.get(0).getLat() - latOffset, nextLines.get(i).get(1)
-									.getLon()
-									+ lonOffset);
-							rightBottom = new NogoPoint(nextLines.get(i).get(1).getLat() - latOffset, nextLines
-									.get(i).get(1).getLon()
-									+ lonOffset);
-						}
-
-
-						// triangle.getPolygon().add(middlePoint);
-						triangle.getPolygon().add(leftTop);
-						triangle.getPolygon().add(rightTop);
-						triangle.getPolygon().add(rightBottom);
-
-						polygon.add(triangle);
-
-					}
+		// Look at each of the runs in the row below
+		for (int i = from; i < to; i += 3) {
+			int nextM = runs[i];
+			int leftPoint = runs[i + 1];
+			int rightPoint = runs[i + 2];
+			if (leftPoint == rightPoint) {
+				continue;
+			}
 
-				}
+			double nextLeftLat = grid.getLat(leftPoint, nextM);
+			double nextLeftLon = grid.getLon(leftPoint, nextM);
+			double nextRightLat = grid.getLat(rightPoint, nextM);
+			double nextRightLon = grid.getLon(rightPoint, nextM);
 
-			
+			// Outward left
+			if (leftPoint < selfLeft && rightPoint >= selfLeft) {
+				polygon.add(triangle(leftLat + latOffset, leftLon - lonOffset, nextLeftLat + latOffset, leftLon
+						- lonOffset, nextLeftLat + latOffset, nextLeftLon - lonOffset));
+			}
+
+			// Inward left
+			if (leftPoint > selfLeft && leftPoint < selfRight) {
+				polygon.add(triangle(leftLat - latOffset, leftLon - lonOffset, leftLat - latOffset, nextLeftLon
+						- lonOffset, nextLeftLat - latOffset, nextLeftLon - lonOffset));
+			}
+
+			// Outward right
+			if (rightPoint > selfRight && leftPoint <= selfRight) {
+				polygon.add(triangle(rightLat + latOffset, rightLon + lonOffset, nextRightLat + latOffset, rightLon
+						+ lonOffset, nextRightLat + latOffset, nextRightLon + lonOffset));
+			}
+
+			// Inward right
+			if (rightPoint < selfRight && rightPoint > selfLeft) {
+				polygon.add(triangle(rightLat - latOffset, rightLon + lonOffset, rightLat - latOffset, nextRightLon
+						+ lonOffset, nextRightLat - latOffset, nextRightLon + lonOffset));
+			}
 		}
 
 		return polygon;
 	}
 
-	
+	private static NogoPolygon triangle(double lat1, double lon1, double lat2, double lon2, double lat3, double lon3) {
+		NogoPolygon triangle = new NogoPolygon();
+		triangle.getPolygon().add(new NogoPoint(lat1, lon1));
+		triangle.getPolygon().add(new NogoPoint(lat2, lon2));
+		triangle.getPolygon().add(new NogoPoint(lat3, lon3));
+		return triangle;
+	}
+
+	/**
+	 * Remove the triangles that overlap another triangle in the same latitude
+	 * band: one with the same left side, one starting inside the triangle, or
+	 * one reaching into it from the left. The triangles are grouped by band
+	 * and sorted by their left side, so each triangle is checked with binary
+	 * searches instead of against every other triangle.
+	 * 
+	 * @param triangles
+	 * @return the triangles that do not overlap, in their original order
+	 */
 	static List<NogoPolygon> triangleOverlap(List<NogoPolygon> triangles){
 		List<NogoPolygon> result = new ArrayList<NogoPolygon>();
-	
 		
 		//If there's only one triangle, it can't overlap with any other triangles
-		if (triangles.size() > 1){
+		if (triangles.size() <= 1){
+			result.addAll(triangles);
+			return result;
+		}
 		
-//			System.out.println("We have a total of: " + triangles.size());
-			
-		for (int i = 0; i < triangles.size(); i++) {
-			
-			//Does it clash with any triangle within the triangles list that's not itself
-			//If it doesn't add it to our result
-			NogoPolygon currentTriangle = triangles.get(i);
-			
-			if (!overlap(currentTriangle, triangles)){
-				result.add(currentTriangle);
+		int count = triangles.size();
+		final double[] left = new double[count];
+		double[] right = new double[count];
+		Map<Long, List<Integer>> bands = new HashMap<Long, List<Integer>>();
+		for (int i = 0; i < count; i++) {
+			NogoPolygon triangle = triangles.get(i);
+			left[i] = getLeft(triangle);
+			right[i] = getRight(triangle);
+			Long band = (long) Math.floor(getLatMax(triangle)*1000);
+			List<Integer> members = bands.get(band);
+			if (members == null) {
+				members = new ArrayList<Integer>();
+				bands.put(band, members);
 			}
+			members.add(i);
+		}
+		
+		boolean[] overlaps = new boolean[count];
+		for (List<Integer> members : bands.values()) {
+			if (members.size() == 1) {
+				continue;
+			}
+			Integer[] sorted = members.toArray(new Integer[members.size()]);
+			Arrays.sort(sorted, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer i1, Integer i2) {
+					return Double.compare(left[i1], left[i2]);
+				}
+			});
 			
+			double[] lefts = new double[sorted.length];
+			// Rightmost right side of the triangles up to each position
+			double[] maxRight = new double[sorted.length];
+			for (int k = 0; k < sorted.length; k++) {
+				lefts[k] = left[sorted[k]];
+				maxRight[k] = k == 0 ? right[sorted[k]] : Math.max(maxRight[k - 1], right[sorted[k]]);
+			}
 			
+			for (int k = 0; k < sorted.length; k++) {
+				int i = sorted[k];
+				int first = lowerBound(lefts, left[i]);
+				int after = upperBound(lefts, left[i]);
+				
+				overlaps[i] =
+						// Another triangle with the same left side
+						after - first > 1
+						// A triangle starting inside this one
+						|| after < lefts.length && lefts[after] < right[i]
+						// A triangle starting before this one and reaching into it
+						|| first > 0 && maxRight[first - 1] > left[i];
+			}
 		}
-		}else{
-			result.addAll(triangles);
+		
+		for (int i = 0; i < count; i++) {
+			if (!overlaps[i]) {
+				result.add(triangles.get(i));
+			}
 		}
 		
 		return result;
 		
 	}
 	
+	/**
+	 * First index with a value not less than the key
+	 */
+	private static int lowerBound(double[] values, double key) {
+		int low = 0;
+		int high = values.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (values[mid] < key) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
 	
-	static boolean overlap(NogoPolygon triangle, List<NogoPolygon> triangles){
-		
-		double leftLon = getLeft(triangle);
-		double rightLon = getRight(triangle);
-		
-//		double latTop = Math.floor(getLatMax(triangle)*1000);
-		double latBot = Math.floor(getLatMax(triangle)*1000);
-		
-//		System.out.println("Triangle at top: " + latTop);
-//		System.out.println("Triangle at bot: " + latBot);
-		
-		for (int i = 0; i < triangles.size(); i++) {
-			NogoPolygon currentTriangle = triangles.get(i);
-			double leftLonCurrent = getLeft(currentTriangle);
-			double rightLonCurrent = getRight(currentTriangle);
-			
-//			double latTopCurrent = Math.floor(getLatMax(currentTriangle)*1000);
-			double latBotCurrent = Math.floor(getLatMax(currentTriangle)*1000);
-
-//			System.out.println("Triangle current at top: " + latTopCurrent);
-//			System.out.println("Triangle current at bot: " + latBotCurrent);
-			
-//			
-//			System.out.println(latTop == latTopCurrent && latBot == latBotCurrent);
-			
-
-			if (currentTriangle != triangle && latBot == latBotCurrent){
-//				System.out.println("It's not current");
-				
-				
-				if (
-						leftLon < leftLonCurrent && leftLonCurrent < rightLon
-						||
-						leftLonCurrent > leftLon && rightLon  > rightLonCurrent
-						||
-						leftLon > leftLonCurrent && leftLon < rightLonCurrent
-						
-//						||
-//						leftLon > leftLonCurrent && rightLon < rightLonCurrent
-//						||
-//						leftLon < leftLonCurrent && rightLon > rightLonCurrent
-						
-						||
-						leftLon == leftLonCurrent && rightLon == rightLonCurrent
-						
-						||
-						leftLon == leftLonCurrent && rightLon < rightLonCurrent
-						||
-						leftLon == leftLonCurrent && rightLon > rightLonCurrent
-						||
-						leftLon == leftLonCurrent && rightLonCurrent > rightLon
-						
-						
-//					leftLon < leftLonCurrent && rightLon > leftLonCurrent
-//					||
-//					rightLon > rightLonCurrent && leftLon > rightLonCurrent
-					
-						
-//						
-//						
-//||				   leftLon < leftLonCurrent && rightLon < leftLonCurrent
-//				|| rightLon < rightLonCurrent && rightLon > leftLonCurrent	
-//				|| leftLon > leftLonCurrent && rightLon
-//				
-				){
-//					System.out.println("We have an overlap of :");
-//					System.out.println("Left : " + leftLon + " vs. " + leftLonCurrent);
-//					System.out.println("Right : " + rightLon + " vs. " + rightLonCurrent);
-//					System.out.println("Lat: " + lat +" vs" + currentLat);
-					
-					return true;
-				}
-				
+	/**
+	 * First index with a value greater than the key
+	 */
+	private static int upperBound(double[] values, double key) {
+		int low = 0;
+		int high = values.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (values[mid] <= key) {
+				low = mid + 1;
+			} else {
+				high = mid;
 			}
-					
-//					&&
-//					(
-//			
-//							(leftLon > leftLonCurrent && rightLon < rightLonCurrent)
-//			||
-//			(leftLon < leftLonCurrent && rightLon > rightLonCurrent)
-//			)
-//			){
-				
-//			}
-			
-			
 		}
-		
-		return false;
+		return low;
 	}
 	
 	
@@ -16,5 +16,11 @@ public interface StatusService {
 	 * @return
 	 */
 	Map<String, Status> fullStatus(); 
+	
+	/**
+	 * Get a map of statistics names and values
+	 * @return
+	 */
+	Map<String, String> statistics();
 
 }
@@ -1,6 +1,7 @@
 package dk.frv.enav.shore.core.services.status;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -9,6 +10,9 @@ import javax.ejb.Stateless;
 
 import dk.frv.enav.shore.core.domain.ServiceLog;
 import dk.frv.enav.shore.core.services.log.LogService;
+import dk.frv.enav.shore.core.services.nogo.NogoDataService;
+import dk.frv.enav.shore.core.services.nogo.NogoExecutor;
+import dk.frv.enav.shore.core.services.nogo.NogoService;
 
 @Stateless
 public class StatusServiceBean implements StatusService {
@@ -17,6 +21,15 @@ public class StatusServiceBean implements StatusService {
 	
 	@EJB
 	LogService logService;
+	
+	@EJB
+	NogoExecutor nogoExecutor;
+	
+	@EJB
+	NogoDataService nogoDataService;
+	
+	@EJB
+	NogoService nogoService;
 
 	@Override
 	public Map<String, Status> fullStatus() {
@@ -41,6 +54,16 @@ public class StatusServiceBean implements StatusService {
 		return status;				
 	}
 	
+	@Override
+	public Map<String, String> statistics() {
+		Map<String, String> statistics = new LinkedHashMap<String, String>();
+		statistics.putAll(nogoExecutor.getStatistics());
+		statistics.putAll(nogoDataService.getResultCache().getStatistics());
+		statistics.putAll(nogoDataService.getTileCache().getStatistics());
+		statistics.putAll(nogoService.getStatistics());
+		return statistics;
+	}
+	
 	private Status serviceOk(String name) {
 		Status status = Status.ERROR;
 		List<ServiceLog> logs = logService.getLast(name, LOOKBACK_COUNT);